@@ -0,0 +1,521 @@
+package net.cleyfaye.loimagecomp;
+
+import static net.cleyfaye.loimagecomp.utils.Utils.dataSizeToString;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import net.cleyfaye.loimagecomp.imagecompress.ImageCompress;
+import net.cleyfaye.loimagecomp.imagecompress.ImageInfo;
+import net.cleyfaye.loimagecomp.imagecompress.MemoryBudget;
+import net.cleyfaye.loimagecomp.imagecompress.ProcessedImageCache;
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.Controller.SampleQuality;
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.Interface;
+
+/**
+ * Command line entry point, to process many ODT files without a GUI.
+ * 
+ * Documents are processed in parallel on a fixed number of threads. Each
+ * document also prepares it's images in parallel; the available threads are
+ * split between both levels.
+ * 
+ * With an output directory, outputs keep their path below the searched
+ * directory. Inputs that would be written to the same output are skipped.
+ * 
+ * @author Cley Faye
+ */
+public class BatchCompress {
+
+    /**
+     * A document to process.
+     * 
+     * The document receives the settings through the Interface methods.
+     * 
+     * @author Cley Faye
+     */
+    private class Document implements Interface, Callable<Document> {
+        private final File mInput;
+        private final File mOutput;
+        private long mInputSize = 0;
+        private long mOutputSize = 0;
+        private int mImagesCount = 0;
+        private long mDuration = 0;
+        /** Error that stopped the processing, if any */
+        private Exception mError = null;
+
+        public Document(final File input, final File output) {
+            mInput = input;
+            mOutput = output;
+        }
+
+        @Override
+        public Document call()
+        {
+            final long start = System.nanoTime();
+            final ImageCompress compress = new ImageCompress(this);
+            compress.setPrepareThreads(mImageThreads);
+            compress.setCache(mCache);
+            // Each document is saved once
+            compress.setReusePreparedImages(false);
+            try {
+                mInputSize = mInput.length();
+                Files.createDirectories(mOutput.getAbsoluteFile()
+                        .getParentFile().toPath());
+                compress.openFile(mInput, null);
+                compress.saveFile(mOutput, null);
+                mOutputSize = mOutput.length();
+            } catch (final Exception e) {
+                mError = e;
+            } finally {
+                try {
+                    compress.closeFile();
+                } catch (final IOException e) {
+                    // Only reading; nothing lost
+                }
+            }
+            mDuration = System.nanoTime() - start;
+            return this;
+        }
+
+        @Override
+        public int getJPEGQuality()
+        {
+            return mJPEGQuality;
+        }
+
+        @Override
+        public boolean getKillTransparency()
+        {
+            return mKillTransparency;
+        }
+
+        @Override
+        public SampleQuality getSampleQuality()
+        {
+            return mSampleQuality;
+        }
+
+        @Override
+        public void imageInfoLoaded(final ImageInfo imageInfo)
+        {
+            // Nothing is displayed
+        }
+
+        @Override
+        public void updateImagesList(final List<ImageInfo> images)
+        {
+            mImagesCount = images.size();
+            for (final ImageInfo info : images) {
+                info.setTargetDPI(mDPI);
+            }
+        }
+    }
+
+    private static final String USAGE = "Usage: BatchCompress [options] <file|directory|glob>...\n"
+            + "\n"
+            + "Directories are searched recursively for .odt files.\n"
+            + "\n"
+            + "Options:\n"
+            + "  --dpi <value>          Target resolution (default: 90)\n"
+            + "  --quality <0-100>      JPEG quality (default: 80)\n"
+            + "  --scaling <method>     fast, smooth, area, mitchell or lanczos\n"
+            + "                         (default: smooth)\n"
+            + "  --kill-transparency    Save all pictures as opaque\n"
+            + "  --output <directory>   Write outputs in this directory, keeping\n"
+            + "                         the paths below searched directories\n"
+            + "  --suffix <text>        Without --output, outputs are written next\n"
+            + "                         to the inputs with this suffix\n"
+            + "                         (default: -compressed)\n"
+            + "  --threads <count>      Total number of worker threads\n"
+            + "                         (default: number of processors)\n"
+            + "  --documents <count>    Documents processed at once\n"
+            + "                         (default: half the threads)\n"
+            + "  --image-threads <count>\n"
+            + "                         Threads preparing pictures of each document\n"
+            + "                         (default: threads / documents)\n"
+            + "  --cache <directory>    Keep processed pictures for later runs\n"
+            + "  --cache-size <MB>      Maximum cache size (default: 1024)\n";
+
+    public static void main(final String[] args)
+    {
+        final BatchCompress batch = new BatchCompress();
+        try {
+            batch.parseArguments(args);
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            System.err.print(USAGE);
+            System.exit(2);
+        }
+        if (batch.mHelp) {
+            System.out.print(USAGE);
+            System.exit(0);
+        }
+        try {
+            System.exit(batch.run() ? 0 : 1);
+        } catch (final Exception e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    /** Does a string contain glob special characters */
+    private static boolean isGlob(final String argument)
+    {
+        for (final char c : "*?[{".toCharArray()) {
+            if (argument.indexOf(c) != -1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Parse a positive integer option */
+    private static int parseCount(final String option, final String value)
+    {
+        try {
+            final int result = Integer.parseInt(value);
+            if (result > 0) {
+                return result;
+            }
+        } catch (final NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid value for " + option + ": "
+                + value);
+    }
+
+    private double mDPI = 90;
+    private int mJPEGQuality = 80;
+    private SampleQuality mSampleQuality = SampleQuality.SQ_SMOOTH;
+    private boolean mKillTransparency = false;
+    /** Output directory; null to write next to inputs */
+    private File mOutputDirectory = null;
+    private String mSuffix = "-compressed";
+    private int mThreads = Runtime.getRuntime().availableProcessors();
+    /** Documents processed at once; 0 to compute from mThreads */
+    private int mDocumentThreads = 0;
+    /** Threads preparing pictures of a document; 0 to compute */
+    private int mImageThreads = 0;
+    private File mCacheDirectory = null;
+    private long mCacheSize = 1024L * 1024 * 1024;
+    private ProcessedImageCache mCache = null;
+    /** Set by --help; nothing is processed */
+    private boolean mHelp = false;
+    /** Inputs, as given on the command line */
+    private final List<String> mInputs = new ArrayList<>();
+
+    /**
+     * Add a file, the files of a directory, or the files matching a glob.
+     * 
+     * @param argument
+     *            The command line argument
+     * @param files
+     *            Receive the found files, mapped to their path relative to
+     *            the searched directory. Files already present are not
+     *            changed.
+     */
+    private void collectFiles(final String argument,
+            final Map<File, String> files) throws IOException
+    {
+        final File file = new File(argument);
+        if (file.isFile()) {
+            if (!files.containsKey(file)) {
+                files.put(file, file.getName());
+            }
+            return;
+        }
+        final Path base;
+        final PathMatcher matcher;
+        if (file.isDirectory()) {
+            base = file.toPath();
+            matcher = FileSystems.getDefault().getPathMatcher("glob:**.odt");
+        } else if (isGlob(argument)) {
+            // Walk from the deepest directory without special characters
+            final String[] parts = argument.split(
+                    Pattern.quote(File.separator), -1);
+            final StringBuilder prefix = new StringBuilder();
+            for (int i = 0; i < parts.length - 1 && !isGlob(parts[i]); ++i) {
+                prefix.append(parts[i]).append(File.separator);
+            }
+            base = Paths.get(prefix.toString());
+            matcher = FileSystems.getDefault().getPathMatcher(
+                    "glob:" + argument);
+        } else {
+            throw new IOException("No such file or directory: " + argument);
+        }
+        final Path walkRoot = base.toString().isEmpty() ? Paths.get(".")
+                : base;
+        Files.walkFileTree(walkRoot, new SimpleFileVisitor<Path>() {
+
+            @Override
+            public FileVisitResult visitFile(final Path path,
+                    final BasicFileAttributes attrs)
+            {
+                final Path relative = base.toString().isEmpty() ? walkRoot
+                        .relativize(path) : path;
+                if (attrs.isRegularFile() && matcher.matches(relative)
+                        && !path.getFileName().toString()
+                                .endsWith(mSuffix + ".odt")
+                        && !files.containsKey(relative.toFile())) {
+                    files.put(relative.toFile(), walkRoot.relativize(path)
+                            .toString());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * Return the output file for an input.
+     * 
+     * @param input
+     *            The input file
+     * @param relativePath
+     *            The input path relative to the searched directory
+     */
+    private File getOutputFile(final File input, final String relativePath)
+    {
+        if (mOutputDirectory != null) {
+            return new File(mOutputDirectory, relativePath);
+        }
+        final String name = input.getName();
+        final int dot = name.lastIndexOf('.');
+        final String baseName = dot == -1 ? name : name.substring(0, dot);
+        return new File(input.getAbsoluteFile().getParentFile(), baseName
+                + mSuffix + ".odt");
+    }
+
+    /** Read the command line */
+    private void parseArguments(final String[] args)
+    {
+        for (int i = 0; i < args.length; ++i) {
+            final String arg = args[i];
+            if (!arg.startsWith("--")) {
+                mInputs.add(arg);
+                continue;
+            }
+            if (arg.equals("--kill-transparency")) {
+                mKillTransparency = true;
+                continue;
+            }
+            if (arg.equals("--help")) {
+                // Other arguments don't matter
+                mHelp = true;
+                return;
+            }
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("Missing value for " + arg);
+            }
+            final String value = args[++i];
+            switch (arg) {
+            case "--dpi":
+                try {
+                    mDPI = Double.parseDouble(value);
+                } catch (final NumberFormatException e) {
+                    mDPI = 0;
+                }
+                if (mDPI <= 0) {
+                    throw new IllegalArgumentException("Invalid DPI: " + value);
+                }
+                break;
+            case "--quality":
+                try {
+                    mJPEGQuality = Integer.parseInt(value);
+                } catch (final NumberFormatException e) {
+                    mJPEGQuality = -1;
+                }
+                if (mJPEGQuality < 0 || mJPEGQuality > 100) {
+                    throw new IllegalArgumentException("Invalid quality: "
+                            + value);
+                }
+                break;
+            case "--scaling":
+                mSampleQuality = SampleQuality.fromShortName(value);
+                break;
+            case "--output":
+                mOutputDirectory = new File(value);
+                break;
+            case "--suffix":
+                mSuffix = value;
+                break;
+            case "--threads":
+                mThreads = parseCount(arg, value);
+                break;
+            case "--documents":
+                mDocumentThreads = parseCount(arg, value);
+                break;
+            case "--image-threads":
+                mImageThreads = parseCount(arg, value);
+                break;
+            case "--cache":
+                mCacheDirectory = new File(value);
+                break;
+            case "--cache-size":
+                mCacheSize = parseCount(arg, value) * 1024L * 1024;
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        if (mInputs.isEmpty()) {
+            throw new IllegalArgumentException("No input files");
+        }
+        if (mOutputDirectory == null && mSuffix.isEmpty()) {
+            throw new IllegalArgumentException(
+                    "An empty suffix needs an output directory");
+        }
+    }
+
+    /** Print the result of a document */
+    private void printResult(final Document document)
+    {
+        if (document.mError != null) {
+            System.err.println("FAILED " + document.mInput + ": "
+                    + document.mError);
+            return;
+        }
+        System.out.println(String.format(Locale.ROOT,
+                "%s -> %s: %s -> %s, %d pictures, %.1f s", document.mInput,
+                document.mOutput, dataSizeToString(document.mInputSize),
+                dataSizeToString(document.mOutputSize),
+                document.mImagesCount, document.mDuration / 1e9));
+    }
+
+    /** Print the totals of the run */
+    private void printSummary(final List<Document> documents,
+            final long duration)
+    {
+        int failed = 0;
+        int images = 0;
+        long inputSize = 0;
+        long outputSize = 0;
+        for (final Document document : documents) {
+            if (document.mError != null) {
+                ++failed;
+                continue;
+            }
+            images += document.mImagesCount;
+            inputSize += document.mInputSize;
+            outputSize += document.mOutputSize;
+        }
+        final double seconds = Math.max(duration / 1e9, 1e-3);
+        System.out.println();
+        System.out.println(String.format(Locale.ROOT,
+                "Documents: %d processed, %d failed (%d documents and %d "
+                        + "picture threads)", documents.size() - failed,
+                failed, mDocumentThreads, mImageThreads));
+        System.out.println(String.format(Locale.ROOT,
+                "Size: %s -> %s (%.1f%%)", dataSizeToString(inputSize),
+                dataSizeToString(outputSize), inputSize == 0 ? 100.0
+                        : outputSize * 100.0 / inputSize));
+        System.out.println(String.format(Locale.ROOT,
+                "Time: %.1f s; %.2f documents/s, %.1f pictures/s, %s/s",
+                seconds, (documents.size() - failed) / seconds, images
+                        / seconds, dataSizeToString((long) (inputSize / seconds))));
+        if (mCache != null) {
+            System.out.println(String.format(Locale.ROOT,
+                    "Cache: %d hits, %d misses", mCache.getHits(),
+                    mCache.getMisses()));
+        }
+        final MemoryBudget budget = MemoryBudget.getShared();
+        System.out.println(String.format(Locale.ROOT,
+                "Memory: %s peak of %s budget, %d pictures waited",
+                dataSizeToString(budget.getPeakReserved()),
+                dataSizeToString(budget.getBudget()), budget.getWaits()));
+    }
+
+    /**
+     * Process all documents.
+     * 
+     * @return true if all documents were processed
+     */
+    private boolean run() throws Exception
+    {
+        final Map<File, String> files = new LinkedHashMap<>();
+        for (final String input : mInputs) {
+            collectFiles(input, files);
+        }
+        if (files.isEmpty()) {
+            System.err.println("No document found");
+            return false;
+        }
+        if (mOutputDirectory != null) {
+            Files.createDirectories(mOutputDirectory.toPath());
+        }
+        if (mCacheDirectory != null) {
+            mCache = new ProcessedImageCache(mCacheDirectory, mCacheSize);
+        }
+        if (mDocumentThreads == 0) {
+            mDocumentThreads = Math.max(1, mThreads / 2);
+        }
+        mDocumentThreads = Math.min(mDocumentThreads, files.size());
+        if (mImageThreads == 0) {
+            mImageThreads = Math.max(1, mThreads / mDocumentThreads);
+        }
+
+        final long start = System.nanoTime();
+        final ExecutorService executor = Executors
+                .newFixedThreadPool(mDocumentThreads);
+        final List<Document> documents = new ArrayList<>();
+        try {
+            final CompletionService<Document> completion = new ExecutorCompletionService<>(
+                    executor);
+            // Outputs already used, written at the same time otherwise
+            final Set<Path> outputs = new HashSet<>();
+            for (final Map.Entry<File, String> entry : files.entrySet()) {
+                final File file = entry.getKey();
+                final File output = getOutputFile(file, entry.getValue());
+                if (output.getAbsoluteFile().equals(file.getAbsoluteFile())) {
+                    System.err.println("SKIPPED " + file
+                            + ": output would overwrite the input");
+                    continue;
+                }
+                final Path outputPath = output.toPath().toAbsolutePath()
+                        .normalize();
+                if (!outputs.add(outputPath)) {
+                    System.err.println("SKIPPED " + file + ": output " + output
+                            + " is used by another input");
+                    continue;
+                }
+                completion.submit(new Document(file, output));
+                documents.add(null);
+            }
+            for (int i = 0; i < documents.size(); ++i) {
+                final Document document = completion.take().get();
+                documents.set(i, document);
+                printResult(document);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        printSummary(documents, System.nanoTime() - start);
+        for (final Document document : documents) {
+            if (document.mError != null) {
+                return false;
+            }
+        }
+        return documents.size() == files.size();
+    }
+}
@@ -7,13 +7,16 @@ import java.awt.Dimension;
 import java.awt.EventQueue;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 import java.io.File;
+import java.io.IOException;
 import java.util.List;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.swing.AbstractAction;
 import javax.swing.AbstractListModel;
@@ -36,7 +39,7 @@ import javax.swing.JSpinner;
 import javax.swing.ListSelectionModel;
 import javax.swing.ProgressMonitor;
 import javax.swing.SpinnerNumberModel;
-import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.border.TitledBorder;
 import javax.swing.event.ChangeEvent;
@@ -47,21 +50,22 @@ import javax.swing.filechooser.FileFilter;
 
 import net.cleyfaye.loimagecomp.imagecompress.ImageCompress;
 import net.cleyfaye.loimagecomp.imagecompress.ImageInfo;
+import net.cleyfaye.loimagecomp.imagecompress.SizeEstimator.Estimate;
 import net.cleyfaye.loimagecomp.imagecompress.interfaces.Controller;
 import net.cleyfaye.loimagecomp.imagecompress.interfaces.Controller.SampleQuality;
 import net.cleyfaye.loimagecomp.imagecompress.interfaces.Interface;
-import net.cleyfaye.loimagecomp.utils.ProgressCheck;
+import net.cleyfaye.loimagecomp.utils.AtomicProgress;
 
 /**
  * Application main window
  * 
  * TODO Implement a controller somewhere to separate GUI and useful code
  * 
- * TODO Implement a CLI at some point
+ * See BatchCompress for the command line version.
  * 
  * @author Cley Faye
  */
-public class MainWindow implements Interface, ProgressCheck {
+public class MainWindow implements Interface {
 
     private class OpenAction extends AbstractAction {
         private static final long serialVersionUID = 1L;
@@ -91,9 +95,12 @@ public class MainWindow implements Interface, ProgressCheck {
                     public void run()
                     {
                         try {
-                            mController.openFile(fc.getSelectedFile(), mDiz);
+                            mController.openFile(fc.getSelectedFile(),
+                                    mProgress);
                         } catch (final Exception e) {
                             e.printStackTrace();
+                        } finally {
+                            mProgress.endProgress();
                         }
                     }
                 });
@@ -134,8 +141,10 @@ public class MainWindow implements Interface, ProgressCheck {
                     {
                         try {
                             final boolean result = mController.saveFile(
-                                    fc.getSelectedFile(), mDiz);
+                                    fc.getSelectedFile(), mProgress);
                             if (result) {
+                                // Saved images are now counted exactly
+                                requestEstimate();
                                 final long previousSize = mOriginalSize;
                                 final long newSize = fc.getSelectedFile()
                                         .length();
@@ -152,6 +161,8 @@ public class MainWindow implements Interface, ProgressCheck {
                             }
                         } catch (final Exception e) {
                             e.printStackTrace();
+                        } finally {
+                            mProgress.endProgress();
                         }
                     }
                 });
@@ -161,6 +172,9 @@ public class MainWindow implements Interface, ProgressCheck {
         }
     }
 
+    /** Delay between two updates of the progress monitor, in ms */
+    private static final int PROGRESS_REFRESH_DELAY = 100;
+
     /**
      * Launch the application.
      */
@@ -191,6 +205,16 @@ public class MainWindow implements Interface, ProgressCheck {
     private final ExecutorService mThreadPool = Executors
             .newSingleThreadExecutor();
 
+    /** Compute size estimates, apart from mThreadPool so saving doesn't wait */
+    private final ExecutorService mEstimatePool = Executors
+            .newSingleThreadExecutor();
+
+    /** Is an estimate requested, but not started yet */
+    private final AtomicBoolean mEstimatePending = new AtomicBoolean();
+
+    /** Last size estimate, or null */
+    private Estimate mEstimate = null;
+
     private static FileFilter mODTFileFilter = new FileFilter() {
 
         @Override
@@ -206,8 +230,6 @@ public class MainWindow implements Interface, ProgressCheck {
         }
     };
 
-    private final MainWindow mDiz = this;
-
     // GUI stuff
     private JFrame mframe;
     private final Action actionOpen = new OpenAction();
@@ -225,43 +247,45 @@ public class MainWindow implements Interface, ProgressCheck {
 
     private JLabel mOriginalSizeLabel;
 
+    private JLabel mProjectedSizeLabel;
+
+    private JLabel mDocumentSizeLabel;
+
     private JSpinner mTargetDPISpinner;
 
     private JCheckBox mKillTransparencyCheck;
 
     /** Controller */
-    private final Controller mController = new ImageCompress(this);
+    private final Controller mController = createController();
 
     private List<ImageInfo> mImagesInfo = null;
 
     private ProgressMonitor mProgressMonitor;
 
-    private long mOriginalSize;
+    /** Progress of the running task, written by the worker thread */
+    private final AtomicProgress mProgress = new AtomicProgress();
 
-    /**
-     * Create the application.
-     */
-    public MainWindow() {
-        initialize();
-    }
+    /** Generation of mProgress shown by mProgressMonitor */
+    private int mProgressGeneration;
 
-    @Override
-    public void endProgress()
-    {
-        try {
-            SwingUtilities.invokeAndWait(new Runnable() {
+    /** Copy mProgress to the progress monitor */
+    private final Timer mProgressTimer = new Timer(PROGRESS_REFRESH_DELAY,
+            new ActionListener() {
 
                 @Override
-                public void run()
+                public void actionPerformed(final ActionEvent e)
                 {
-                    mProgressMonitor.close();
-                    mProgressMonitor = null;
-                    mframe.setEnabled(true);
+                    updateProgressMonitor();
                 }
             });
-        } catch (final Exception e) {
-            throw new RuntimeException(e);
-        }
+
+    private long mOriginalSize;
+
+    /**
+     * Create the application.
+     */
+    public MainWindow() {
+        initialize();
     }
 
     @Override
@@ -285,9 +309,50 @@ public class MainWindow implements Interface, ProgressCheck {
             return SampleQuality.SQ_FAST;
         case 1:
             return SampleQuality.SQ_SMOOTH;
+        case 2:
+            return SampleQuality.SQ_AREA;
+        case 3:
+            return SampleQuality.SQ_MITCHELL;
+        case 4:
+            return SampleQuality.SQ_LANCZOS;
         }
     }
 
+    /** Refresh the row of a picture whose header was just read */
+    @Override
+    public void imageInfoLoaded(final ImageInfo imageInfo)
+    {
+        EventQueue.invokeLater(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                if (mImagesInfo == null) {
+                    return;
+                }
+                final int index = indexOfImage(imageInfo);
+                if (index == -1) {
+                    // Not listed yet, or from a previous file
+                    return;
+                }
+                final DefaultListModel<String> model = (DefaultListModel<String>) mDetectedImagesList
+                        .getModel();
+                model.set(index, getImageLabel(imageInfo));
+                if (mDetectedImagesList.getSelectedIndex() == index) {
+                    showImageDetails();
+                }
+            }
+        });
+    }
+
+    /** Create the controller; images are prepared while the user waits */
+    private Controller createController()
+    {
+        final ImageCompress result = new ImageCompress(this);
+        result.setBackgroundPreparation(true);
+        return result;
+    }
+
     /**
      * Initialize the contents of the frame.
      */
@@ -299,6 +364,7 @@ public class MainWindow implements Interface, ProgressCheck {
             public void windowClosing(final WindowEvent arg0)
             {
                 mThreadPool.shutdown();
+                mEstimatePool.shutdownNow();
                 // Should be plenty
                 try {
                     mThreadPool.awaitTermination(5, TimeUnit.SECONDS);
@@ -307,6 +373,7 @@ public class MainWindow implements Interface, ProgressCheck {
                 }
             }
         });
+        mProgressTimer.start();
         mframe.setBounds(100, 100, 847, 766);
         mframe.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
 
@@ -360,6 +427,9 @@ public class MainWindow implements Interface, ProgressCheck {
         final JScrollPane scrollPane = new JScrollPane(mDetectedImagesList);
         panel.add(scrollPane, BorderLayout.CENTER);
 
+        mDocumentSizeLabel = new JLabel(" ");
+        panel.add(mDocumentSizeLabel, BorderLayout.SOUTH);
+
         mImageDetailsGroup = new JPanel();
         mImageDetailsGroup.setVisible(false);
         mImageDetailsGroup.setBorder(new TitledBorder(null, "Image details",
@@ -391,6 +461,12 @@ public class MainWindow implements Interface, ProgressCheck {
         mOriginalSizeLabel = new JLabel("<>");
         mImageDetailsGroup.add(mOriginalSizeLabel);
 
+        final JLabel lblProjectedSize = new JLabel("Projected file size:");
+        mImageDetailsGroup.add(lblProjectedSize);
+
+        mProjectedSizeLabel = new JLabel("<>");
+        mImageDetailsGroup.add(mProjectedSizeLabel);
+
         final JPanel panel_2 = new JPanel();
         panel_2.setBorder(new TitledBorder(null, "Output settings",
                 TitledBorder.LEADING, TitledBorder.TOP, null, null));
@@ -425,10 +501,24 @@ public class MainWindow implements Interface, ProgressCheck {
 
         mJpgQualitySpinner = new JSpinner();
         mJpgQualitySpinner.setModel(new SpinnerNumberModel(75, 0, 100, 5));
+        mJpgQualitySpinner.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(final ChangeEvent arg0)
+            {
+                onSettingsChanged();
+            }
+        });
         mJpgQualityGroup.add(mJpgQualitySpinner);
 
         mKillTransparencyCheck = new JCheckBox(
                 "Kill transparency (save all as jpeg)");
+        mKillTransparencyCheck.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(final ActionEvent arg0)
+            {
+                onSettingsChanged();
+            }
+        });
         panel_2.add(mKillTransparencyCheck);
 
         final JPanel panel_3 = new JPanel();
@@ -439,67 +529,44 @@ public class MainWindow implements Interface, ProgressCheck {
 
         mScalingMethodCombo = new JComboBox<>();
         mScalingMethodCombo.setModel(new DefaultComboBoxModel<String>(
-                new String[] { "Fast", "Smooth" }));
+                new String[] { "Fast", "Smooth", "Area average", "Mitchell",
+                        "Lanczos" }));
         mScalingMethodCombo.setSelectedIndex(1);
+        mScalingMethodCombo.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(final ActionEvent arg0)
+            {
+                onSettingsChanged();
+            }
+        });
         panel_3.add(mScalingMethodCombo);
     }
 
-    @Override
-    public boolean progress(final int value)
+    /** Return the label of an image in the list */
+    private static String getImageLabel(final ImageInfo info)
     {
-        final boolean res[] = new boolean[1];
-        try {
-            SwingUtilities.invokeAndWait(new Runnable() {
-
-                @Override
-                public void run()
-                {
-                    mProgressMonitor.setProgress(value);
-                    res[0] = !mProgressMonitor.isCanceled();
-                }
-            });
-        } catch (final Exception e) {
-            throw new RuntimeException(e);
+        if (!info.isEmbedded()) {
+            return "<not embedded>";
+        }
+        if (!info.isLoaded()) {
+            return info + " (loading)";
         }
-        return res[0];
-    }
-
-    @Override
-    public boolean progressMessage(final String message)
-    {
-        final boolean res[] = new boolean[1];
         try {
-            SwingUtilities.invokeAndWait(new Runnable() {
-
-                @Override
-                public void run()
-                {
-                    mProgressMonitor.setNote(message);
-                    res[0] = !mProgressMonitor.isCanceled();
-                }
-            });
-        } catch (final Exception e) {
-            throw new RuntimeException(e);
+            return info + " (" + info.getImageSizePx() + " px)";
+        } catch (final IOException e) {
+            return info + " (unreadable)";
         }
-        return res[0];
     }
 
-    @Override
-    public void progressNewMaxValue(final int maxValue)
+    /** Return the position of an image in the list, or -1 */
+    private int indexOfImage(final ImageInfo info)
     {
-        try {
-            SwingUtilities.invokeAndWait(new Runnable() {
-
-                @Override
-                public void run()
-                {
-                    mProgressMonitor.setProgress(0);
-                    mProgressMonitor.setMaximum(maxValue);
-                }
-            });
-        } catch (final Exception e) {
-            throw new RuntimeException(e);
+        for (int imgCount = 0; imgCount < mImagesInfo.size(); ++imgCount) {
+            if (mImagesInfo.get(imgCount) == info) {
+                return imgCount;
+            }
         }
+        return -1;
     }
 
     private void refreshImagesList()
@@ -507,12 +574,7 @@ public class MainWindow implements Interface, ProgressCheck {
         mImageDetailsGroup.setVisible(false);
         final DefaultListModel<String> model = new DefaultListModel<>();
         for (int imgCount = 0; imgCount < mImagesInfo.size(); ++imgCount) {
-            final ImageInfo info = mImagesInfo.get(imgCount);
-            if (!info.isEmbedded()) {
-                model.addElement("<not embedded>");
-            } else {
-                model.addElement(info.toString());
-            }
+            model.addElement(getImageLabel(mImagesInfo.get(imgCount)));
         }
         mDetectedImagesList.setModel(model);
         mDetectedImagesList.setSelectedIndex(-1);
@@ -526,9 +588,69 @@ public class MainWindow implements Interface, ProgressCheck {
         for (final ImageInfo imageInfo : mImagesInfo) {
             imageInfo.setTargetDPI(dpi);
         }
+        onSettingsChanged();
         showImageDetails();
     }
 
+    /** Tell the controller, and update the projected sizes */
+    private void onSettingsChanged()
+    {
+        mController.settingsChanged();
+        requestEstimate();
+    }
+
+    /**
+     * Compute the projected sizes in the background.
+     * 
+     * Requests made while an estimate is waiting to start are merged with it.
+     * The labels are updated when it is done.
+     */
+    private void requestEstimate()
+    {
+        if (!mEstimatePending.compareAndSet(false, true)) {
+            return;
+        }
+        mEstimatePool.execute(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                mEstimatePending.set(false);
+                Estimate estimate;
+                try {
+                    estimate = mController.estimateSize();
+                } catch (final Exception e) {
+                    // The file was closed, or can't be read; saving will tell
+                    estimate = null;
+                }
+                final Estimate result = estimate;
+                EventQueue.invokeLater(new Runnable() {
+
+                    @Override
+                    public void run()
+                    {
+                        mEstimate = result;
+                        showDocumentSize();
+                        showImageDetails();
+                    }
+                });
+            }
+        });
+    }
+
+    /** Display the original and projected size of the whole document */
+    private void showDocumentSize()
+    {
+        if (mEstimate == null) {
+            mDocumentSizeLabel.setText(" ");
+            return;
+        }
+        mDocumentSizeLabel.setText("Original document size: "
+                + dataSizeToString(mOriginalSize)
+                + ", projected document size: "
+                + dataSizeToString(mEstimate.getTotalSize()));
+    }
+
     /** Display current image details and projected size in the GUI */
     private void showImageDetails()
     {
@@ -542,30 +664,57 @@ public class MainWindow implements Interface, ProgressCheck {
             mImageDetailsGroup.setVisible(false);
             return;
         }
-        mOriginalResLabel.setText(info.getImageSizePx() + " px");
+        if (!info.isLoaded()) {
+            mOriginalResLabel.setText("<loading>");
+            mTargetResLabel.setText("<loading>");
+        } else {
+            try {
+                mOriginalResLabel.setText(info.getImageSizePx() + " px");
+                mTargetResLabel.setText(info.getTargetImageSizePx() + " px");
+            } catch (final IOException e) {
+                mOriginalResLabel.setText("<unreadable>");
+                mTargetResLabel.setText("<unreadable>");
+            }
+        }
         mImageSizeLabel.setText(info.getDrawSizeCm() + " cm");
-        mTargetResLabel.setText(info.getTargetImageSizePx() + " px");
         mOriginalSizeLabel.setText(dataSizeToString(info.getImageSize()));
+        final long projectedSize = mEstimate == null ? -1 : mEstimate
+                .getImageSize(info);
+        mProjectedSizeLabel.setText(projectedSize < 0 ? "<>"
+                : dataSizeToString(projectedSize));
         mImageDetailsGroup.setVisible(true);
     }
 
-    @Override
-    public void startProgress(final String title)
+    /**
+     * Show the state of mProgress in the progress monitor.
+     * 
+     * The monitor is opened when a progress starts, and closed when it ends.
+     * Cancelling the monitor cancels the progress.
+     */
+    private void updateProgressMonitor()
     {
-        try {
-            SwingUtilities.invokeAndWait(new Runnable() {
-
-                @Override
-                public void run()
-                {
-                    mframe.setEnabled(false);
-                    mProgressMonitor = new ProgressMonitor(mframe, title, "",
-                            0, 1);
-                }
-            });
-        } catch (final Exception e) {
-            throw new RuntimeException(e);
+        if (mProgressMonitor != null
+                && (!mProgress.isRunning() || mProgress
+                        .getGeneration() != mProgressGeneration)) {
+            mProgressMonitor.close();
+            mProgressMonitor = null;
+            mframe.setEnabled(true);
+        }
+        if (!mProgress.isRunning()) {
+            return;
+        }
+        if (mProgressMonitor == null) {
+            mframe.setEnabled(false);
+            mProgressGeneration = mProgress.getGeneration();
+            mProgressMonitor = new ProgressMonitor(mframe,
+                    mProgress.getTitle(), "", 0, 1);
         }
+        if (mProgressMonitor.isCanceled()) {
+            mProgress.cancel();
+        }
+        mProgressMonitor.setMaximum(mProgress.getMaxValue());
+        mProgressMonitor.setNote(mProgress.getMessage());
+        mProgressMonitor.setProgress(mProgress.getValue());
     }
 
     @Override
@@ -573,7 +722,16 @@ public class MainWindow implements Interface, ProgressCheck {
     {
         mImagesInfo = images;
         setAllImagesDPI(((Float) mTargetDPISpinner.getValue()).doubleValue());
-        refreshImagesList();
+        // Rows are updated on the event thread as images are loaded; the list
+        // must be built there too, so no update is lost
+        EventQueue.invokeLater(new Runnable() {
+
+            @Override
+            public void run()
+            {
+                refreshImagesList();
+            }
+        });
     }
 
 }
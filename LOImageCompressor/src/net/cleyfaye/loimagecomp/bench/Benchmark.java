@@ -0,0 +1,37 @@
+package net.cleyfaye.loimagecomp.bench;
+
+/**
+ * A measured operation.
+ * 
+ * setUp() is called once before measuring, run() repeatedly, and tearDown()
+ * once at the end. Only run() is timed.
+ * 
+ * @author Cley Faye
+ */
+public abstract class Benchmark {
+
+    private final String mName;
+
+    public Benchmark(final String name) {
+        mName = name;
+    }
+
+    /** Return the benchmark name */
+    public String getName()
+    {
+        return mName;
+    }
+
+    /** Run the measured operation once */
+    public abstract void run() throws Exception;
+
+    /** Prepare the data used by run() */
+    public void setUp() throws Exception
+    {
+    }
+
+    /** Release the data used by run() */
+    public void tearDown() throws Exception
+    {
+    }
+}
@@ -0,0 +1,281 @@
+package net.cleyfaye.loimagecomp.bench;
+
+import java.io.PrintStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run benchmarks and report their throughput and allocations.
+ * 
+ * Each benchmark is run for a few warmup iterations, then for measured
+ * iterations. An iteration calls the operation repeatedly until it's duration
+ * is reached.
+ * 
+ * Allocations are summed over all the threads of the JVM, so work handed to
+ * pools is counted too; threads that end before the measured iterations are
+ * done are missed. The number of garbage collections and their time are
+ * measured for the whole JVM.
+ * 
+ * @author Cley Faye
+ */
+public class BenchmarkRunner {
+
+    /**
+     * Measures of a benchmark.
+     * 
+     * @author Cley Faye
+     */
+    public static class Result {
+        private final String mName;
+        private final double[] mMsPerOp;
+        private final long mOperations;
+        private final long mElapsedNs;
+        private final long mAllocatedBytes;
+        private final long mGCCount;
+        private final long mGCTimeMs;
+
+        Result(final String name, final double[] msPerOp,
+                final long operations, final long elapsedNs,
+                final long allocatedBytes, final long gcCount,
+                final long gcTimeMs) {
+            mName = name;
+            mMsPerOp = msPerOp;
+            mOperations = operations;
+            mElapsedNs = elapsedNs;
+            mAllocatedBytes = allocatedBytes;
+            mGCCount = gcCount;
+            mGCTimeMs = gcTimeMs;
+        }
+
+        /** Return the allocated bytes per operation, or -1 if not measured */
+        public double getAllocatedBytesPerOp()
+        {
+            return mAllocatedBytes < 0 ? -1 : (double) mAllocatedBytes
+                    / mOperations;
+        }
+
+        /** Return the allocation rate in MB/s, or -1 if not measured */
+        public double getAllocationRate()
+        {
+            return mAllocatedBytes < 0 ? -1 : mAllocatedBytes * 1e9
+                    / mElapsedNs / (1024 * 1024);
+        }
+
+        /** Return the number of garbage collections while measuring */
+        public long getGCCount()
+        {
+            return mGCCount;
+        }
+
+        /** Return the time spent in garbage collections while measuring */
+        public long getGCTimeMs()
+        {
+            return mGCTimeMs;
+        }
+
+        /** Return the mean time of an operation, in ms */
+        public double getMsPerOp()
+        {
+            double sum = 0;
+            for (final double value : mMsPerOp) {
+                sum += value;
+            }
+            return sum / mMsPerOp.length;
+        }
+
+        /** Return the standard deviation of the iterations means, in ms */
+        public double getMsPerOpDeviation()
+        {
+            final double mean = getMsPerOp();
+            double sum = 0;
+            for (final double value : mMsPerOp) {
+                sum += (value - mean) * (value - mean);
+            }
+            return Math.sqrt(sum / mMsPerOp.length);
+        }
+
+        public String getName()
+        {
+            return mName;
+        }
+
+        /** Return the number of operations per second */
+        public double getThroughput()
+        {
+            return mOperations * 1e9 / mElapsedNs;
+        }
+    }
+
+    private static final String ROW_FORMAT = "%-32s %10s %16s %12s %10s %6s %8s%n";
+
+    /** Number of warmup iterations */
+    private int mWarmupIterations = 2;
+    /** Number of measured iterations */
+    private int mIterations = 5;
+    /** Duration of an iteration, in ms */
+    private long mIterationTime = 1000;
+
+    /** Print the header of the results table */
+    public void printHeader(final PrintStream output)
+    {
+        output.printf(Locale.ROOT, ROW_FORMAT, "Benchmark", "ops/s",
+                "ms/op", "alloc B/op", "MB/s", "GCs", "GC ms");
+    }
+
+    /** Print a row of the results table */
+    public void printResult(final PrintStream output, final Result result)
+    {
+        output.printf(Locale.ROOT, ROW_FORMAT, result.getName(),
+                String.format(Locale.ROOT, "%.2f", result.getThroughput()),
+                String.format(Locale.ROOT, "%.3f +/- %.3f", result.getMsPerOp(),
+                        result.getMsPerOpDeviation()),
+                result.getAllocatedBytesPerOp() < 0 ? "n/a" : String.format(
+                        Locale.ROOT, "%.0f", result.getAllocatedBytesPerOp()),
+                result.getAllocationRate() < 0 ? "n/a" : String.format(
+                        Locale.ROOT, "%.1f", result.getAllocationRate()),
+                Long.toString(result.getGCCount()),
+                Long.toString(result.getGCTimeMs()));
+    }
+
+    /**
+     * Measure a benchmark.
+     * 
+     * @param benchmark
+     *            The benchmark. It is set up and torn down by this method.
+     * @return The measures
+     */
+    public Result run(final Benchmark benchmark) throws Exception
+    {
+        final com.sun.management.ThreadMXBean threads = getAllocationBean();
+        benchmark.setUp();
+        try {
+            for (int i = 0; i < mWarmupIterations; ++i) {
+                runIteration(benchmark);
+            }
+            System.gc();
+            final double[] msPerOp = new double[mIterations];
+            long operations = 0;
+            long elapsedNs = 0;
+            final Map<Long, Long> allocatedStart = getAllocatedBytes(threads);
+            final long gcCountStart = getGCCount();
+            final long gcTimeStart = getGCTime();
+            for (int i = 0; i < mIterations; ++i) {
+                final long startNs = System.nanoTime();
+                final long count = runIteration(benchmark);
+                final long iterationNs = System.nanoTime() - startNs;
+                msPerOp[i] = iterationNs / 1e6 / count;
+                operations += count;
+                elapsedNs += iterationNs;
+            }
+            long allocated = -1;
+            if (threads != null) {
+                allocated = 0;
+                for (final Map.Entry<Long, Long> thread : getAllocatedBytes(
+                        threads).entrySet()) {
+                    final Long start = allocatedStart.get(thread.getKey());
+                    allocated += thread.getValue()
+                            - (start == null ? 0 : start);
+                }
+            }
+            return new Result(benchmark.getName(), msPerOp, operations,
+                    elapsedNs, allocated, getGCCount() - gcCountStart,
+                    getGCTime() - gcTimeStart);
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    public void setIterations(final int iterations)
+    {
+        mIterations = Math.max(1, iterations);
+    }
+
+    public void setIterationTime(final long time, final TimeUnit unit)
+    {
+        mIterationTime = unit.toMillis(time);
+    }
+
+    public void setWarmupIterations(final int warmupIterations)
+    {
+        mWarmupIterations = Math.max(0, warmupIterations);
+    }
+
+    /**
+     * Return the bytes allocated by each live thread, by thread id.
+     * 
+     * @param threads
+     *            The bean measuring allocations; can be null
+     */
+    private Map<Long, Long> getAllocatedBytes(
+            final com.sun.management.ThreadMXBean threads)
+    {
+        final Map<Long, Long> result = new HashMap<>();
+        if (threads == null) {
+            return result;
+        }
+        final long[] ids = threads.getAllThreadIds();
+        final long[] allocated = threads.getThreadAllocatedBytes(ids);
+        for (int i = 0; i < ids.length; ++i) {
+            // -1 if the thread ended meanwhile
+            if (allocated[i] >= 0) {
+                result.put(ids[i], allocated[i]);
+            }
+        }
+        return result;
+    }
+
+    /** Return the bean measuring thread allocations, or null if unavailable */
+    private com.sun.management.ThreadMXBean getAllocationBean()
+    {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory
+                .getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        final com.sun.management.ThreadMXBean result = (com.sun.management.ThreadMXBean) bean;
+        if (!result.isThreadAllocatedMemorySupported()) {
+            return null;
+        }
+        result.setThreadAllocatedMemoryEnabled(true);
+        return result;
+    }
+
+    /** Return the total number of garbage collections */
+    private long getGCCount()
+    {
+        long result = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            result += Math.max(0, bean.getCollectionCount());
+        }
+        return result;
+    }
+
+    /** Return the total time spent in garbage collections, in ms */
+    private long getGCTime()
+    {
+        long result = 0;
+        for (final GarbageCollectorMXBean bean : ManagementFactory
+                .getGarbageCollectorMXBeans()) {
+            result += Math.max(0, bean.getCollectionTime());
+        }
+        return result;
+    }
+
+    /** Run the operation until the iteration time is reached */
+    private long runIteration(final Benchmark benchmark) throws Exception
+    {
+        final long endNs = System.nanoTime()
+                + TimeUnit.MILLISECONDS.toNanos(mIterationTime);
+        long count = 0;
+        do {
+            benchmark.run();
+            ++count;
+        } while (System.nanoTime() < endNs);
+        return count;
+    }
+}
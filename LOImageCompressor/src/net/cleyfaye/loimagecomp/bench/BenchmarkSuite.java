@@ -0,0 +1,444 @@
+package net.cleyfaye.loimagecomp.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import net.cleyfaye.loimagecomp.bench.CorpusGenerator.ImageKind;
+import net.cleyfaye.loimagecomp.bench.CorpusGenerator.ReferencePattern;
+import net.cleyfaye.loimagecomp.imagecompress.DownsampleImageFilter;
+import net.cleyfaye.loimagecomp.imagecompress.ImageInfo;
+import net.cleyfaye.loimagecomp.imagecompress.ODTFile;
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.Controller.SampleQuality;
+import net.cleyfaye.loimagecomp.utils.Utils;
+import net.cleyfaye.loimagecomp.utils.XMLRewriter;
+
+import org.w3c.dom.Document;
+
+/**
+ * Benchmarks of the load, resize, encode and save paths.
+ * 
+ * Documents are generated in a temporary directory at startup, from the
+ * command line parameters (picture count, megapixels, XML size and seed).
+ * Pictures are drawn at 180 DPI and resized to 90 DPI. An extra document
+ * holds many tiny icons, to measure the cost of loading many pictures.
+ * 
+ * @author Cley Faye
+ */
+public class BenchmarkSuite {
+
+    /**
+     * Discard everything written.
+     * 
+     * @author Cley Faye
+     */
+    private static class NullOutputStream extends OutputStream {
+        @Override
+        public void write(final byte[] b, final int off, final int len)
+        {
+        }
+
+        @Override
+        public void write(final int b)
+        {
+        }
+    }
+
+    /**
+     * Prepare all pictures of a document with a given scaling method.
+     * 
+     * @author Cley Faye
+     */
+    private static class PrepareBenchmark extends Benchmark {
+        private final File mDocument;
+        private final SampleQuality mSampleQuality;
+        private ODTFile mODTFile;
+        private DownsampleImageFilter mFilter;
+
+        public PrepareBenchmark(final String name, final File document,
+                final SampleQuality sampleQuality) {
+            super(name);
+            mDocument = document;
+            mSampleQuality = sampleQuality;
+        }
+
+        @Override
+        public void run() throws Exception
+        {
+            for (final ImageInfo info : mODTFile.getAllImageInfo()) {
+                mFilter.prepareImage(info);
+                mFilter.getImageData(info, NULL_OUTPUT);
+            }
+        }
+
+        @Override
+        public void setUp() throws Exception
+        {
+            mODTFile = openDocument(mDocument);
+            mFilter = new DownsampleImageFilter(80, mSampleQuality, false);
+        }
+
+        @Override
+        public void tearDown() throws Exception
+        {
+            mODTFile.close();
+        }
+    }
+
+    private static final OutputStream NULL_OUTPUT = new NullOutputStream();
+    /**
+     * Document checked by checkRewriter(), with characters that must be
+     * escaped
+     */
+    private static final String REWRITER_SAMPLE = "<?xml version=\"1.0\"?>"
+            + "<a xmlns=\"urn:a\" xmlns:x=\"urn:x\">"
+            + "<x:b x:v=\"a&#10;b&#9;c&#13;d &lt;&amp;&quot;'&gt;\"/>"
+            + "t&#13;u\r\nv&lt;&amp;&gt;\"'<!-- c --><?p d?>"
+            + "<![CDATA[<&>]]><x:c> </x:c></a>";
+    /** Target resolution of pictures */
+    private static final double TARGET_DPI = 90;
+
+    private static final String USAGE = "Usage: BenchmarkSuite [options]\n"
+            + "\n"
+            + "Options:\n"
+            + "  --images <count>       Pictures per document (default: 8)\n"
+            + "  --megapixels <count>   Size of each picture (default: 2)\n"
+            + "  --xml-size <KB>        Size of content.xml (default: 4096)\n"
+            + "  --seed <number>        Seed of generated documents (default: 0)\n"
+            + "  --warmup <count>       Warmup iterations (default: 2)\n"
+            + "  --iterations <count>   Measured iterations (default: 5)\n"
+            + "  --time <ms>            Duration of an iteration (default: 1000)\n"
+            + "  --filter <regex>       Only run matching benchmarks\n"
+            + "  --list                 List benchmarks and exit\n";
+
+    public static void main(final String[] args) throws Exception
+    {
+        int imageCount = 8;
+        double megapixels = 2;
+        long seed = 0;
+        final BenchmarkRunner runner = new BenchmarkRunner();
+        int xmlSize = 4096 * 1024;
+        Pattern filter = null;
+        boolean list = false;
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                if (args[i].equals("--list")) {
+                    list = true;
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for "
+                            + args[i]);
+                }
+                final String value = args[++i];
+                switch (args[i - 1]) {
+                case "--images":
+                    imageCount = Integer.parseInt(value);
+                    break;
+                case "--megapixels":
+                    megapixels = Double.parseDouble(value);
+                    break;
+                case "--xml-size":
+                    xmlSize = Integer.parseInt(value) * 1024;
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                case "--warmup":
+                    runner.setWarmupIterations(Integer.parseInt(value));
+                    break;
+                case "--iterations":
+                    runner.setIterations(Integer.parseInt(value));
+                    break;
+                case "--time":
+                    runner.setIterationTime(Long.parseLong(value),
+                            TimeUnit.MILLISECONDS);
+                    break;
+                case "--filter":
+                    filter = Pattern.compile(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: "
+                            + args[i - 1]);
+                }
+            }
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+
+        final File directory = Files.createTempDirectory("loimgcomp-bench")
+                .toFile();
+        try {
+            final File jpegFile = new File(directory, "jpeg.odt");
+            final File pngFile = new File(directory, "png.odt");
+            final File xmlFile = new File(directory, "xml.odt");
+            final File iconsFile = new File(directory, "icons.odt");
+            final List<Benchmark> benchmarks = createBenchmarks(jpegFile,
+                    pngFile, xmlFile, iconsFile, new File(directory,
+                            "copy.odt"));
+            final List<Benchmark> selected = new ArrayList<>();
+            for (final Benchmark benchmark : benchmarks) {
+                if (filter == null
+                        || filter.matcher(benchmark.getName()).find()) {
+                    selected.add(benchmark);
+                }
+            }
+            if (list) {
+                for (final Benchmark benchmark : selected) {
+                    System.out.println(benchmark.getName());
+                }
+                return;
+            }
+            System.out.println(String.format(Locale.ROOT,
+                    "Generating documents: %d pictures of %.1f MP, %d KB XML",
+                    imageCount, megapixels, xmlSize / 1024));
+            final long pixels = (long) (megapixels * 1e6);
+            createUniform(ImageKind.PHOTO, imageCount, pixels, seed).write(
+                    jpegFile);
+            createUniform(ImageKind.GRAPHIC, imageCount, pixels, seed)
+                    .write(pngFile);
+            final CorpusGenerator xmlDocument = createUniform(
+                    ImageKind.PHOTO, 0, pixels, seed);
+            xmlDocument.setXMLSize(xmlSize);
+            xmlDocument.write(xmlFile);
+            final CorpusGenerator iconsDocument = CorpusGenerator
+                    .createIcons();
+            iconsDocument.setSeed(seed);
+            iconsDocument.write(iconsFile);
+            runner.printHeader(System.out);
+            for (final Benchmark benchmark : selected) {
+                runner.printResult(System.out, runner.run(benchmark));
+            }
+        } finally {
+            for (final File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    /**
+     * Check that a rewriter without replacements keeps a document unchanged.
+     * 
+     * Both documents are parsed and compared, so values changed by the XML
+     * normalization of the output are found. CDATA sections are compared as
+     * text, since the rewriter may write them as escaped text.
+     * 
+     * @throws IOException
+     *             If the documents are different
+     */
+    private static void checkRewriter(final XMLRewriter rewriter,
+            final byte[] content) throws Exception
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        rewriter.rewrite(new ByteArrayInputStream(content), output);
+        final Document original = parse(new ByteArrayInputStream(content),
+                true);
+        final Document rewritten = parse(new ByteArrayInputStream(output
+                .toByteArray()), true);
+        if (!original.getDocumentElement().isEqualNode(
+                rewritten.getDocumentElement())) {
+            throw new IOException("XMLRewriter changed the document");
+        }
+    }
+
+    /** Create all benchmarks */
+    private static List<Benchmark> createBenchmarks(final File jpegFile,
+            final File pngFile, final File xmlFile, final File iconsFile,
+            final File copyFile)
+    {
+        final List<Benchmark> result = new ArrayList<>();
+        result.add(new Benchmark("open-icons") {
+
+            @Override
+            public void run() throws Exception
+            {
+                openDocumentAndWait(iconsFile).close();
+            }
+        });
+        final File[] documents = { jpegFile, pngFile };
+        final String[] suffixes = { "jpeg", "png" };
+        for (int i = 0; i < documents.length; ++i) {
+            final File document = documents[i];
+            final String suffix = suffixes[i];
+            result.add(new Benchmark("open-" + suffix) {
+
+                @Override
+                public void run() throws Exception
+                {
+                    openDocumentAndWait(document).close();
+                }
+            });
+            for (final SampleQuality sampleQuality : SampleQuality.values()) {
+                result.add(new PrepareBenchmark("prepare-"
+                        + sampleQuality.getShortName() + "-" + suffix,
+                        document, sampleQuality));
+            }
+            result.add(new Benchmark("copy-" + suffix) {
+
+                @Override
+                public void run() throws Exception
+                {
+                    try (ODTFile odtFile = openDocument(document)) {
+                        odtFile.createCopy(copyFile, new DownsampleImageFilter(
+                                80, SampleQuality.SQ_SMOOTH, false), null);
+                    }
+                }
+            });
+        }
+        result.add(new Benchmark("xml-cloneDOM") {
+            private Document mDocument;
+
+            @Override
+            public void run() throws Exception
+            {
+                Utils.cloneDOM(mDocument);
+            }
+
+            @Override
+            public void setUp() throws Exception
+            {
+                mDocument = parseContent(xmlFile);
+            }
+        });
+        result.add(new Benchmark("xml-saveDOM") {
+            private Document mDocument;
+
+            @Override
+            public void run() throws Exception
+            {
+                Utils.saveDOM(mDocument, NULL_OUTPUT);
+            }
+
+            @Override
+            public void setUp() throws Exception
+            {
+                mDocument = parseContent(xmlFile);
+            }
+        });
+        result.add(new Benchmark("xml-rewrite") {
+            private byte[] mContent;
+            private XMLRewriter mRewriter;
+
+            @Override
+            public void run() throws Exception
+            {
+                mRewriter.rewrite(new ByteArrayInputStream(mContent),
+                        NULL_OUTPUT);
+            }
+
+            @Override
+            public void setUp() throws Exception
+            {
+                try (ODTFile odtFile = new ODTFile(xmlFile, null);
+                        InputStream input = odtFile.openEntry("content.xml")) {
+                    mContent = readAll(input);
+                }
+                mRewriter = new XMLRewriter(Collections.singleton(new QName(
+                        "http://www.w3.org/1999/xlink", "href")),
+                        Collections.<String, String> emptyMap());
+                checkRewriter(mRewriter,
+                        REWRITER_SAMPLE.getBytes(Charset.forName("UTF-8")));
+                checkRewriter(mRewriter, mContent);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Create a generator of pictures with the same kind and size, each
+     * referenced once from content.xml
+     */
+    private static CorpusGenerator createUniform(final ImageKind kind,
+            final int imageCount, final long pixels, final long seed)
+    {
+        final CorpusGenerator result = new CorpusGenerator();
+        result.addImageKind(kind, 1);
+        result.addImageSize(pixels, pixels, 1);
+        result.addReferencePattern(ReferencePattern.CONTENT, 1);
+        result.setDrawResolution(TARGET_DPI * 2, TARGET_DPI * 2);
+        result.setImageCount(imageCount);
+        result.setSeed(seed);
+        return result;
+    }
+
+    /** Open a document and set the target resolution of it's pictures */
+    private static ODTFile openDocument(final File document) throws Exception
+    {
+        final ODTFile result = new ODTFile(document, null);
+        for (final ImageInfo info : result.getAllImageInfo()) {
+            info.setTargetDPI(TARGET_DPI);
+        }
+        return result;
+    }
+
+    /**
+     * Open a document and wait until it's pictures headers are read.
+     * 
+     * Headers are read in the background; without waiting, close() would
+     * cancel most of them.
+     */
+    private static ODTFile openDocumentAndWait(final File document)
+            throws Exception
+    {
+        final ODTFile result = openDocument(document);
+        for (final ImageInfo info : result.getAllImageInfo()) {
+            if (info.isEmbedded()) {
+                info.getImageSizePx();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Parse an XML document.
+     * 
+     * @param coalescing
+     *            If true, CDATA sections are merged with the text around them
+     */
+    private static Document parse(final InputStream input,
+            final boolean coalescing) throws Exception
+    {
+        final DocumentBuilderFactory factory = DocumentBuilderFactory
+                .newInstance();
+        factory.setNamespaceAware(true);
+        factory.setCoalescing(coalescing);
+        return factory.newDocumentBuilder().parse(input);
+    }
+
+    /** Parse content.xml of a document */
+    private static Document parseContent(final File document)
+            throws Exception
+    {
+        try (ODTFile odtFile = new ODTFile(document, null);
+                InputStream input = odtFile.openEntry("content.xml")) {
+            return parse(input, false);
+        }
+    }
+
+    /** Read a whole stream */
+    private static byte[] readAll(final InputStream input) throws IOException
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        Utils.copyStream(input, output);
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,666 @@
+package net.cleyfaye.loimagecomp.bench;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import net.cleyfaye.loimagecomp.imagecompress.ImageEncoder;
+import net.cleyfaye.loimagecomp.imagecompress.ImageEncoder.Format;
+
+/**
+ * Write ODT files with generated pictures, for benchmarks and load tests.
+ * 
+ * Each picture gets a kind, a size and a reference pattern, picked from
+ * weighted distributions. Sizes are picked log-uniformly in a range of
+ * pixel counts, with an aspect ratio between 1:2 and 2:1. The draw size is
+ * computed from a resolution picked in a range, so some pictures are larger
+ * than needed and others are not.
+ * 
+ * Filler paragraphs can be added to make content.xml larger.
+ * 
+ * The output only depends on the settings and the seed; two runs with the
+ * same settings give identical files.
+ * 
+ * @author Cley Faye
+ */
+public class CorpusGenerator {
+
+    /**
+     * Kinds of generated pictures.
+     * 
+     * @author Cley Faye
+     */
+    public static enum ImageKind {
+        /** Smooth shapes with noise, as JPEG */
+        PHOTO(Format.JPEG),
+        /** Dark strokes on a light background, as JPEG */
+        SCAN(Format.JPEG),
+        /** Flat blocks of a few colors, as PNG */
+        GRAPHIC(Format.PNG),
+        /** Flat shapes over a transparent background, as PNG */
+        TRANSPARENT(Format.PNG);
+
+        private final Format mFormat;
+
+        private ImageKind(final Format format) {
+            mFormat = format;
+        }
+
+        public Format getFormat()
+        {
+            return mFormat;
+        }
+    }
+
+    /**
+     * Ways a picture is referenced from the document.
+     * 
+     * @author Cley Faye
+     */
+    public static enum ReferencePattern {
+        /** One frame in content.xml */
+        CONTENT,
+        /** One frame in a page header, in styles.xml */
+        STYLES,
+        /** One frame in content.xml and a fill image in styles.xml */
+        SHARED,
+        /** One frame in content.xml, without svg:width and svg:height */
+        NO_SIZE,
+        /** Three frames in content.xml, with different draw sizes */
+        REPEATED
+    }
+
+    /**
+     * Weighted random choice.
+     * 
+     * @author Cley Faye
+     */
+    private static class Choice<T> {
+        private final List<T> mValues = new ArrayList<>();
+        private final List<Double> mWeights = new ArrayList<>();
+        private double mTotal = 0;
+
+        public void add(final T value, final double weight)
+        {
+            if (!(weight > 0)) {
+                throw new IllegalArgumentException("Invalid weight: " + weight);
+            }
+            mValues.add(value);
+            mWeights.add(weight);
+            mTotal += weight;
+        }
+
+        public boolean isEmpty()
+        {
+            return mValues.isEmpty();
+        }
+
+        public T pick(final Random random)
+        {
+            double value = random.nextDouble() * mTotal;
+            for (int i = 0; i < mValues.size() - 1; ++i) {
+                value -= mWeights.get(i);
+                if (value < 0) {
+                    return mValues.get(i);
+                }
+            }
+            return mValues.get(mValues.size() - 1);
+        }
+    }
+
+    /**
+     * A generated picture.
+     * 
+     * @author Cley Faye
+     */
+    private static class ImageSpec {
+        private String mPath;
+        private ImageKind mKind;
+        private ReferencePattern mPattern;
+        private int mWidth;
+        private int mHeight;
+        /** Draw size, in cm */
+        private double mDrawWidth;
+        private double mDrawHeight;
+        /** Seed of the picture content */
+        private long mSeed;
+    }
+
+    /**
+     * A range of picture sizes.
+     * 
+     * @author Cley Faye
+     */
+    private static class SizeRange {
+        private final long mMinPixels;
+        private final long mMaxPixels;
+
+        public SizeRange(final long minPixels, final long maxPixels) {
+            mMinPixels = minPixels;
+            mMaxPixels = maxPixels;
+        }
+    }
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String MIME_TYPE = "application/vnd.oasis.opendocument.text";
+    private static final String FILLER = "Lorem ipsum dolor sit amet, consectetur adipiscing elit, sed do eiusmod tempor incididunt ut labore et dolore magna aliqua.";
+    /** Time of all archive entries, so the output is reproducible */
+    private static final long ENTRY_TIME = 946684800000L; // 2000-01-01
+    private static final String NAMESPACES = " xmlns:office=\"urn:oasis:names:tc:opendocument:xmlns:office:1.0\""
+            + " xmlns:style=\"urn:oasis:names:tc:opendocument:xmlns:style:1.0\""
+            + " xmlns:text=\"urn:oasis:names:tc:opendocument:xmlns:text:1.0\""
+            + " xmlns:draw=\"urn:oasis:names:tc:opendocument:xmlns:drawing:1.0\""
+            + " xmlns:svg=\"urn:oasis:names:tc:opendocument:xmlns:svg-compatible:1.0\""
+            + " xmlns:xlink=\"http://www.w3.org/1999/xlink\""
+            + " office:version=\"1.2\"";
+
+    private static final String USAGE = "Usage: CorpusGenerator [options] <output.odt>\n"
+            + "\n"
+            + "Options:\n"
+            + "  --preset <name>        icons, scans or mixed (default: mixed)\n"
+            + "  --images <count>       Number of pictures\n"
+            + "  --xml-size <KB>        Minimum size of content.xml\n"
+            + "  --seed <number>        Random seed (default: 0)\n";
+
+    /** Many pictures of various kinds, sizes and reference patterns */
+    public static CorpusGenerator createMixed()
+    {
+        final CorpusGenerator result = new CorpusGenerator();
+        result.setImageCount(100);
+        result.addImageKind(ImageKind.PHOTO, 4);
+        result.addImageKind(ImageKind.SCAN, 1);
+        result.addImageKind(ImageKind.GRAPHIC, 3);
+        result.addImageKind(ImageKind.TRANSPARENT, 2);
+        result.addImageSize(32 * 32, 128 * 128, 2);
+        result.addImageSize(200000, 2000000, 5);
+        result.addImageSize(4000000, 16000000, 2);
+        result.addReferencePattern(ReferencePattern.CONTENT, 6);
+        result.addReferencePattern(ReferencePattern.STYLES, 1);
+        result.addReferencePattern(ReferencePattern.SHARED, 1);
+        result.addReferencePattern(ReferencePattern.NO_SIZE, 1);
+        result.addReferencePattern(ReferencePattern.REPEATED, 1);
+        return result;
+    }
+
+    /** A few very large scanned pages */
+    public static CorpusGenerator createScans()
+    {
+        final CorpusGenerator result = new CorpusGenerator();
+        result.setImageCount(20);
+        result.addImageKind(ImageKind.SCAN, 1);
+        result.addImageSize(20000000, 40000000, 1);
+        result.addReferencePattern(ReferencePattern.CONTENT, 1);
+        result.setDrawResolution(200, 600);
+        return result;
+    }
+
+    /** Many tiny icons */
+    public static CorpusGenerator createIcons()
+    {
+        final CorpusGenerator result = new CorpusGenerator();
+        result.setImageCount(5000);
+        result.addImageKind(ImageKind.GRAPHIC, 1);
+        result.addImageKind(ImageKind.TRANSPARENT, 1);
+        result.addImageSize(16 * 16, 64 * 64, 1);
+        result.addReferencePattern(ReferencePattern.CONTENT, 8);
+        result.addReferencePattern(ReferencePattern.REPEATED, 2);
+        result.setDrawResolution(72, 150);
+        return result;
+    }
+
+    public static void main(final String[] args) throws IOException
+    {
+        CorpusGenerator generator = createMixed();
+        int imageCount = -1;
+        int xmlSize = -1;
+        long seed = 0;
+        File output = null;
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                if (!args[i].startsWith("--")) {
+                    if (output != null) {
+                        throw new IllegalArgumentException(
+                                "Only one output file can be given");
+                    }
+                    output = new File(args[i]);
+                    continue;
+                }
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for "
+                            + args[i]);
+                }
+                final String value = args[++i];
+                switch (args[i - 1]) {
+                case "--preset":
+                    switch (value) {
+                    case "icons":
+                        generator = createIcons();
+                        break;
+                    case "scans":
+                        generator = createScans();
+                        break;
+                    case "mixed":
+                        generator = createMixed();
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown preset: "
+                                + value);
+                    }
+                    break;
+                case "--images":
+                    imageCount = Integer.parseInt(value);
+                    break;
+                case "--xml-size":
+                    xmlSize = Integer.parseInt(value) * 1024;
+                    break;
+                case "--seed":
+                    seed = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: "
+                            + args[i - 1]);
+                }
+            }
+            if (output == null) {
+                throw new IllegalArgumentException("No output file given");
+            }
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        if (imageCount >= 0) {
+            generator.setImageCount(imageCount);
+        }
+        if (xmlSize >= 0) {
+            generator.setXMLSize(xmlSize);
+        }
+        generator.setSeed(seed);
+        generator.write(output);
+    }
+
+    /** Format a length in cm for an XML attribute */
+    private static String formatLength(final double cm)
+    {
+        return String.format(Locale.ROOT, "%.3fcm", cm);
+    }
+
+    private final Choice<ImageKind> mKinds = new Choice<>();
+    private final Choice<SizeRange> mSizes = new Choice<>();
+    private final Choice<ReferencePattern> mPatterns = new Choice<>();
+    /** Number of pictures */
+    private int mImageCount = 10;
+    /** Minimum size of content.xml, in bytes */
+    private int mXMLSize = 0;
+    /** Resolution range used to compute draw sizes, in DPI */
+    private double mMinDrawResolution = 72;
+    private double mMaxDrawResolution = 300;
+    private long mSeed = 0;
+
+    /** Add a picture kind, with it's relative weight */
+    public void addImageKind(final ImageKind kind, final double weight)
+    {
+        mKinds.add(kind, weight);
+    }
+
+    /**
+     * Add a range of picture sizes.
+     * 
+     * @param minPixels
+     *            Minimum number of pixels
+     * @param maxPixels
+     *            Maximum number of pixels
+     * @param weight
+     *            Relative weight of the range
+     */
+    public void addImageSize(final long minPixels, final long maxPixels,
+            final double weight)
+    {
+        if (minPixels < 1 || maxPixels < minPixels) {
+            throw new IllegalArgumentException("Invalid size range");
+        }
+        mSizes.add(new SizeRange(minPixels, maxPixels), weight);
+    }
+
+    /** Add a reference pattern, with it's relative weight */
+    public void addReferencePattern(final ReferencePattern pattern,
+            final double weight)
+    {
+        mPatterns.add(pattern, weight);
+    }
+
+    public int getImageCount()
+    {
+        return mImageCount;
+    }
+
+    /**
+     * Set the resolution range used to compute draw sizes.
+     * 
+     * @param min
+     *            Minimum resolution, in DPI
+     * @param max
+     *            Maximum resolution, in DPI
+     */
+    public void setDrawResolution(final double min, final double max)
+    {
+        mMinDrawResolution = min;
+        mMaxDrawResolution = max;
+    }
+
+    public void setImageCount(final int imageCount)
+    {
+        mImageCount = imageCount;
+    }
+
+    public void setSeed(final long seed)
+    {
+        mSeed = seed;
+    }
+
+    /** Set the minimum size of content.xml, in bytes */
+    public void setXMLSize(final int xmlSize)
+    {
+        mXMLSize = xmlSize;
+    }
+
+    /** Write a document */
+    public void write(final File target) throws IOException
+    {
+        final List<ImageSpec> images = createSpecs();
+        try (ZipOutputStream output = new ZipOutputStream(
+                new FileOutputStream(target))) {
+            final byte[] mimeType = MIME_TYPE.getBytes(UTF8);
+            final ZipEntry mimeTypeEntry = createEntry("mimetype");
+            mimeTypeEntry.setMethod(ZipEntry.STORED);
+            mimeTypeEntry.setSize(mimeType.length);
+            final CRC32 crc = new CRC32();
+            crc.update(mimeType);
+            mimeTypeEntry.setCrc(crc.getValue());
+            output.putNextEntry(mimeTypeEntry);
+            output.write(mimeType);
+            output.closeEntry();
+
+            final Writer writer = new OutputStreamWriter(output, UTF8);
+            output.putNextEntry(createEntry("content.xml"));
+            writeContent(writer, images);
+            writer.flush();
+            output.closeEntry();
+
+            output.putNextEntry(createEntry("styles.xml"));
+            writeStyles(writer, images);
+            writer.flush();
+            output.closeEntry();
+
+            output.putNextEntry(createEntry("META-INF/manifest.xml"));
+            writeManifest(writer, images);
+            writer.flush();
+            output.closeEntry();
+
+            final ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+            for (final ImageSpec image : images) {
+                encoded.reset();
+                ImageEncoder.encode(createImage(image), image.mKind
+                        .getFormat(), 90, encoded);
+                output.putNextEntry(createEntry(image.mPath));
+                encoded.writeTo(output);
+                output.closeEntry();
+            }
+        }
+    }
+
+    /** Create an archive entry */
+    private ZipEntry createEntry(final String name)
+    {
+        final ZipEntry result = new ZipEntry(name);
+        result.setTime(ENTRY_TIME);
+        return result;
+    }
+
+    /** Generate a picture */
+    private BufferedImage createImage(final ImageSpec spec)
+    {
+        final Random random = new Random(spec.mSeed);
+        final int width = spec.mWidth;
+        final int height = spec.mHeight;
+        final BufferedImage result = new BufferedImage(width, height,
+                spec.mKind == ImageKind.TRANSPARENT ? BufferedImage.TYPE_INT_ARGB
+                        : BufferedImage.TYPE_INT_RGB);
+        final int[] row = new int[width];
+        switch (spec.mKind) {
+        case PHOTO: {
+            // Smooth shapes with some noise
+            final double fx = (1 + random.nextInt(8)) * Math.PI / width;
+            final double fy = (1 + random.nextInt(8)) * Math.PI / height;
+            final int tint = random.nextInt(0x1000000);
+            for (int y = 0; y < height; ++y) {
+                for (int x = 0; x < width; ++x) {
+                    final double base = (Math.sin(x * fx) * Math.cos(y * fy) + 1) * 100;
+                    final int value = (int) base + random.nextInt(32);
+                    row[x] = (value << 16 | value << 8 | value) ^ tint;
+                }
+                result.setRGB(0, y, width, 1, row, 0, width);
+            }
+            break;
+        }
+        case SCAN: {
+            // Lines of dark strokes on paper, with some noise
+            final int lineHeight = Math.max(4, height / 60);
+            int stroke = 0;
+            for (int y = 0; y < height; ++y) {
+                final boolean inLine = y % (lineHeight * 2) < lineHeight;
+                for (int x = 0; x < width; ++x) {
+                    if (inLine && stroke == 0 && random.nextInt(8) == 0) {
+                        stroke = 1 + random.nextInt(lineHeight);
+                    }
+                    final int value;
+                    if (inLine && stroke > 0) {
+                        --stroke;
+                        value = 20 + random.nextInt(40);
+                    } else {
+                        value = 225 + random.nextInt(30);
+                    }
+                    row[x] = value << 16 | value << 8 | value;
+                }
+                stroke = 0;
+                result.setRGB(0, y, width, 1, row, 0, width);
+            }
+            break;
+        }
+        case GRAPHIC:
+        case TRANSPARENT: {
+            // Flat blocks of a few colors; transparent pictures get a
+            // transparent background around an ellipse
+            final int[] colors = new int[4 + random.nextInt(12)];
+            for (int i = 0; i < colors.length; ++i) {
+                colors[i] = 0xFF000000 | random.nextInt(0x1000000);
+            }
+            final int block = Math.max(2, Math.min(width, height) / 8);
+            final int[] blockColors = new int[(width + block - 1) / block];
+            final double cx = width / 2.0;
+            final double cy = height / 2.0;
+            for (int y = 0; y < height; ++y) {
+                if (y % block == 0) {
+                    for (int i = 0; i < blockColors.length; ++i) {
+                        blockColors[i] = colors[random.nextInt(colors.length)];
+                    }
+                }
+                for (int x = 0; x < width; ++x) {
+                    row[x] = blockColors[x / block];
+                    if (spec.mKind == ImageKind.TRANSPARENT) {
+                        final double dx = (x - cx) / cx;
+                        final double dy = (y - cy) / cy;
+                        if (dx * dx + dy * dy > 1) {
+                            row[x] = 0;
+                        }
+                    }
+                }
+                result.setRGB(0, y, width, 1, row, 0, width);
+            }
+            break;
+        }
+        }
+        return result;
+    }
+
+    /** Pick the settings of all pictures */
+    private List<ImageSpec> createSpecs()
+    {
+        if (mKinds.isEmpty() || mSizes.isEmpty() || mPatterns.isEmpty()) {
+            throw new IllegalStateException(
+                    "Picture kinds, sizes and reference patterns must be set");
+        }
+        final Random random = new Random(mSeed);
+        final List<ImageSpec> result = new ArrayList<>(mImageCount);
+        for (int i = 0; i < mImageCount; ++i) {
+            final ImageSpec spec = new ImageSpec();
+            spec.mKind = mKinds.pick(random);
+            spec.mPattern = mPatterns.pick(random);
+            final SizeRange size = mSizes.pick(random);
+            final double pixels = Math.exp(Math.log(size.mMinPixels)
+                    + random.nextDouble()
+                    * (Math.log(size.mMaxPixels) - Math.log(size.mMinPixels)));
+            final double aspect = Math.exp((random.nextDouble() * 2 - 1)
+                    * Math.log(2));
+            spec.mWidth = Math.max(1,
+                    (int) Math.round(Math.sqrt(pixels * aspect)));
+            spec.mHeight = Math.max(1,
+                    (int) Math.round(Math.sqrt(pixels / aspect)));
+            final double resolution = mMinDrawResolution + random.nextDouble()
+                    * (mMaxDrawResolution - mMinDrawResolution);
+            spec.mDrawWidth = spec.mWidth / resolution * 2.54;
+            spec.mDrawHeight = spec.mHeight / resolution * 2.54;
+            spec.mSeed = random.nextLong();
+            spec.mPath = "Pictures/image" + i + "."
+                    + spec.mKind.getFormat().getSuffix();
+            result.add(spec);
+        }
+        return result;
+    }
+
+    /** Return a paragraph with a frame showing a picture */
+    private String getFrame(final String name, final ImageSpec image,
+            final double scale)
+    {
+        final StringBuilder result = new StringBuilder();
+        result.append("<text:p><draw:frame draw:name=\"").append(name)
+                .append("\"");
+        if (image.mPattern != ReferencePattern.NO_SIZE) {
+            result.append(" svg:width=\"")
+                    .append(formatLength(image.mDrawWidth * scale))
+                    .append("\" svg:height=\"")
+                    .append(formatLength(image.mDrawHeight * scale))
+                    .append("\"");
+        }
+        result.append("><draw:image xlink:href=\"").append(image.mPath)
+                .append("\" xlink:type=\"simple\"/></draw:frame></text:p>\n");
+        return result.toString();
+    }
+
+    /** Write content.xml; the pictures frames, then filler paragraphs */
+    private void writeContent(final Writer writer, final List<ImageSpec> images)
+            throws IOException
+    {
+        final StringBuilder header = new StringBuilder();
+        header.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<office:document-content")
+                .append(NAMESPACES).append(">\n<office:body><office:text>\n");
+        writer.write(header.toString());
+        long written = header.length();
+        for (int i = 0; i < images.size(); ++i) {
+            final ImageSpec image = images.get(i);
+            switch (image.mPattern) {
+            case CONTENT:
+            case SHARED:
+            case NO_SIZE:
+                header.setLength(0);
+                header.append(getFrame("Image" + i, image, 1));
+                break;
+            case REPEATED:
+                header.setLength(0);
+                for (int j = 0; j < 3; ++j) {
+                    header.append(getFrame("Image" + i + "_" + j, image,
+                            1.0 / (j + 1)));
+                }
+                break;
+            case STYLES:
+                continue;
+            }
+            writer.write(header.toString());
+            written += header.length();
+        }
+        final String filler = "<text:p>" + FILLER + "</text:p>\n";
+        while (written < mXMLSize) {
+            writer.write(filler);
+            written += filler.length();
+        }
+        writer.write("</office:text></office:body></office:document-content>\n");
+    }
+
+    /** Write META-INF/manifest.xml */
+    private void writeManifest(final Writer writer,
+            final List<ImageSpec> images) throws IOException
+    {
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+                + "<manifest:manifest"
+                + " xmlns:manifest=\"urn:oasis:names:tc:opendocument:xmlns:manifest:1.0\""
+                + " manifest:version=\"1.2\">\n"
+                + " <manifest:file-entry manifest:full-path=\"/\""
+                + " manifest:media-type=\"" + MIME_TYPE + "\"/>\n"
+                + " <manifest:file-entry manifest:full-path=\"content.xml\""
+                + " manifest:media-type=\"text/xml\"/>\n"
+                + " <manifest:file-entry manifest:full-path=\"styles.xml\""
+                + " manifest:media-type=\"text/xml\"/>\n");
+        for (final ImageSpec image : images) {
+            writer.write(" <manifest:file-entry manifest:full-path=\""
+                    + image.mPath + "\" manifest:media-type=\""
+                    + (image.mKind.getFormat() == Format.JPEG ? "image/jpeg"
+                            : "image/png") + "\"/>\n");
+        }
+        writer.write("</manifest:manifest>\n");
+    }
+
+    /**
+     * Write styles.xml.
+     * 
+     * STYLES pictures are framed in the page header, SHARED pictures are
+     * fill images.
+     */
+    private void writeStyles(final Writer writer, final List<ImageSpec> images)
+            throws IOException
+    {
+        writer.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<office:document-styles"
+                + NAMESPACES + ">\n<office:styles>\n");
+        for (int i = 0; i < images.size(); ++i) {
+            final ImageSpec image = images.get(i);
+            if (image.mPattern == ReferencePattern.SHARED) {
+                writer.write("<draw:fill-image draw:name=\"Fill" + i
+                        + "\" xlink:href=\"" + image.mPath
+                        + "\" xlink:type=\"simple\"/>\n");
+            }
+        }
+        writer.write("</office:styles>\n<office:master-styles>"
+                + "<style:master-page style:name=\"Standard\"><style:header>\n");
+        for (int i = 0; i < images.size(); ++i) {
+            final ImageSpec image = images.get(i);
+            if (image.mPattern == ReferencePattern.STYLES) {
+                writer.write(getFrame("Header" + i, image, 1));
+            }
+        }
+        writer.write("</style:header></style:master-page>"
+                + "</office:master-styles></office:document-styles>\n");
+    }
+}
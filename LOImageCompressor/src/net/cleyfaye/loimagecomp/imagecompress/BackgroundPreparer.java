@@ -0,0 +1,228 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.Controller.SampleQuality;
+
+/**
+ * Prepare the images of an open file in the background.
+ * 
+ * Images are prepared one at a time, on a low priority thread, and kept in
+ * the file PreparedImageStore; a following save then finds them ready. When
+ * the settings change, the current run is cancelled and a new one started;
+ * the store drops what older runs prepared and no save used.
+ * 
+ * ImageInfo target sizes can be changed while a run is in progress; images
+ * prepared with the old size are simply not used.
+ * 
+ * Cancellation is only checked between images: interrupting a thread reading
+ * the archive would close it for everyone. Runs can also be held back, to
+ * leave the machine to more urgent work; they then wait between images too.
+ * 
+ * @author Cley Faye
+ */
+public class BackgroundPreparer {
+
+    /**
+     * Prepare all images of a file with some settings.
+     * 
+     * @author Cley Faye
+     */
+    private class Run implements Runnable {
+        private final ODTFile mODTFile;
+        private final int mJPGQuality;
+        private final SampleQuality mSampleQuality;
+        private final boolean mKillTransparency;
+        private volatile boolean mCancelled = false;
+
+        public Run(final ODTFile odtFile, final int jpgQuality,
+                final SampleQuality sampleQuality,
+                final boolean killTransparency) {
+            mODTFile = odtFile;
+            mJPGQuality = jpgQuality;
+            mSampleQuality = sampleQuality;
+            mKillTransparency = killTransparency;
+        }
+
+        /** Stop before the next image */
+        public void cancel()
+        {
+            synchronized (mHoldLock) {
+                mCancelled = true;
+                mHoldLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void run()
+        {
+            final DownsampleImageFilter filter;
+            try {
+                filter = new DownsampleImageFilter(mJPGQuality,
+                        mSampleQuality, mKillTransparency);
+            } catch (final IOException e) {
+                sLogger.log(Level.FINE, "Background preparation failed", e);
+                return;
+            }
+            final PreparedImageStore store = mODTFile.getPreparedImageStore();
+            // Drop what older runs prepared for nothing
+            store.startRun();
+            filter.setPreparedImageStore(store);
+            for (final ImageInfo info : mODTFile.getAllImageInfo()) {
+                if (!waitUntilResumed()) {
+                    return;
+                }
+                if (!info.isEmbedded()) {
+                    continue;
+                }
+                try {
+                    filter.prepareImage(info);
+                } catch (final Exception e) {
+                    // Saving will report it, if it happens again
+                    sLogger.log(Level.FINE, "Background preparation of "
+                            + info.getRelativeName() + " failed", e);
+                } finally {
+                    filter.discardImage(info);
+                }
+            }
+        }
+
+        /**
+         * Wait while runs are held back.
+         * 
+         * @return false if the run is cancelled
+         */
+        private boolean waitUntilResumed()
+        {
+            synchronized (mHoldLock) {
+                try {
+                    while (mHolds > 0 && !mCancelled) {
+                        mHoldLock.wait();
+                    }
+                } catch (final InterruptedException e) {
+                    return false;
+                }
+                return !mCancelled;
+            }
+        }
+    }
+
+    private static final Logger sLogger = Logger
+            .getLogger(BackgroundPreparer.class.getName());
+
+    /** Runs preparations, one at a time */
+    private final ExecutorService mExecutor = Executors
+            .newSingleThreadExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread result = new Thread(r,
+                            "Background preparation");
+                    result.setDaemon(true);
+                    result.setPriority(Thread.MIN_PRIORITY);
+                    return result;
+                }
+            });
+    /** Current run, or null */
+    private Run mRun = null;
+    /** Completion of the current run */
+    private Future<?> mFuture = null;
+    /** Protect mHolds; notified when it drops, or a run is cancelled */
+    private final Object mHoldLock = new Object();
+    /** Runs wait while this is not 0; see holdBack() */
+    private int mHolds = 0;
+
+    /**
+     * Stop the current run, if any.
+     * 
+     * Wait until the image being prepared is done, so the store can be used
+     * safely afterward. Must be called before saving.
+     */
+    public synchronized void cancel()
+    {
+        if (mRun == null) {
+            return;
+        }
+        mRun.cancel();
+        boolean interrupted = false;
+        while (true) {
+            try {
+                mFuture.get();
+                break;
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            } catch (final ExecutionException e) {
+                // Already logged by the run
+                break;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mRun = null;
+        mFuture = null;
+    }
+
+    /**
+     * Pause runs until resume() is called.
+     * 
+     * The image being prepared is finished first. Calls can be nested; runs
+     * wait until each holdBack() is matched by a resume().
+     */
+    public void holdBack()
+    {
+        synchronized (mHoldLock) {
+            ++mHolds;
+        }
+    }
+
+    /** Let runs go on, after holdBack() */
+    public void resume()
+    {
+        synchronized (mHoldLock) {
+            --mHolds;
+            mHoldLock.notifyAll();
+        }
+    }
+
+    /** Stop the current run, and the background thread */
+    public synchronized void shutdown()
+    {
+        cancel();
+        mExecutor.shutdown();
+    }
+
+    /**
+     * Start preparing images, cancelling the current run.
+     * 
+     * This doesn't wait for the current run to stop; the new one starts
+     * after it.
+     * 
+     * @param odtFile
+     *            The file; images are kept in it's PreparedImageStore
+     * @param jpgQuality
+     *            JPEG quality
+     * @param sampleQuality
+     *            Scaling method
+     * @param killTransparency
+     *            Are images saved as opaque
+     */
+    public synchronized void start(final ODTFile odtFile,
+            final int jpgQuality, final SampleQuality sampleQuality,
+            final boolean killTransparency)
+    {
+        if (mRun != null) {
+            mRun.cancel();
+        }
+        mRun = new Run(odtFile, jpgQuality, sampleQuality, killTransparency);
+        mFuture = mExecutor.submit(mRun);
+    }
+}
@@ -1,77 +1,166 @@
 package net.cleyfaye.loimagecomp.imagecompress;
 
-import java.awt.Graphics2D;
-import java.awt.RenderingHints;
 import java.awt.Transparency;
 import java.awt.image.BufferedImage;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.nio.file.Files;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
-import javax.imageio.IIOImage;
-import javax.imageio.ImageIO;
-import javax.imageio.ImageWriteParam;
-import javax.imageio.ImageWriter;
-import javax.imageio.stream.ImageOutputStream;
-
+import net.cleyfaye.loimagecomp.imagecompress.FormatPredictor.Prediction;
+import net.cleyfaye.loimagecomp.imagecompress.ImageEncoder.Format;
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.Controller.SampleQuality;
 import net.cleyfaye.loimagecomp.imagecompress.interfaces.ImageFilter;
 import net.cleyfaye.loimagecomp.utils.Utils;
 
 /**
  * Filter to resize images when saving ODT file.
  * 
+ * prepareImage() can be called concurrently for different images.
+ * 
  * @author Cley Faye
  */
 public class DownsampleImageFilter implements ImageFilter {
 
+    private static final Logger sLogger = Logger
+            .getLogger(DownsampleImageFilter.class.getName());
+
+    /** Bytes per pixel of decoded and resized images, at most */
+    private static final int BYTES_PER_PIXEL = 4;
+    /** Memory needed besides the images: decoder, resampler and encoder */
+    private static final long PREPARE_OVERHEAD = 4 * 1024 * 1024;
+
+    /** Default memory budget for encoded images, in bytes */
+    public static final long DEFAULT_BUFFERS_BUDGET = 64 * 1024 * 1024;
+    /** Default size of decoded images above which they are streamed */
+    public static final long DEFAULT_STREAMING_THRESHOLD = 256 * 1024 * 1024;
+
     /** Target JPG quality */
     private final int mJPGQuality;
-    /** Target Interpolation mode */
-    private Object mInterpolation;
+    /** Scaling method */
+    private final SampleQuality mSampleQuality;
+    /** Resampler for the selected quality */
+    private final Resampler mResampler;
+    /**
+     * How much larger than the target the decoded image must be, when
+     * reading images at a reduced resolution
+     */
+    private final int mOversampling;
+    /** Resize images too large to be decoded at once */
+    private final StreamingResizer mStreamingResizer;
     /** Do we retain transparency or not */
     private final boolean mKillTransparency;
-    /** Temporary directory for compressed images */
-    private final File mTempDir = Files.createTempDirectory("loimgcomp")
-            .toFile();
-    /** List of temporary files for each images path */
-    private final Map<String, File> mImageFiles = new HashMap<>();
-    private final Map<String, String> mImageSuffixes = new HashMap<>();
-
-    public DownsampleImageFilter(final int jpgQuality, final int scalingMethod,
-            final boolean killTransparency) throws IOException {
+    /** Encoded data for each images path */
+    private final Map<String, EncodeBuffer> mImageBuffers = new ConcurrentHashMap<>();
+    private final Map<String, String> mImageSuffixes = new ConcurrentHashMap<>();
+    /** Choose between JPEG and PNG for opaque images */
+    private FormatPredictor mFormatPredictor = new FormatPredictor();
+    /** Processed images kept from previous runs; can be null */
+    private ProcessedImageCache mCache = null;
+    /** Images prepared by previous saves of the document; can be null */
+    private PreparedImageStore mPreparedImageStore = null;
+    /** Limit the images decoded at the same time */
+    private MemoryBudget mMemoryBudget = MemoryBudget.getShared();
+    /** Memory for encoded images */
+    private EncodeBufferPool mBufferPool = new EncodeBufferPool(
+            DEFAULT_BUFFERS_BUDGET);
+    /** Size of decoded images above which they are streamed, in bytes */
+    private long mStreamingThreshold = DEFAULT_STREAMING_THRESHOLD;
+
+    public DownsampleImageFilter(final int jpgQuality,
+            final SampleQuality sampleQuality, final boolean killTransparency)
+            throws IOException {
         mJPGQuality = jpgQuality;
         mKillTransparency = killTransparency;
-        mTempDir.deleteOnExit();
-        switch (scalingMethod) {
-        default:
-        case 0:
-            mInterpolation = RenderingHints.VALUE_INTERPOLATION_BICUBIC;
+        mSampleQuality = sampleQuality;
+        switch (sampleQuality) {
+        case SQ_FAST:
+            mResampler = new Resampler(Resampler.Kernel.NEAREST);
+            mOversampling = 1;
+            break;
+        case SQ_AREA:
+            mResampler = new Resampler(Resampler.Kernel.BOX);
+            mOversampling = 2;
+            break;
+        case SQ_MITCHELL:
+            mResampler = new Resampler(Resampler.Kernel.MITCHELL);
+            mOversampling = 2;
             break;
-        case 1:
-            mInterpolation = RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR;
+        case SQ_LANCZOS:
+            mResampler = new Resampler(Resampler.Kernel.LANCZOS3);
+            mOversampling = 3;
             break;
+        default:
+        case SQ_SMOOTH:
+            mResampler = new Resampler(Resampler.Kernel.CATMULL_ROM);
+            mOversampling = 2;
+            break;
+        }
+        mStreamingResizer = new StreamingResizer(mResampler.getKernel(),
+                StreamingResizer.DEFAULT_BAND_MEMORY);
+    }
+
+    /**
+     * Estimate the peak memory needed to prepare an image.
+     * 
+     * The decoded image (read with subsampling) and the resized image are
+     * alive at the same time; encoded data is accounted by the buffer pool.
+     * Streamed images only need a band of the decoded image.
+     */
+    public long estimateMemory(final ImageInfo imageInfo)
+            throws IOException
+    {
+        final ImageSize sourceSizePx = imageInfo.getImageSizePx();
+        final ImageSize targetSizePx = imageInfo.getTargetImageSizePx();
+        if (isStreamed(sourceSizePx, targetSizePx)) {
+            return mStreamingResizer.estimateMemory(sourceSizePx,
+                    targetSizePx, mOversampling) + PREPARE_OVERHEAD;
         }
+        final double resizedPixels = targetSizePx.getX()
+                * targetSizePx.getY();
+        return (long) ((getDecodedPixels(sourceSizePx, targetSizePx)
+                + resizedPixels) * BYTES_PER_PIXEL) + PREPARE_OVERHEAD;
+    }
+
+    /** Return the pool holding encoded images */
+    public EncodeBufferPool getBufferPool()
+    {
+        return mBufferPool;
+    }
+
+    /** Return the processed images cache, or null if there is none */
+    public ProcessedImageCache getCache()
+    {
+        return mCache;
+    }
+
+    /** Return the predictor used to choose opaque images format */
+    public FormatPredictor getFormatPredictor()
+    {
+        return mFormatPredictor;
+    }
+
+    /** Return the budget limiting the images decoded at the same time */
+    public MemoryBudget getMemoryBudget()
+    {
+        return mMemoryBudget;
     }
 
     @Override
     public void getImageData(final ImageInfo imageInfo,
             final OutputStream output) throws Exception
     {
-        // At this point, each pictures is already saved somewhere.
-        final byte[] buffer = new byte[4096];
-        final File file = mImageFiles.get(imageInfo.getRelativeName());
-        try (FileInputStream fis = new FileInputStream(file)) {
-            int length;
-            while ((length = fis.read(buffer)) > 0) {
-                output.write(buffer, 0, length);
-            }
+        // At this point, each pictures is already encoded.
+        final EncodeBuffer buffer = mImageBuffers.remove(imageInfo
+                .getRelativeName());
+        try {
+            buffer.writeTo(output);
+        } finally {
+            buffer.release();
         }
-        file.delete();
     }
 
     @Override
@@ -82,86 +171,302 @@ public class DownsampleImageFilter implements ImageFilter {
                 mImageSuffixes.get(originalName));
     }
 
+    @Override
+    public boolean isImageChanged(final ImageInfo imageInfo)
+    {
+        return true;
+    }
+
+    /** Is an image too large to be decoded at once */
+    private boolean isStreamed(final ImageSize sourceSizePx,
+            final ImageSize targetSizePx)
+    {
+        return getDecodedPixels(sourceSizePx, targetSizePx)
+                * BYTES_PER_PIXEL > mStreamingThreshold;
+    }
+
+    /**
+     * Drop the data of a prepared image.
+     * 
+     * For images prepared only to fill the store or the cache;
+     * getImageData() can't be called for it anymore.
+     */
+    public void discardImage(final ImageInfo imageInfo)
+    {
+        final EncodeBuffer buffer = mImageBuffers.remove(imageInfo
+                .getRelativeName());
+        if (buffer != null) {
+            buffer.release();
+        }
+    }
+
+    /** Return the number of pixels of an image decoded with subsampling */
+    private double getDecodedPixels(final ImageSize sourceSizePx,
+            final ImageSize targetSizePx)
+    {
+        final ImageSize decodedSizePx = ImageDecoder.getSubsampledSize(
+                sourceSizePx, ImageDecoder.getSubsamplingFactor(sourceSizePx,
+                        targetSizePx, mOversampling));
+        return decodedSizePx.getX() * decodedSizePx.getY();
+    }
+
+    /** Return the store of images from previous saves, or null */
+    public PreparedImageStore getPreparedImageStore()
+    {
+        return mPreparedImageStore;
+    }
+
+    /** Return the size of decoded images above which they are streamed */
+    public long getStreamingThreshold()
+    {
+        return mStreamingThreshold;
+    }
+
+    /**
+     * Set the pool holding encoded images.
+     * 
+     * Encoded images are kept in memory up to the pool budget, and in
+     * temporary files beyond. Must be called before preparing images.
+     */
+    public void setBufferPool(final EncodeBufferPool bufferPool)
+    {
+        mBufferPool = bufferPool;
+    }
+
+    /**
+     * Set a cache of processed images.
+     * 
+     * Images found in the cache are not processed again; processed images
+     * are added to it. Must be called before preparing images.
+     * 
+     * @param cache
+     *            The cache, or null to disable it
+     */
+    public void setCache(final ProcessedImageCache cache)
+    {
+        mCache = cache;
+    }
+
+    /**
+     * Set the predictor used to choose opaque images format.
+     * 
+     * Must be called before preparing images.
+     */
+    public void setFormatPredictor(final FormatPredictor formatPredictor)
+    {
+        mFormatPredictor = formatPredictor;
+    }
+
+    /**
+     * Set the budget limiting the images decoded at the same time.
+     * 
+     * Filters share MemoryBudget.getShared() by default. Must be called
+     * before preparing images.
+     */
+    public void setMemoryBudget(final MemoryBudget memoryBudget)
+    {
+        mMemoryBudget = memoryBudget;
+    }
+
+    /**
+     * Set a store of images from previous saves of the same document.
+     * 
+     * Images found in the store are not processed again; processed images
+     * are added to it. It is looked up before the cache. Must be called
+     * before preparing images.
+     * 
+     * @param preparedImageStore
+     *            The store, or null to disable it
+     */
+    public void setPreparedImageStore(
+            final PreparedImageStore preparedImageStore)
+    {
+        mPreparedImageStore = preparedImageStore;
+    }
+
+    /**
+     * Set the size of decoded images above which they are streamed.
+     * 
+     * Such images are decoded in bands instead of at once, which needs less
+     * memory but more time. Must be called before preparing images.
+     * 
+     * @param streamingThreshold
+     *            Size of the decoded image, in bytes
+     */
+    public void setStreamingThreshold(final long streamingThreshold)
+    {
+        mStreamingThreshold = streamingThreshold;
+    }
+
     @Override
     public void prepareImage(final ImageInfo imageInfo) throws Exception
     {
         // This function is called one time on each image, before actually
         // saving. Since we need to know the final image suffix at this
-        // point, we have to save in each format to see which one is most
-        // efficient.
+        // point, opaque images are saved in the format predicted to be the
+        // most efficient, or in both formats when unsure.
         // Temp save file is stored for the next step.
-        // TODO Although functionnal, this doesn't look good.
         final ImageSize targetImageSize = imageInfo.getTargetImageSizePx();
-        final BufferedImage original = ImageIO.read(imageInfo.getFile());
-        final int imageType = mKillTransparency ? BufferedImage.TYPE_INT_RGB
-                : original.getType();
-        final BufferedImage resized = new BufferedImage(
-                (int) targetImageSize.getX(), (int) targetImageSize.getY(),
-                imageType);
-        final Graphics2D gc = (Graphics2D) resized.getGraphics();
-        gc.setRenderingHint(RenderingHints.KEY_RENDERING,
-                RenderingHints.VALUE_RENDER_QUALITY);
-        gc.setRenderingHint(RenderingHints.KEY_INTERPOLATION, mInterpolation);
-        gc.drawImage(original, 0, 0, (int) targetImageSize.getX(),
-                (int) targetImageSize.getY(), null);
-        gc.dispose();
-
-        if (original.getTransparency() == Transparency.OPAQUE
-                || mKillTransparency) {
-            // Either opaque, or kill transparency; save as jpeg or png,
-            // whichever is better
-            final ImageWriter writer = ImageIO.getImageWritersBySuffix("jpg")
-                    .next();
-            final ImageWriteParam iwp = writer.getDefaultWriteParam();
-            iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-            iwp.setCompressionQuality(mJPGQuality / 100f);
-            final File tempJPG = Files.createTempFile("loimgcomp1", ".jpg")
-                    .toFile();
-            tempJPG.deleteOnExit();
-            final File tempPNG = Files.createTempFile("loimgcomp2", ".png")
-                    .toFile();
-            tempPNG.deleteOnExit();
-            try (OutputStream fos = new FileOutputStream(tempJPG)) {
-                try (ImageOutputStream ios = ImageIO
-                        .createImageOutputStream(fos)) {
-                    writer.setOutput(ios);
-                    writer.write(null, new IIOImage(resized, null, null), iwp);
+        final String name = imageInfo.getRelativeName();
+        final ProcessedImageKey key = mCache == null
+                && mPreparedImageStore == null ? null
+                : new ProcessedImageKey(imageInfo.getContentHash(),
+                        targetImageSize, mJPGQuality, mSampleQuality,
+                        mKillTransparency);
+        if (key != null && loadStored(name, key)) {
+            return;
+        }
+        final long memory = estimateMemory(imageInfo);
+        mMemoryBudget.acquire(memory);
+        final Format format;
+        final EncodeBuffer buffer;
+        try {
+            final BufferedImage resized = resize(imageInfo, targetImageSize);
+            if (resized.getTransparency() == Transparency.OPAQUE) {
+                // Either opaque, or kill transparency; save as jpeg or png,
+                // whichever is better
+                final Prediction prediction = mFormatPredictor.predict(resized,
+                        mJPGQuality);
+                if (!mFormatPredictor.shouldCheck(prediction)) {
+                    format = prediction.getFormat();
+                    buffer = encodeToBuffer(resized, format);
+                } else {
+                    final EncodeBuffer jpgBuffer = encodeToBuffer(resized,
+                            Format.JPEG);
+                    final EncodeBuffer pngBuffer;
+                    try {
+                        pngBuffer = encodeToBuffer(resized, Format.PNG);
+                    } catch (final IOException e) {
+                        jpgBuffer.release();
+                        throw e;
+                    }
+                    if (pngBuffer.size() < jpgBuffer.size()) {
+                        jpgBuffer.release();
+                        format = Format.PNG;
+                        buffer = pngBuffer;
+                    } else {
+                        pngBuffer.release();
+                        format = Format.JPEG;
+                        buffer = jpgBuffer;
+                    }
+                    mFormatPredictor.recordOutcome(name, prediction, format);
                 }
+            } else {
+                // Save as png
+                format = Format.PNG;
+                buffer = encodeToBuffer(resized, format);
             }
-            try (OutputStream fos = new FileOutputStream(tempPNG)) {
-                try (ImageOutputStream ios = ImageIO
-                        .createImageOutputStream(fos)) {
-                    writer.setOutput(ios);
-                    writer.write(resized);
-                }
+            keepImage(name, buffer, format);
+        } finally {
+            mMemoryBudget.release(memory);
+        }
+        if (key != null) {
+            store(key, buffer, format);
+        }
+    }
+
+    /** Encode an image to a new buffer */
+    private EncodeBuffer encodeToBuffer(final BufferedImage image,
+            final Format format) throws IOException
+    {
+        final EncodeBuffer result = mBufferPool.newBuffer();
+        try {
+            ImageEncoder.encode(image, format, mJPGQuality, result);
+            result.close();
+        } catch (final IOException e) {
+            result.release();
+            throw e;
+        }
+        return result;
+    }
+
+    /** Decode and resize an image, streaming it if it is too large */
+    private BufferedImage resize(final ImageInfo imageInfo,
+            final ImageSize targetImageSize) throws IOException
+    {
+        try (InputStream input = imageInfo.openStream()) {
+            if (isStreamed(imageInfo.getImageSizePx(), targetImageSize)) {
+                return mStreamingResizer.resize(input, targetImageSize,
+                        mOversampling, !mKillTransparency);
             }
-            if (tempPNG.length() < tempJPG.length()) {
-                // Use png
-                tempJPG.delete();
-                mImageFiles.put(imageInfo.getRelativeName(), tempPNG);
-                mImageSuffixes.put(imageInfo.getRelativeName(), "png");
-            } else {
-                // Use jpg
-                tempPNG.delete();
-                mImageFiles.put(imageInfo.getRelativeName(), tempJPG);
-                mImageSuffixes.put(imageInfo.getRelativeName(), "jpg");
+            final BufferedImage original = ImageDecoder.decode(input,
+                    targetImageSize, mOversampling);
+            final BufferedImage resized = new BufferedImage(
+                    (int) targetImageSize.getX(), (int) targetImageSize.getY(),
+                    Resampler.getTargetType(original, !mKillTransparency));
+            mResampler.resample(original, resized);
+            return resized;
+        }
+    }
+
+    /** Keep an encoded image for getImageData() */
+    private void keepImage(final String name, final EncodeBuffer buffer,
+            final Format format)
+    {
+        final EncodeBuffer previous = mImageBuffers.put(name, buffer);
+        if (previous != null) {
+            previous.release();
+        }
+        mImageSuffixes.put(name, format.getSuffix());
+    }
+
+    /**
+     * Keep an image from the store or the cache for getImageData()
+     * 
+     * Images found in the cache are added to the store.
+     * 
+     * @return true if the image was found
+     */
+    private boolean loadStored(final String name, final ProcessedImageKey key)
+            throws IOException
+    {
+        final EncodeBuffer buffer = mBufferPool.newBuffer();
+        Format format = null;
+        try {
+            if (mPreparedImageStore != null) {
+                format = mPreparedImageStore.get(key, buffer);
             }
-        } else {
-            // Save as png
-            final File tempPNG = Files.createTempFile("loimgcomp3", ".png")
-                    .toFile();
-            tempPNG.deleteOnExit();
-            final ImageWriter writer = ImageIO.getImageWritersBySuffix("png")
-                    .next();
-            try (OutputStream fos = new FileOutputStream(tempPNG)) {
-                try (ImageOutputStream ios = ImageIO
-                        .createImageOutputStream(fos)) {
-                    writer.setOutput(ios);
-                    writer.write(resized);
+            if (format == null && mCache != null) {
+                format = mCache.get(key, buffer);
+                if (format != null && mPreparedImageStore != null) {
+                    mPreparedImageStore.put(key, format, buffer);
                 }
             }
-            mImageFiles.put(imageInfo.getRelativeName(), tempPNG);
-            mImageSuffixes.put(imageInfo.getRelativeName(), "png");
+        } catch (final IOException e) {
+            buffer.release();
+            throw e;
+        }
+        if (format == null) {
+            buffer.release();
+            return false;
+        }
+        buffer.close();
+        keepImage(name, buffer, format);
+        return true;
+    }
+
+    /**
+     * Add an image to the store and the cache.
+     * 
+     * Failures are logged, not reported.
+     */
+    private void store(final ProcessedImageKey key,
+            final EncodeBuffer buffer, final Format format)
+    {
+        if (mPreparedImageStore != null) {
+            try {
+                mPreparedImageStore.put(key, format, buffer);
+            } catch (final IOException e) {
+                sLogger.log(Level.WARNING, "Can't keep a prepared image", e);
+            }
+        }
+        if (mCache != null) {
+            try {
+                mCache.put(key, format, buffer);
+            } catch (final IOException e) {
+                sLogger.log(Level.WARNING, "Can't write in the images cache",
+                        e);
+            }
         }
     }
 
@@ -1,9 +1,10 @@
 package net.cleyfaye.loimagecomp.imagecompress;
 
-import java.io.FileInputStream;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 import net.cleyfaye.loimagecomp.imagecompress.interfaces.ImageFilter;
+import net.cleyfaye.loimagecomp.utils.Utils;
 
 /**
  * Dummy filter. Pass images through.
@@ -16,12 +17,8 @@ public class DummyImageFilter implements ImageFilter {
     public void getImageData(final ImageInfo imageInfo,
             final OutputStream output) throws Exception
     {
-        try (FileInputStream fis = new FileInputStream(imageInfo.getFile())) {
-            final byte[] buffer = new byte[4096];
-            int length;
-            while ((length = fis.read(buffer)) > 0) {
-                output.write(buffer, 0, length);
-            }
+        try (InputStream input = imageInfo.openStream()) {
+            Utils.copyStream(input, output);
         }
     }
 
@@ -31,6 +28,12 @@ public class DummyImageFilter implements ImageFilter {
         return imageInfo.getRelativeName();
     }
 
+    @Override
+    public boolean isImageChanged(final ImageInfo imageInfo)
+    {
+        return false;
+    }
+
     @Override
     public void prepareImage(final ImageInfo imageInfo) throws Exception
     {
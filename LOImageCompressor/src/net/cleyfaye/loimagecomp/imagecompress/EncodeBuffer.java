@@ -0,0 +1,164 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+import net.cleyfaye.loimagecomp.utils.Utils;
+
+/**
+ * Hold encoded data until it is written in the output file.
+ * 
+ * Data is kept in arrays from an EncodeBufferPool. When the pool budget is
+ * exhausted, everything is moved to a temporary file and further writes go
+ * there.
+ * 
+ * A buffer must be released once it's content is not needed anymore.
+ * 
+ * @author Cley Faye
+ */
+public class EncodeBuffer extends OutputStream {
+
+    /** Pool providing arrays */
+    private final EncodeBufferPool mPool;
+    /** Arrays holding the data */
+    private final List<byte[]> mChunks = new ArrayList<>();
+    /** Used bytes in the last array */
+    private int mPosition = 0;
+    /** Total size of the data */
+    private long mSize = 0;
+    /** Temporary file, if the data was spilled to disk */
+    private File mSpillFile = null;
+    /** Output to the temporary file, while writing */
+    private OutputStream mSpillOutput = null;
+
+    EncodeBuffer(final EncodeBufferPool pool) {
+        mPool = pool;
+    }
+
+    /** Finish writing. The content can still be read. */
+    @Override
+    public void close() throws IOException
+    {
+        if (mSpillOutput != null) {
+            mSpillOutput.close();
+            mSpillOutput = null;
+        }
+    }
+
+    /** Was the data moved to a temporary file */
+    public boolean isSpilled()
+    {
+        return mSpillFile != null;
+    }
+
+    /** Free the memory and temporary file used by this buffer */
+    public void release()
+    {
+        for (final byte[] chunk : mChunks) {
+            mPool.release(chunk);
+        }
+        mChunks.clear();
+        mPosition = 0;
+        if (mSpillOutput != null) {
+            try {
+                mSpillOutput.close();
+            } catch (final IOException e) {
+                // Nothing to do; the file is deleted anyway
+            }
+            mSpillOutput = null;
+        }
+        if (mSpillFile != null) {
+            mSpillFile.delete();
+            mSpillFile = null;
+        }
+    }
+
+    /** Return the size of the data */
+    public long size()
+    {
+        return mSize;
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException
+    {
+        mSize += len;
+        if (mSpillFile != null) {
+            mSpillOutput.write(b, off, len);
+            return;
+        }
+        while (len > 0) {
+            if (mChunks.isEmpty()
+                    || mPosition == mChunks.get(mChunks.size() - 1).length) {
+                final byte[] chunk = mPool.acquire(mChunks.size());
+                if (chunk == null) {
+                    spill();
+                    mSpillOutput.write(b, off, len);
+                    return;
+                }
+                mChunks.add(chunk);
+                mPosition = 0;
+            }
+            final byte[] chunk = mChunks.get(mChunks.size() - 1);
+            final int count = Math.min(len, chunk.length - mPosition);
+            System.arraycopy(b, off, chunk, mPosition, count);
+            mPosition += count;
+            off += count;
+            len -= count;
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * Copy the data to an output stream.
+     * 
+     * @param output
+     *            The output. The stream is not closed.
+     */
+    public void writeTo(final OutputStream output) throws IOException
+    {
+        close();
+        if (mSpillFile != null) {
+            try (FileInputStream input = new FileInputStream(mSpillFile)) {
+                Utils.copyStream(input, output);
+            }
+            return;
+        }
+        final int last = mChunks.size() - 1;
+        for (int i = 0; i < last; ++i) {
+            output.write(mChunks.get(i));
+        }
+        if (last >= 0) {
+            output.write(mChunks.get(last), 0, mPosition);
+        }
+    }
+
+    /** Move the data to a temporary file */
+    private void spill() throws IOException
+    {
+        mSpillFile = Files.createTempFile("loimgcomp", ".tmp").toFile();
+        mSpillFile.deleteOnExit();
+        mSpillOutput = new BufferedOutputStream(new FileOutputStream(
+                mSpillFile));
+        final int last = mChunks.size() - 1;
+        for (int i = 0; i < mChunks.size(); ++i) {
+            final byte[] chunk = mChunks.get(i);
+            mSpillOutput.write(chunk, 0, i == last ? mPosition : chunk.length);
+            mPool.release(chunk);
+        }
+        mChunks.clear();
+        mPosition = 0;
+    }
+}
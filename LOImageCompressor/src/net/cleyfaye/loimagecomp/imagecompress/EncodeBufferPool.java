@@ -0,0 +1,115 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Pool of byte arrays shared by encode buffers, with a memory budget.
+ * 
+ * Arrays come in a few size classes; a buffer starts with a small array and
+ * uses larger ones as it grows, so small images don't waste memory. Released
+ * arrays are kept for reuse. Both the arrays in use and the ones kept for
+ * reuse count in the budget; once it is reached, buffers spill to disk.
+ * 
+ * This class is thread-safe.
+ * 
+ * @author Cley Faye
+ */
+public class EncodeBufferPool {
+
+    /** Size of the smallest arrays */
+    private static final int MIN_CHUNK_SIZE = 4096;
+    /** Number of size classes; each one is twice as large as the previous */
+    private static final int SIZE_CLASSES = 5;
+
+    /** Return the size of arrays of a size class */
+    static int getChunkSize(final int sizeClass)
+    {
+        return MIN_CHUNK_SIZE << Math.min(sizeClass, SIZE_CLASSES - 1);
+    }
+
+    /** Maximum memory used by arrays, in bytes */
+    private final long mBudget;
+    /** Memory used by all arrays, in use or not */
+    private long mAllocated = 0;
+    /** Memory used by arrays in use */
+    private long mInUse = 0;
+    /** Arrays available for reuse, for each size class */
+    private final Deque<byte[]>[] mFreeChunks;
+
+    /**
+     * Create a pool.
+     * 
+     * @param budget
+     *            Maximum memory used by buffers, in bytes
+     */
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    public EncodeBufferPool(final long budget) {
+        mBudget = budget;
+        mFreeChunks = new Deque[SIZE_CLASSES];
+        for (int i = 0; i < SIZE_CLASSES; ++i) {
+            mFreeChunks[i] = new ArrayDeque<>();
+        }
+    }
+
+    /** Return the maximum memory used by buffers */
+    public long getBudget()
+    {
+        return mBudget;
+    }
+
+    /** Return the memory used by arrays currently in use */
+    public synchronized long getInUse()
+    {
+        return mInUse;
+    }
+
+    /** Create an empty buffer */
+    public EncodeBuffer newBuffer()
+    {
+        return new EncodeBuffer(this);
+    }
+
+    /**
+     * Get an array.
+     * 
+     * @param sizeClass
+     *            Size class of the array
+     * @return The array, or null if the budget is exhausted.
+     */
+    synchronized byte[] acquire(final int sizeClass)
+    {
+        final int index = Math.min(sizeClass, SIZE_CLASSES - 1);
+        final byte[] free = mFreeChunks[index].poll();
+        if (free != null) {
+            mInUse += free.length;
+            return free;
+        }
+        final int size = getChunkSize(index);
+        // Drop unused arrays of other sizes to make room
+        for (int i = 0; i < SIZE_CLASSES && mAllocated + size > mBudget; ++i) {
+            while (!mFreeChunks[i].isEmpty() && mAllocated + size > mBudget) {
+                mAllocated -= mFreeChunks[i].poll().length;
+            }
+        }
+        if (mAllocated + size > mBudget) {
+            return null;
+        }
+        mAllocated += size;
+        mInUse += size;
+        return new byte[size];
+    }
+
+    /** Give back an array obtained with acquire() */
+    synchronized void release(final byte[] chunk)
+    {
+        mInUse -= chunk.length;
+        for (int i = 0; i < SIZE_CLASSES; ++i) {
+            if (getChunkSize(i) == chunk.length) {
+                mFreeChunks[i].push(chunk);
+                return;
+            }
+        }
+        mAllocated -= chunk.length;
+    }
+}
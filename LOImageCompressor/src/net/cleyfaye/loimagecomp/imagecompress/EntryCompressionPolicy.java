@@ -0,0 +1,181 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.zip.Deflater;
+
+import net.cleyfaye.loimagecomp.utils.Utils;
+
+/**
+ * Choose how each entry of a saved file is compressed.
+ * 
+ * Files using a lossy or general purpose compression (JPEG, zip...) are always
+ * stored: deflating them costs a lot of time for nothing. XML files are
+ * deflated with their own level.
+ * 
+ * Other pictures (PNG, GIF) are stored, and other files are deflated with the
+ * default level, unless sampling is enabled. In that case the start of the
+ * data is deflated at the fastest level, and the file is stored if it doesn't
+ * shrink enough. Sampling is enabled by default, because PNG files from some
+ * encoders (including ImageIO) still shrink a lot.
+ * 
+ * Levels are Deflater levels; Deflater.NO_COMPRESSION means the entry is
+ * stored.
+ * 
+ * @author Cley Faye
+ */
+public class EntryCompressionPolicy {
+
+    /** Suffixes of files that don't shrink when deflated */
+    private static final Set<String> COMPRESSED_SUFFIXES = new HashSet<>(
+            Arrays.asList("jpg", "jpeg", "jpe", "webp", "jp2", "j2k", "zip",
+                    "gz", "jar"));
+    /** Suffixes of compressed pictures that may still shrink when deflated */
+    private static final Set<String> PICTURE_SUFFIXES = new HashSet<>(
+            Arrays.asList("png", "gif"));
+    /** Suffixes of XML files */
+    private static final Set<String> XML_SUFFIXES = new HashSet<>(
+            Arrays.asList("xml", "rdf"));
+    /** Amount of data tested when sampling */
+    public static final int SAMPLE_SIZE = 65536;
+    /** A sample must shrink at least by this ratio to be deflated */
+    private static final double MIN_SAVING = 0.05;
+
+    /** Return the lowercase suffix of a file name */
+    private static String getSuffix(final String name)
+    {
+        return Utils.getFileSuffix(name).toLowerCase(Locale.ROOT);
+    }
+
+    private int mXMLLevel = Deflater.BEST_COMPRESSION;
+    private int mDefaultLevel = Deflater.DEFAULT_COMPRESSION;
+    private boolean mSampling = true;
+
+    /** Return the level of files that are not XML */
+    public int getDefaultLevel()
+    {
+        return mDefaultLevel;
+    }
+
+    /**
+     * Return the level of an entry, from it's name only.
+     * 
+     * @param name
+     *            The entry name
+     */
+    public int getLevel(final String name)
+    {
+        final String suffix = getSuffix(name);
+        if (COMPRESSED_SUFFIXES.contains(suffix)
+                || PICTURE_SUFFIXES.contains(suffix)) {
+            return Deflater.NO_COMPRESSION;
+        }
+        if (XML_SUFFIXES.contains(suffix)) {
+            return mXMLLevel;
+        }
+        return mDefaultLevel;
+    }
+
+    /**
+     * Return the level of an entry, from it's name and the start of it's
+     * data.
+     * 
+     * @param name
+     *            The entry name
+     * @param sample
+     *            The start of the data
+     * @param length
+     *            Length of the sample
+     */
+    public int getLevel(final String name, final byte[] sample,
+            final int length)
+    {
+        if (!needsSample(name) || length == 0) {
+            return getLevel(name);
+        }
+        final Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            final byte[] output = new byte[4096];
+            while (!deflater.finished()) {
+                deflater.deflate(output);
+            }
+            if (deflater.getBytesWritten() > length * (1 - MIN_SAVING)) {
+                return Deflater.NO_COMPRESSION;
+            }
+        } finally {
+            deflater.end();
+        }
+        return mDefaultLevel;
+    }
+
+    /**
+     * Return the size an entry takes in the output, without headers.
+     * 
+     * @param name
+     *            The entry name
+     * @param data
+     *            The entry data
+     * @param length
+     *            Length of the data
+     */
+    public long getCompressedSize(final String name, final byte[] data,
+            final int length)
+    {
+        final int level = getLevel(name, data, Math.min(length, SAMPLE_SIZE));
+        if (level == Deflater.NO_COMPRESSION) {
+            return length;
+        }
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(data, 0, length);
+            deflater.finish();
+            final byte[] output = new byte[4096];
+            while (!deflater.finished()) {
+                deflater.deflate(output);
+            }
+            return deflater.getBytesWritten();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    public int getXMLLevel()
+    {
+        return mXMLLevel;
+    }
+
+    public boolean isSampling()
+    {
+        return mSampling;
+    }
+
+    /** Tell if the level of an entry depends on it's data */
+    public boolean needsSample(final String name)
+    {
+        final String suffix = getSuffix(name);
+        return mSampling && !COMPRESSED_SUFFIXES.contains(suffix)
+                && !XML_SUFFIXES.contains(suffix);
+    }
+
+    /** Set the level of files that are not XML */
+    public void setDefaultLevel(final int defaultLevel)
+    {
+        mDefaultLevel = defaultLevel;
+    }
+
+    /** Enable testing the data of unknown file types */
+    public void setSampling(final boolean sampling)
+    {
+        mSampling = sampling;
+    }
+
+    /** Set the level of XML files */
+    public void setXMLLevel(final int xmlLevel)
+    {
+        mXMLLevel = xmlLevel;
+    }
+}
@@ -0,0 +1,123 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.ArchiveReader;
+import net.cleyfaye.loimagecomp.utils.Utils;
+
+/**
+ * Read entries from a zip file extracted in a temporary directory.
+ * 
+ * This is slower than ZipArchiveReader, but it only read the archive
+ * sequentially and so works even on archives without a usable central
+ * directory.
+ * 
+ * @author Cley Faye
+ */
+public class ExtractedArchiveReader implements ArchiveReader {
+
+    /** A temporary path where the archive is extracted. */
+    private final File mTempPath = Files.createTempDirectory("loimgcomp")
+            .toFile();
+    /** Entries names, in archive order */
+    private final List<String> mEntryNames = new ArrayList<>();
+
+    /** Extract a zip file in a temporary directory */
+    public ExtractedArchiveReader(final File file) throws IOException {
+        mTempPath.deleteOnExit();
+        try (ZipInputStream zipInput = new ZipInputStream(new FileInputStream(
+                file))) {
+            ZipEntry zipEntry;
+            while ((zipEntry = zipInput.getNextEntry()) != null) {
+                if (zipEntry.isDirectory()) {
+                    continue;
+                }
+                final String fileName = zipEntry.getName();
+                final File tempPath = getEntryFile(fileName);
+                if (tempPath == null) {
+                    throw new IOException("Invalid entry name: " + fileName);
+                }
+                Utils.createTempFilePath(tempPath);
+                tempPath.deleteOnExit();
+                try (FileOutputStream output = new FileOutputStream(tempPath)) {
+                    Utils.copyStream(zipInput, output);
+                }
+                mEntryNames.add(fileName);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        for (final String name : mEntryNames) {
+            getEntryFile(name).delete();
+        }
+    }
+
+    @Override
+    public List<String> getEntryNames()
+    {
+        return Collections.unmodifiableList(mEntryNames);
+    }
+
+    @Override
+    public long getEntrySize(final String name) throws IOException
+    {
+        return getExistingEntryFile(name).length();
+    }
+
+    /** Compressed data is not kept when extracting */
+    @Override
+    public RawZipEntry getRawEntry(final String name)
+    {
+        return null;
+    }
+
+    @Override
+    public boolean hasEntry(final String name)
+    {
+        final File file = getEntryFile(name);
+        return file != null && file.isFile();
+    }
+
+    @Override
+    public InputStream openEntry(final String name) throws IOException
+    {
+        return new FileInputStream(getExistingEntryFile(name));
+    }
+
+    /**
+     * Return the extracted file for an entry.
+     * 
+     * @return The file object, or null if the name is not a valid relative
+     *         path.
+     */
+    private File getEntryFile(final String name)
+    {
+        if (new File(name).isAbsolute() || name.contains("..")) {
+            return null;
+        }
+        return new File(mTempPath, name);
+    }
+
+    /** Return the extracted file for an entry, or throw if it doesn't exist */
+    private File getExistingEntryFile(final String name) throws IOException
+    {
+        if (!hasEntry(name)) {
+            throw new FileNotFoundException(name);
+        }
+        return getEntryFile(name);
+    }
+}
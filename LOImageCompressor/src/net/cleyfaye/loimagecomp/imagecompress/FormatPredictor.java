@@ -0,0 +1,369 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.cleyfaye.loimagecomp.imagecompress.ImageEncoder.Format;
+
+/**
+ * Guess whether an opaque image is smaller as JPEG or PNG.
+ * 
+ * Tiles are sampled from the image to measure the number of distinct colors
+ * and the entropy of the difference between neighbour pixels (roughly what
+ * PNG compresses). The tiles are also assembled into a small mosaic which is
+ * encoded in both formats, and the sizes are compared.
+ * 
+ * A prediction is certain when the mosaic sizes differ by more than the
+ * margin, and the statistics don't clearly point to the other format;
+ * uncertain predictions should be checked by encoding the full image in both
+ * formats, and their outcome recorded. Some certain predictions are checked
+ * too, so wrong ones show up in the logs.
+ * 
+ * The statistics alone can't estimate the sizes well enough to compare them
+ * with the margin (smooth gradients, for example, have a low entropy but are
+ * still smaller as JPEG): when trial encoding is disabled, predictions are
+ * never certain.
+ * 
+ * @author Cley Faye
+ */
+public class FormatPredictor {
+
+    /**
+     * Result of a prediction.
+     * 
+     * @author Cley Faye
+     */
+    public static class Prediction {
+        /** Predicted smallest format */
+        private final Format mFormat;
+        /** Is the difference large enough to skip the check */
+        private final boolean mCertain;
+
+        public Prediction(final Format format, final boolean certain) {
+            mFormat = format;
+            mCertain = certain;
+        }
+
+        public Format getFormat()
+        {
+            return mFormat;
+        }
+
+        /** Can the other format be skipped */
+        public boolean isCertain()
+        {
+            return mCertain;
+        }
+    }
+
+    private static final Logger sLogger = Logger
+            .getLogger(FormatPredictor.class.getName());
+
+    /** JPEG block size */
+    private static final int JPEG_BLOCK_SIZE = 8;
+    /** Size of sampled tiles; a multiple of the JPEG block size */
+    private static final int TILE_SIZE = 32;
+    /** Maximum number of tiles on each axis */
+    private static final int TILES_PER_AXIS = 8;
+    /** Stop counting colors past this number */
+    private static final int MAX_COLORS = 1024;
+    /** Few enough colors for PNG to likely win, if the entropy is also low */
+    private static final int PNG_MAX_COLORS = 32;
+    /** Residual entropy (bits per sample) under which PNG likely wins */
+    private static final double PNG_MAX_ENTROPY = 1.0;
+    /** Residual entropy (bits per sample) over which JPEG likely wins */
+    private static final double JPEG_MIN_ENTROPY = 5.0;
+    /** Over this quality, JPEG output is too large to decide on entropy */
+    private static final int JPEG_MAX_QUALITY = 90;
+
+    /** Relative size difference needed to trust a prediction */
+    private volatile double mMargin = 0.25;
+    /** Trial-encode a mosaic of tiles, to make certain predictions */
+    private volatile boolean mTrialEncode = true;
+    /** Check one certain prediction every this many; 0 to never check */
+    private volatile int mVerifyInterval = 10;
+
+    /** Number of predictions */
+    private final AtomicInteger mPredictions = new AtomicInteger();
+    /** Number of certain predictions */
+    private final AtomicInteger mCertainPredictions = new AtomicInteger();
+    /** Number of predictions compared with the actual sizes */
+    private final AtomicInteger mChecked = new AtomicInteger();
+    /** Number of right predictions */
+    private final AtomicInteger mRight = new AtomicInteger();
+
+    /** Return the number of predictions compared with the actual sizes */
+    public int getCheckedCount()
+    {
+        return mChecked.get();
+    }
+
+    /** Return the number of certain predictions */
+    public int getCertainCount()
+    {
+        return mCertainPredictions.get();
+    }
+
+    public double getMargin()
+    {
+        return mMargin;
+    }
+
+    /** Return the number of predictions */
+    public int getPredictionsCount()
+    {
+        return mPredictions.get();
+    }
+
+    /** Return the number of right predictions, among the checked ones */
+    public int getRightCount()
+    {
+        return mRight.get();
+    }
+
+    public int getVerifyInterval()
+    {
+        return mVerifyInterval;
+    }
+
+    public boolean isTrialEncode()
+    {
+        return mTrialEncode;
+    }
+
+    /** Log how often predictions were right */
+    public void logStatistics()
+    {
+        if (mPredictions.get() == 0) {
+            return;
+        }
+        sLogger.log(Level.INFO,
+                "Format predictions: {0}, certain: {1}, right: {2}/{3}",
+                new Object[] { mPredictions.get(), mCertainPredictions.get(),
+                        mRight.get(), mChecked.get() });
+    }
+
+    /**
+     * Predict the smallest format for an opaque image.
+     * 
+     * @param image
+     *            The image, as it will be encoded
+     * @param jpgQuality
+     *            JPEG quality (0-100)
+     */
+    public Prediction predict(final BufferedImage image, final int jpgQuality)
+            throws IOException
+    {
+        mPredictions.incrementAndGet();
+        final int width = image.getWidth();
+        final int height = image.getHeight();
+        final int tilesX = Math.min(TILES_PER_AXIS, width / TILE_SIZE);
+        final int tilesY = Math.min(TILES_PER_AXIS, height / TILE_SIZE);
+        if (tilesX == 0 || tilesY == 0) {
+            // Too small to sample; encoding both is cheap anyway
+            return new Prediction(Format.PNG, false);
+        }
+        final boolean trialEncode = mTrialEncode;
+        final BufferedImage mosaic = trialEncode ? new BufferedImage(tilesX
+                * TILE_SIZE, tilesY * TILE_SIZE, BufferedImage.TYPE_INT_RGB)
+                : null;
+        final int[] tile = new int[TILE_SIZE * TILE_SIZE];
+        final Set<Integer> colors = new HashSet<>();
+        final long[] histogram = new long[256];
+        for (int ty = 0; ty < tilesY; ++ty) {
+            final int y = getTileOffset(ty, tilesY, height);
+            for (int tx = 0; tx < tilesX; ++tx) {
+                final int x = getTileOffset(tx, tilesX, width);
+                image.getRGB(x, y, TILE_SIZE, TILE_SIZE, tile, 0, TILE_SIZE);
+                if (trialEncode) {
+                    mosaic.setRGB(tx * TILE_SIZE, ty * TILE_SIZE, TILE_SIZE,
+                            TILE_SIZE, tile, 0, TILE_SIZE);
+                }
+                addTileStatistics(tile, colors, histogram);
+            }
+        }
+        final double entropy = getEntropy(histogram);
+        final Format clearFormat = getClearFormat(colors.size(), entropy,
+                jpgQuality);
+        Prediction result;
+        if (trialEncode) {
+            result = trialEncode(mosaic, jpgQuality);
+            if (result.isCertain() && clearFormat != null
+                    && clearFormat != result.getFormat()) {
+                // Mosaics lose the large flat areas PNG compresses well
+                result = new Prediction(result.getFormat(), false);
+            }
+        } else if (clearFormat != null) {
+            result = new Prediction(clearFormat, false);
+        } else {
+            result = new Prediction(entropy < (PNG_MAX_ENTROPY
+                    + JPEG_MIN_ENTROPY) / 2 ? Format.PNG : Format.JPEG, false);
+        }
+        if (result.isCertain()) {
+            mCertainPredictions.incrementAndGet();
+        }
+        return result;
+    }
+
+    /**
+     * Record the actual smallest format of a predicted image.
+     * 
+     * @param name
+     *            Image name, for logging
+     * @param prediction
+     *            The prediction
+     * @param actual
+     *            The format that was actually smaller
+     */
+    public void recordOutcome(final String name, final Prediction prediction,
+            final Format actual)
+    {
+        mChecked.incrementAndGet();
+        if (prediction.getFormat() == actual) {
+            mRight.incrementAndGet();
+        }
+        sLogger.log(Level.FINE, "{0}: predicted {1} ({2}), actual {3}",
+                new Object[] { name, prediction.getFormat(),
+                        prediction.isCertain() ? "certain" : "uncertain",
+                        actual });
+    }
+
+    public void setMargin(final double margin)
+    {
+        mMargin = margin;
+    }
+
+    public void setTrialEncode(final boolean trialEncode)
+    {
+        mTrialEncode = trialEncode;
+    }
+
+    /**
+     * Check some certain predictions by encoding both formats anyway.
+     * 
+     * @param verifyInterval
+     *            Check one certain prediction every this many (10 by
+     *            default). 0 never checks.
+     */
+    public void setVerifyInterval(final int verifyInterval)
+    {
+        mVerifyInterval = verifyInterval;
+    }
+
+    /**
+     * Should a prediction be checked by encoding both formats.
+     * 
+     * Uncertain predictions are always checked.
+     */
+    public boolean shouldCheck(final Prediction prediction)
+    {
+        if (!prediction.isCertain()) {
+            return true;
+        }
+        final int interval = mVerifyInterval;
+        return interval > 0 && mCertainPredictions.get() % interval == 0;
+    }
+
+    /** Count colors and left-neighbour residuals of a tile */
+    private static void addTileStatistics(final int[] tile,
+            final Set<Integer> colors, final long[] histogram)
+    {
+        for (int y = 0; y < TILE_SIZE; ++y) {
+            int previous = tile[y * TILE_SIZE];
+            for (int x = 0; x < TILE_SIZE; ++x) {
+                final int pixel = tile[y * TILE_SIZE + x];
+                if (colors.size() < MAX_COLORS) {
+                    colors.add(pixel & 0xffffff);
+                }
+                for (int shift = 0; shift < 24; shift += 8) {
+                    ++histogram[((pixel >> shift) - (previous >> shift)) & 0xff];
+                }
+                previous = pixel;
+            }
+        }
+    }
+
+    /**
+     * Return the format the tiles statistics clearly point to.
+     * 
+     * @param colors
+     *            Number of distinct colors
+     * @param entropy
+     *            Residual entropy, in bits per sample
+     * @param jpgQuality
+     *            JPEG quality (0-100)
+     * @return The format, or null if the statistics are not clear
+     */
+    private static Format getClearFormat(final int colors,
+            final double entropy, final int jpgQuality)
+    {
+        if (colors <= PNG_MAX_COLORS && entropy < PNG_MAX_ENTROPY) {
+            return Format.PNG;
+        } else if (entropy > JPEG_MIN_ENTROPY
+                && jpgQuality <= JPEG_MAX_QUALITY) {
+            return Format.JPEG;
+        }
+        return null;
+    }
+
+    /** Return the entropy of a histogram, in bits per sample */
+    private static double getEntropy(final long[] histogram)
+    {
+        long total = 0;
+        for (final long count : histogram) {
+            total += count;
+        }
+        double entropy = 0;
+        for (final long count : histogram) {
+            if (count > 0) {
+                final double probability = (double) count / total;
+                entropy -= probability * Math.log(probability);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    /**
+     * Return the position of a tile, tiles being evenly spread.
+     * 
+     * Tiles are aligned on JPEG blocks, so edges fall in the same blocks as
+     * when the full image is encoded.
+     */
+    private static int getTileOffset(final int index, final int count,
+            final int size)
+    {
+        final int offset;
+        if (count == 1) {
+            offset = (size - TILE_SIZE) / 2;
+        } else {
+            offset = (int) ((long) (size - TILE_SIZE) * index / (count - 1));
+        }
+        return offset - offset % JPEG_BLOCK_SIZE;
+    }
+
+    /** Encode the mosaic in both formats and compare */
+    private Prediction trialEncode(final BufferedImage mosaic,
+            final int jpgQuality) throws IOException
+    {
+        final ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ImageEncoder.encode(mosaic, Format.JPEG, jpgQuality, output);
+        final int jpegSize = output.size();
+        output.reset();
+        ImageEncoder.encode(mosaic, Format.PNG, jpgQuality, output);
+        final int pngSize = output.size();
+        final double margin = 1 + mMargin;
+        if (pngSize * margin < jpegSize) {
+            return new Prediction(Format.PNG, true);
+        } else if (jpegSize * margin < pngSize) {
+            return new Prediction(Format.JPEG, true);
+        }
+        return new Prediction(pngSize < jpegSize ? Format.PNG : Format.JPEG,
+                false);
+    }
+}
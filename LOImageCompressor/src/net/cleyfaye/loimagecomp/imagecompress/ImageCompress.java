@@ -5,8 +5,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
 
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.xpath.XPathExpressionException;
+import javax.xml.stream.XMLStreamException;
 
 import net.cleyfaye.loimagecomp.imagecompress.interfaces.Controller;
 import net.cleyfaye.loimagecomp.imagecompress.interfaces.ImageFilter;
@@ -14,8 +13,6 @@ import net.cleyfaye.loimagecomp.imagecompress.interfaces.Interface;
 import net.cleyfaye.loimagecomp.utils.ProgressCheck;
 import net.cleyfaye.loimagecomp.utils.ProgressCheck.Instance;
 
-import org.xml.sax.SAXException;
-
 /**
  * All the "real work" about filtering an ODT pictures is here.
  * 
@@ -24,12 +21,69 @@ import org.xml.sax.SAXException;
 public class ImageCompress implements Controller, Interface {
 
     private final Interface mInterface;
-    private ODTFile mODTFile = null;
+    private volatile ODTFile mODTFile = null;
+    /** Number of threads used to prepare images; 0 for the default */
+    private int mPrepareThreads = 0;
+    /** Processed images cache; can be null */
+    private ProcessedImageCache mCache = null;
+    /** Reuse the images prepared by previous saves of the same file */
+    private boolean mReusePreparedImages = true;
+    /** Prepare images while the user is choosing settings; can be null */
+    private volatile BackgroundPreparer mBackgroundPreparer = null;
+    /** File the last background preparation was started for */
+    private ODTFile mPreparedFile = null;
+    /** Estimate the output size of the current file; null if none */
+    private volatile SizeEstimator mSizeEstimator = null;
 
     public ImageCompress(final Interface intf) {
         mInterface = intf;
     }
 
+    /** Close the current file, if any */
+    public void closeFile() throws IOException
+    {
+        if (mBackgroundPreparer != null) {
+            mBackgroundPreparer.cancel();
+        }
+        if (mSizeEstimator != null) {
+            mSizeEstimator.close();
+            mSizeEstimator = null;
+        }
+        if (mODTFile != null) {
+            mODTFile.close();
+            mODTFile = null;
+        }
+        mPreparedFile = null;
+    }
+
+    @Override
+    public SizeEstimator.Estimate estimateSize() throws Exception
+    {
+        final SizeEstimator estimator = mSizeEstimator;
+        if (estimator == null) {
+            return null;
+        }
+        // Both decode every image the first time; the user waits for this one
+        final BackgroundPreparer preparer = mBackgroundPreparer;
+        if (preparer != null) {
+            preparer.holdBack();
+        }
+        try {
+            return estimator.estimate(getJPEGQuality(), getSampleQuality(),
+                    getKillTransparency());
+        } finally {
+            if (preparer != null) {
+                preparer.resume();
+            }
+        }
+    }
+
+    /** Return the processed images cache, or null if there is none */
+    public ProcessedImageCache getCache()
+    {
+        return mCache;
+    }
+
     @Override
     public int getJPEGQuality()
     {
@@ -57,6 +111,14 @@ public class ImageCompress implements Controller, Interface {
         return SampleQuality.SQ_SMOOTH;
     }
 
+    @Override
+    public void imageInfoLoaded(final ImageInfo imageInfo)
+    {
+        if (mInterface != null) {
+            mInterface.imageInfoLoaded(imageInfo);
+        }
+    }
+
     @Override
     public boolean isFileOpen()
     {
@@ -65,13 +127,21 @@ public class ImageCompress implements Controller, Interface {
 
     @Override
     public void openFile(final File odtFile, final ProgressCheck progressCheck)
-            throws IOException, ParserConfigurationException, SAXException,
-            XPathExpressionException
+            throws IOException, XMLStreamException
     {
         final Instance progress = new Instance(progressCheck);
         progress.startProgress("Loading file");
-        mODTFile = new ODTFile(odtFile, progress);
+        closeFile();
+        mODTFile = new ODTFile(odtFile, progress, this);
+        if (mPrepareThreads > 0) {
+            mODTFile.setPrepareThreads(mPrepareThreads);
+        }
+        mSizeEstimator = new SizeEstimator(mODTFile);
         updateImagesList(new ArrayList<>(mODTFile.getAllImageInfo()));
+        // The interface may already have started it from settingsChanged()
+        if (mPreparedFile != mODTFile) {
+            startBackgroundPreparation();
+        }
         progress.endProgress();
     }
 
@@ -79,21 +149,102 @@ public class ImageCompress implements Controller, Interface {
     public boolean saveFile(final File odtFile,
             final ProgressCheck progressCheck) throws IOException, Exception
     {
+        if (mBackgroundPreparer != null) {
+            // What is already prepared is in the store
+            mBackgroundPreparer.cancel();
+        }
         final Instance progress = new Instance(progressCheck);
         progress.startProgress("Saving file");
         progress.progressNewMaxValue(mODTFile.getImagesCount() * 2);
         final int jpegQuality = getJPEGQuality();
-        final int sampleQuality = getSampleQuality() == SampleQuality.SQ_FAST ? 1
-                : 0;
+        final SampleQuality sampleQuality = getSampleQuality();
         final boolean killTransparency = getKillTransparency();
-        final ImageFilter imageFilter = new DownsampleImageFilter(jpegQuality,
-                sampleQuality, killTransparency);
+        final DownsampleImageFilter imageFilter = new DownsampleImageFilter(
+                jpegQuality, sampleQuality, killTransparency);
+        imageFilter.setCache(mCache);
+        if (mReusePreparedImages) {
+            final PreparedImageStore store = mODTFile.getPreparedImageStore();
+            store.startSave();
+            imageFilter.setPreparedImageStore(store);
+        }
         final boolean result = mODTFile.createCopy(odtFile, imageFilter,
                 progress);
+        imageFilter.getFormatPredictor().logStatistics();
         progress.endProgress();
         return result;
     }
 
+    /**
+     * Prepare images in the background while a file is open.
+     * 
+     * Images are prepared with the current settings on a low priority
+     * thread, as soon as a file is opened, and again each time
+     * settingsChanged() is called. Saving then reuses them. Preparation
+     * pauses while the size is estimated. Disabled by default, and useless
+     * if prepared images are not reused.
+     */
+    public void setBackgroundPreparation(final boolean enabled)
+    {
+        if (enabled && mBackgroundPreparer == null) {
+            mBackgroundPreparer = new BackgroundPreparer();
+            startBackgroundPreparation();
+        } else if (!enabled && mBackgroundPreparer != null) {
+            mBackgroundPreparer.shutdown();
+            mBackgroundPreparer = null;
+        }
+    }
+
+    /**
+     * Set a cache of processed images, used when saving.
+     * 
+     * @param cache
+     *            The cache, or null to disable it
+     */
+    public void setCache(final ProcessedImageCache cache)
+    {
+        mCache = cache;
+    }
+
+    /**
+     * Set the number of threads used to prepare images of each opened file.
+     * 
+     * @param threads
+     *            Number of threads; 0 to use the ODTFile default
+     */
+    public void setPrepareThreads(final int threads)
+    {
+        mPrepareThreads = Math.max(0, threads);
+    }
+
+    /**
+     * Choose if images prepared by a save are kept for the next saves of the
+     * same file.
+     * 
+     * Enabled by default. Only useful when a file is saved more than once.
+     */
+    public void setReusePreparedImages(final boolean reusePreparedImages)
+    {
+        mReusePreparedImages = reusePreparedImages;
+    }
+
+    @Override
+    public void settingsChanged()
+    {
+        startBackgroundPreparation();
+    }
+
+    /** Start preparing images with the current settings, if enabled */
+    private void startBackgroundPreparation()
+    {
+        if (mBackgroundPreparer == null || !mReusePreparedImages
+                || mODTFile == null) {
+            return;
+        }
+        mPreparedFile = mODTFile;
+        mBackgroundPreparer.start(mODTFile, getJPEGQuality(),
+                getSampleQuality(), getKillTransparency());
+    }
+
     @Override
     public void updateImagesList(final List<ImageInfo> images)
     {
@@ -0,0 +1,241 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Read images informations and pixels.
+ * 
+ * The probing functions only look at the image header, so they are cheap even
+ * on very large pictures. Decoding the full image is only done when the header
+ * can't tell us what we need.
+ * 
+ * When an image is decoded to be shrunk, it can be read at a reduced
+ * resolution to save time and memory.
+ * 
+ * @author Cley Faye
+ */
+public class ImageDecoder {
+
+    /**
+     * Informations read from an image header.
+     * 
+     * @author Cley Faye
+     */
+    public static class Header {
+        /** Image size in pixels */
+        private final ImageSize mSizePx;
+        /** Color model of the image, null if unknown */
+        private final ColorModel mColorModel;
+        /** Does the image have an alpha channel */
+        private final boolean mAlpha;
+
+        public Header(final ImageSize sizePx, final ColorModel colorModel,
+                final boolean alpha) {
+            mSizePx = sizePx;
+            mColorModel = colorModel;
+            mAlpha = alpha;
+        }
+
+        /** Return the image color model, or null if unknown */
+        public ColorModel getColorModel()
+        {
+            return mColorModel;
+        }
+
+        public ImageSize getSizePx()
+        {
+            return new ImageSize(mSizePx);
+        }
+
+        /** Does the image have an alpha channel */
+        public boolean hasAlpha()
+        {
+            return mAlpha;
+        }
+    }
+
+    /**
+     * Decode an image, at a reduced resolution if possible.
+     * 
+     * The image is read with source subsampling, using the largest integer
+     * factor that keeps the result at least oversampling times larger than
+     * the target size. The result must still be resized to the target size.
+     * 
+     * @param input
+     *            The image data. The stream is not closed.
+     * @param targetSizePx
+     *            The final size of the image
+     * @param oversampling
+     *            How much larger than the target the decoded image must stay.
+     *            Filters that look at more than one source pixel give better
+     *            results with 2 or more.
+     * @return The decoded image
+     */
+    public static BufferedImage decode(final InputStream input,
+            final ImageSize targetSizePx, final int oversampling)
+            throws IOException
+    {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+            final ImageReader reader = getReader(iis);
+            try {
+                reader.setInput(iis, true, true);
+                final ImageReadParam param = reader.getDefaultReadParam();
+                final int factor = getSubsamplingFactor(new ImageSize(
+                        reader.getWidth(0), reader.getHeight(0)),
+                        targetSizePx, oversampling);
+                if (factor > 1) {
+                    param.setSourceSubsampling(factor, factor, 0, 0);
+                }
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Decode part of an image, at full resolution.
+     * 
+     * @param input
+     *            The image data. The stream is not closed.
+     * @param region
+     *            The part to decode; it must be inside the image
+     * @return The decoded part
+     */
+    public static BufferedImage decodeRegion(final InputStream input,
+            final Rectangle region) throws IOException
+    {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+            final ImageReader reader = getReader(iis);
+            try {
+                reader.setInput(iis, true, true);
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(region);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /**
+     * Compute the subsampling factor to decode an image.
+     * 
+     * @param sourceSizePx
+     *            The original image size
+     * @param targetSizePx
+     *            The final image size
+     * @param oversampling
+     *            How much larger than the target the decoded image must stay
+     * @return The largest factor keeping the subsampled image at least
+     *         oversampling times the target size, in both directions. Always
+     *         at least 1.
+     */
+    public static int getSubsamplingFactor(final ImageSize sourceSizePx,
+            final ImageSize targetSizePx, final int oversampling)
+    {
+        if (targetSizePx.getX() < 1 || targetSizePx.getY() < 1) {
+            return 1;
+        }
+        final double ratio = Math.min(
+                sourceSizePx.getX() / targetSizePx.getX(),
+                sourceSizePx.getY() / targetSizePx.getY());
+        return Math.max(1, (int) Math.floor(ratio / Math.max(1, oversampling)));
+    }
+
+    /**
+     * Return the size of an image read with source subsampling.
+     * 
+     * @param sourceSizePx
+     *            The original image size
+     * @param factor
+     *            The subsampling factor, as returned by getSubsamplingFactor()
+     */
+    public static ImageSize getSubsampledSize(final ImageSize sourceSizePx,
+            final int factor)
+    {
+        return new ImageSize(Math.ceil(sourceSizePx.getX() / factor),
+                Math.ceil(sourceSizePx.getY() / factor));
+    }
+
+    /**
+     * Read an image header.
+     * 
+     * Only the image size and color model are read, no pixel raster is
+     * allocated. If no reader can answer from the header alone, a single
+     * pixel is decoded as a last resort, so images too large for the heap can
+     * still be probed.
+     * 
+     * @param input
+     *            The image data. The stream is not closed.
+     * @return The image header informations
+     * @throws IOException
+     *             If the image can't be read at all
+     */
+    public static Header probe(final InputStream input) throws IOException
+    {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+            final ImageReader reader = getReader(iis);
+            try {
+                reader.setInput(iis, true, true);
+                final ImageSize sizePx = new ImageSize(reader.getWidth(0),
+                        reader.getHeight(0));
+                final ImageTypeSpecifier type = getImageType(reader);
+                if (type != null) {
+                    final ColorModel colorModel = type.getColorModel();
+                    return new Header(sizePx, colorModel, colorModel.hasAlpha());
+                }
+                // The header is not enough; decode the first pixel
+                final ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceRegion(new Rectangle(0, 0, 1, 1));
+                final BufferedImage img = reader.read(0, param);
+                return new Header(sizePx, img.getColorModel(), img
+                        .getColorModel().hasAlpha());
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /** Find a reader for an image stream */
+    private static ImageReader getReader(final ImageInputStream iis)
+            throws IOException
+    {
+        if (iis == null) {
+            throw new IOException("Can't read image data");
+        }
+        final Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format");
+        }
+        return readers.next();
+    }
+
+    /**
+     * Get the image type from a reader, without decoding pixels.
+     * 
+     * @return The raw image type, or the first advertised type, or null if
+     *         the reader can't tell.
+     */
+    private static ImageTypeSpecifier getImageType(final ImageReader reader)
+            throws IOException
+    {
+        final ImageTypeSpecifier rawType = reader.getRawImageType(0);
+        if (rawType != null) {
+            return rawType;
+        }
+        final Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        return types.hasNext() ? types.next() : null;
+    }
+}
@@ -0,0 +1,75 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.awt.image.RenderedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+/**
+ * Write images in the formats used in output documents.
+ * 
+ * @author Cley Faye
+ */
+public class ImageEncoder {
+
+    /**
+     * Output image formats.
+     * 
+     * @author Cley Faye
+     */
+    public static enum Format {
+        JPEG("jpg"), PNG("png");
+
+        /** File suffix, also used to find the image writer */
+        private final String mSuffix;
+
+        private Format(final String suffix) {
+            mSuffix = suffix;
+        }
+
+        public String getSuffix()
+        {
+            return mSuffix;
+        }
+    }
+
+    /**
+     * Encode an image.
+     * 
+     * @param image
+     *            The image to encode
+     * @param format
+     *            The output format
+     * @param jpgQuality
+     *            JPEG quality (0-100); ignored for other formats
+     * @param output
+     *            Output stream. The stream is not closed.
+     */
+    public static void encode(final RenderedImage image, final Format format,
+            final int jpgQuality, final OutputStream output) throws IOException
+    {
+        final ImageWriter writer = ImageIO.getImageWritersBySuffix(
+                format.getSuffix()).next();
+        // Outputs are in memory or buffered already; ImageIO default stream
+        // would go through a temporary file
+        try (ImageOutputStream ios = new MemoryCacheImageOutputStream(output)) {
+            writer.setOutput(ios);
+            if (format == Format.JPEG) {
+                final ImageWriteParam iwp = writer.getDefaultWriteParam();
+                iwp.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                iwp.setCompressionQuality(jpgQuality / 100f);
+                writer.write(null, new IIOImage(image, null, null), iwp);
+            } else {
+                writer.write(image);
+            }
+        } finally {
+            writer.dispose();
+        }
+    }
+}
@@ -1,12 +1,20 @@
 package net.cleyfaye.loimagecomp.imagecompress;
 
-import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
 
-import javax.imageio.ImageIO;
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.ImageInfoListener;
 
 /**
  * Store informations about an image.
@@ -14,6 +22,10 @@ import javax.imageio.ImageIO;
  * This class hold the image path, the intended print size, and the original
  * resolution, as well as the target DPI and resolution.
  * 
+ * The image header (resolution and alpha channel) is read in the background,
+ * on a pool shared by all files; methods needing it wait until it is read,
+ * for this image only.
+ * 
  * TODO images not embedded are never referenced in ImageInfo. Remove
  * isEmbedded()
  * 
@@ -21,6 +33,21 @@ import javax.imageio.ImageIO;
  */
 public class ImageInfo {
 
+    /** Read image headers, for all files */
+    private static final ExecutorService sProbePool = Executors
+            .newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                    new ThreadFactory() {
+
+                        @Override
+                        public Thread newThread(final Runnable r)
+                        {
+                            final Thread result = new Thread(r,
+                                    "Image probe");
+                            result.setDaemon(true);
+                            return result;
+                        }
+                    });
+
     /** Source ODT file */
     private final ODTFile mODTFile;
     /** Maximum intended print size in cm */
@@ -28,26 +55,38 @@ public class ImageInfo {
     /** Relative file name */
     private final String mFileName;
 
-    /** Original resolution */
-    private ImageSize mImageSizePx;
+    /** Original image header; null if the image is not embedded */
+    private final FutureTask<ImageDecoder.Header> mHeader;
     /** Original file size */
     private long mImageSize;
 
     /** If the image is embedded in the archive, or not. */
     private boolean mEmbedded;
-    /** The original image file */
-    private File mFile;
-    /** The target DPI */
-    private double mTargetDPI = 0;
-    /** Target resolution */
-    private ImageSize mTargetImageSizePx;
+    /** The target DPI; 0 to keep the original resolution */
+    private volatile double mTargetDPI = 0;
+    /** Number of references to this image in the document */
+    private int mReferenceCount = 0;
+    /** SHA-256 hash of the image data, computed when first needed */
+    private byte[] mContentHash = null;
     /**
      * Image "names"
      * 
      * As found in the document
      */
     private final List<String> mNames = new ArrayList<>();
+    /** Other files in the archive with the same content */
+    private final List<String> mAliases = new ArrayList<>();
 
+    /**
+     * Create the informations of an image.
+     * 
+     * The header is not read until startProbe() is called.
+     * 
+     * @param odtFile
+     *            The file containing the image
+     * @param fileName
+     *            The image path in the file
+     */
     public ImageInfo(final ODTFile odtFile, final String fileName)
             throws IOException {
         mODTFile = odtFile;
@@ -56,17 +95,43 @@ public class ImageInfo {
         if (imageFile.isAbsolute()) {
             mEmbedded = false;
         } else {
-            mFile = mODTFile.getExtractedFile(fileName);
-            mEmbedded = mFile != null;
+            mEmbedded = mODTFile.hasEntry(fileName);
         }
         if (mEmbedded) {
-            final BufferedImage img = ImageIO.read(mFile);
-            mImageSizePx = new ImageSize(img.getWidth(), img.getHeight());
-            mImageSize = mFile.length();
-            mTargetImageSizePx = mImageSizePx;
+            mImageSize = mODTFile.getEntrySize(fileName);
+            mHeader = new FutureTask<>(new Callable<ImageDecoder.Header>() {
+
+                @Override
+                public ImageDecoder.Header call() throws IOException
+                {
+                    try (InputStream input = openStream()) {
+                        return ImageDecoder.probe(input);
+                    }
+                }
+            });
+        } else {
+            mHeader = null;
         }
     }
 
+    /**
+     * Merge an image with the same content into this one.
+     * 
+     * The other image path becomes an alias of this one, and it's usages
+     * are added to this image.
+     */
+    public void addAlias(final ImageInfo duplicate)
+    {
+        mAliases.add(duplicate.mFileName);
+        mAliases.addAll(duplicate.mAliases);
+        increaseDrawSize(duplicate.mDrawSizeCm.getX(),
+                duplicate.mDrawSizeCm.getY());
+        for (final String name : duplicate.mNames) {
+            addName(name);
+        }
+        addReferences(duplicate.mReferenceCount);
+    }
+
     public void addName(final String name)
     {
         if (name != null && !name.isEmpty()) {
@@ -76,15 +141,34 @@ public class ImageInfo {
         }
     }
 
-    public ImageSize getDrawSizeCm()
+    /** Add references to this image */
+    public void addReferences(final int count)
     {
-        return new ImageSize(mDrawSizeCm);
+        mReferenceCount += count;
+    }
+
+    /** Return the other paths with the same content as this image */
+    public List<String> getAliases()
+    {
+        return Collections.unmodifiableList(mAliases);
+    }
+
+    /**
+     * Return the SHA-256 hash of the original image data.
+     * 
+     * The hash is computed on the first call.
+     */
+    public synchronized byte[] getContentHash() throws IOException
+    {
+        if (mContentHash == null) {
+            mContentHash = mODTFile.hashEntry(mFileName);
+        }
+        return mContentHash.clone();
     }
 
-    /** Return the original image file */
-    public File getFile()
+    public ImageSize getDrawSizeCm()
     {
-        return mFile;
+        return new ImageSize(mDrawSizeCm);
     }
 
     public long getImageSize()
@@ -92,9 +176,23 @@ public class ImageInfo {
         return mImageSize;
     }
 
-    public ImageSize getImageSizePx()
+    /**
+     * Return the original resolution.
+     * 
+     * Wait until the header is read.
+     * 
+     * @throws IOException
+     *             If the header can't be read
+     */
+    public ImageSize getImageSizePx() throws IOException
     {
-        return new ImageSize(mImageSizePx);
+        return getHeader().getSizePx();
+    }
+
+    /** Return the number of references to this image in the document */
+    public int getReferenceCount()
+    {
+        return mReferenceCount;
     }
 
     /** Return the image relative name */
@@ -103,9 +201,35 @@ public class ImageInfo {
         return mFileName;
     }
 
-    public ImageSize getTargetImageSizePx()
+    /**
+     * Return the target resolution, for the current target DPI.
+     * 
+     * Wait until the header is read.
+     * 
+     * @throws IOException
+     *             If the header can't be read
+     */
+    public ImageSize getTargetImageSizePx() throws IOException
+    {
+        final ImageSize sizePx = getImageSizePx();
+        final double dpi = mTargetDPI;
+        if (dpi <= 0) {
+            return sizePx;
+        }
+        return ImageSize.projectImageSize(sizePx, mDrawSizeCm, dpi);
+    }
+
+    /**
+     * Does the original image have an alpha channel.
+     * 
+     * Wait until the header is read.
+     * 
+     * @throws IOException
+     *             If the header can't be read
+     */
+    public boolean hasAlpha() throws IOException
     {
-        return new ImageSize(mTargetImageSizePx);
+        return getHeader().hasAlpha();
     }
 
     /**
@@ -144,13 +268,106 @@ public class ImageInfo {
         return mEmbedded;
     }
 
-    /** Change this image's target DPI */
+    /**
+     * Tell if the image header is read.
+     * 
+     * Methods needing it don't wait once this returns true.
+     */
+    public boolean isLoaded()
+    {
+        return mHeader != null && mHeader.isDone();
+    }
+
+    /**
+     * Change this image's target DPI.
+     * 
+     * This never waits; the target resolution is computed when asked.
+     */
     public void setTargetDPI(final double value)
     {
         mTargetDPI = value;
-        if (mEmbedded) {
-            mTargetImageSizePx = ImageSize.projectImageSize(mImageSizePx,
-                    mDrawSizeCm, mTargetDPI);
+    }
+
+    /**
+     * Start reading the image header in the background.
+     * 
+     * Must be called once, after the image is created; methods needing the
+     * header wait forever otherwise.
+     * 
+     * @param listener
+     *            Notified when the header is read; can be null
+     */
+    void startProbe(final ImageInfoListener listener)
+    {
+        if (mHeader == null) {
+            return;
+        }
+        if (listener == null) {
+            sProbePool.execute(mHeader);
+            return;
+        }
+        // Notify once the result is available, so the listener can use it
+        sProbePool.execute(new FutureTask<Void>(mHeader, null) {
+
+            @Override
+            protected void done()
+            {
+                if (!mHeader.isCancelled()) {
+                    listener.imageInfoLoaded(ImageInfo.this);
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop reading the image header, if it didn't start yet.
+     * 
+     * Methods needing the header throw afterward, unless it was already
+     * read.
+     */
+    void cancelProbe()
+    {
+        if (mHeader != null) {
+            // Interrupting a thread reading the archive would close it
+            mHeader.cancel(false);
+        }
+    }
+
+    /**
+     * Read the original image data.
+     * 
+     * @return A stream on the image data. The caller must close it.
+     */
+    public InputStream openStream() throws IOException
+    {
+        return mODTFile.openEntry(mFileName);
+    }
+
+    /** Wait until the header is read, and return it */
+    private ImageDecoder.Header getHeader() throws IOException
+    {
+        if (mHeader == null) {
+            throw new IOException("Image not embedded: " + mFileName);
+        }
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return mHeader.get();
+                } catch (final InterruptedException e) {
+                    // Callers can't stop waiting halfway
+                    interrupted = true;
+                }
+            }
+        } catch (final ExecutionException e) {
+            throw new IOException("Can't read image " + mFileName,
+                    e.getCause());
+        } catch (final CancellationException e) {
+            throw new IOException("Image not read: " + mFileName, e);
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
         }
     }
 
@@ -0,0 +1,208 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import net.cleyfaye.loimagecomp.utils.Utils;
+
+/**
+ * Index of the pictures referenced in an ODT document.
+ * 
+ * The XML parts are scanned once, without building a DOM. For each picture,
+ * only the largest draw size, the names and the number of references are
+ * kept.
+ * 
+ * Two kinds of references are recognized:
+ * - a draw:image inside a draw:frame; the frame gives the draw size and name
+ * - any other element with an xlink:href attribute; the element draw:name (or
+ * draw:display-name) is used as the picture name
+ * 
+ * @author Cley Faye
+ */
+public class ImageReferenceIndex {
+
+    /**
+     * All the references to a single picture.
+     * 
+     * @author Cley Faye
+     */
+    public static class Reference {
+        /** Maximum intended print size in cm */
+        private final ImageSize mDrawSizeCm = new ImageSize(0, 0);
+        /** Names found in the document */
+        private final List<String> mNames = new ArrayList<>();
+        /** Number of references */
+        private int mCount = 0;
+
+        /** Return the number of references to this picture */
+        public int getCount()
+        {
+            return mCount;
+        }
+
+        /** Return the largest draw size, in cm (0x0 if unknown) */
+        public ImageSize getDrawSizeCm()
+        {
+            return new ImageSize(mDrawSizeCm);
+        }
+
+        /** Return the picture names */
+        public List<String> getNames()
+        {
+            return Collections.unmodifiableList(mNames);
+        }
+
+        private void addName(final String name)
+        {
+            if (name != null && !name.isEmpty() && !mNames.contains(name)) {
+                mNames.add(name);
+            }
+        }
+
+        private void increaseDrawSize(final double width, final double height)
+        {
+            if (mDrawSizeCm.getX() < width) {
+                mDrawSizeCm.setX(width);
+            }
+            if (mDrawSizeCm.getY() < height) {
+                mDrawSizeCm.setY(height);
+            }
+        }
+    }
+
+    /** A draw:frame, as seen while scanning */
+    private static class Frame {
+        private final String mName;
+        private final String mWidth;
+        private final String mHeight;
+
+        public Frame(final String name, final String width, final String height) {
+            mName = name;
+            mWidth = width;
+            mHeight = height;
+        }
+    }
+
+    private static final String DRAW_NS = "urn:oasis:names:tc:opendocument:xmlns:drawing:1.0";
+    private static final String SVG_NS = "urn:oasis:names:tc:opendocument:xmlns:svg-compatible:1.0";
+    private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+    /** Prefix of embedded pictures paths */
+    private static final String PICTURES_PREFIX = "Pictures/";
+
+    private static XMLInputFactory sInputFactory = XMLInputFactory
+            .newInstance();
+
+    static {
+        sInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        sInputFactory.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /** References for each picture path */
+    private final Map<String, Reference> mReferences = new HashMap<>();
+
+    /**
+     * Return the references to a picture
+     * 
+     * @param path
+     *            The picture path in the archive
+     * @return The references, or null if the picture is never referenced
+     */
+    public Reference get(final String path)
+    {
+        return mReferences.get(path);
+    }
+
+    /** Return the path of all referenced pictures */
+    public Set<String> getPaths()
+    {
+        return Collections.unmodifiableSet(mReferences.keySet());
+    }
+
+    /**
+     * Add all pictures references from an XML part.
+     * 
+     * @param input
+     *            The XML part (content.xml, styles.xml). The stream is not
+     *            closed.
+     */
+    public void scan(final InputStream input) throws XMLStreamException,
+            IOException
+    {
+        final XMLStreamReader reader = sInputFactory
+                .createXMLStreamReader(input);
+        // For each open element, the frame it represents (or notAFrame)
+        final Deque<Frame> parents = new ArrayDeque<>();
+        final Frame notAFrame = new Frame(null, null, null);
+        try {
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.END_ELEMENT) {
+                    parents.pop();
+                    continue;
+                }
+                if (event != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                final String namespace = reader.getNamespaceURI();
+                final String localName = reader.getLocalName();
+                final boolean isDraw = DRAW_NS.equals(namespace);
+                if (isDraw && localName.equals("frame")) {
+                    parents.push(new Frame(reader.getAttributeValue(DRAW_NS,
+                            "name"), reader.getAttributeValue(SVG_NS,
+                            "width"), reader.getAttributeValue(SVG_NS,
+                            "height")));
+                    continue;
+                }
+                final Frame parent = parents.isEmpty() ? notAFrame : parents
+                        .peek();
+                parents.push(notAFrame);
+                final String path = reader.getAttributeValue(XLINK_NS, "href");
+                if (path == null || !path.startsWith(PICTURES_PREFIX)) {
+                    continue;
+                }
+                final Reference reference = getOrCreate(path);
+                ++reference.mCount;
+                if (isDraw && localName.equals("image") && parent != notAFrame) {
+                    if (parent.mWidth != null && parent.mHeight != null) {
+                        reference.increaseDrawSize(
+                                Utils.sizeStringToDouble(parent.mWidth),
+                                Utils.sizeStringToDouble(parent.mHeight));
+                    }
+                    reference.addName(parent.mName);
+                } else {
+                    final String displayName = reader.getAttributeValue(
+                            DRAW_NS, "display-name");
+                    reference.addName(displayName != null ? displayName
+                            : reader.getAttributeValue(DRAW_NS, "name"));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /** Return the references to a picture, creating them if needed */
+    private Reference getOrCreate(final String path)
+    {
+        Reference reference = mReferences.get(path);
+        if (reference == null) {
+            reference = new Reference();
+            mReferences.put(path, reference);
+        }
+        return reference;
+    }
+}
@@ -0,0 +1,134 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Limit the memory used by images processed at the same time.
+ * 
+ * Each job reserves it's estimated peak memory before starting, and releases
+ * it when done. Jobs are admitted in arrival order, as long as the total
+ * reserved memory stays within the budget; a job waits for the ones before
+ * it, so large jobs are not starved by a flow of small ones.
+ * 
+ * A job larger than the whole budget is admitted once nothing else is
+ * reserved, and runs alone.
+ * 
+ * This class is thread-safe.
+ * 
+ * @author Cley Faye
+ */
+public class MemoryBudget {
+
+    /** Budget shared by default; created on first use */
+    private static MemoryBudget sShared = null;
+
+    /**
+     * Return the budget shared by all filters that don't set their own.
+     * 
+     * It allows half of the maximum heap size.
+     */
+    public static synchronized MemoryBudget getShared()
+    {
+        if (sShared == null) {
+            sShared = new MemoryBudget(Runtime.getRuntime().maxMemory() / 2);
+        }
+        return sShared;
+    }
+
+    /** Maximum reserved memory, in bytes */
+    private final long mBudget;
+    /** Currently reserved memory */
+    private long mReserved = 0;
+    /** Highest reserved memory so far */
+    private long mPeakReserved = 0;
+    /** Number of reservations that had to wait */
+    private long mWaits = 0;
+    /** Waiting jobs, in arrival order */
+    private final Deque<Object> mWaiting = new ArrayDeque<>();
+
+    /**
+     * Create a budget.
+     * 
+     * @param budget
+     *            Maximum reserved memory, in bytes
+     */
+    public MemoryBudget(final long budget) {
+        mBudget = budget;
+    }
+
+    /**
+     * Reserve memory, waiting until it fits in the budget.
+     * 
+     * @param bytes
+     *            Estimated peak memory of the job
+     * @throws InterruptedException
+     *             If the thread is interrupted while waiting; nothing is
+     *             reserved then.
+     */
+    public synchronized void acquire(final long bytes)
+            throws InterruptedException
+    {
+        final Object ticket = new Object();
+        mWaiting.addLast(ticket);
+        try {
+            if (mWaiting.peekFirst() != ticket || !fits(bytes)) {
+                ++mWaits;
+                do {
+                    wait();
+                } while (mWaiting.peekFirst() != ticket || !fits(bytes));
+            }
+        } catch (final InterruptedException e) {
+            mWaiting.remove(ticket);
+            notifyAll();
+            throw e;
+        }
+        mWaiting.removeFirst();
+        mReserved += bytes;
+        mPeakReserved = Math.max(mPeakReserved, mReserved);
+        // The next job may fit too
+        notifyAll();
+    }
+
+    /** Return the maximum reserved memory */
+    public long getBudget()
+    {
+        return mBudget;
+    }
+
+    /** Return the highest reserved memory so far */
+    public synchronized long getPeakReserved()
+    {
+        return mPeakReserved;
+    }
+
+    /** Return the currently reserved memory */
+    public synchronized long getReserved()
+    {
+        return mReserved;
+    }
+
+    /** Return the number of reservations that had to wait */
+    public synchronized long getWaits()
+    {
+        return mWaits;
+    }
+
+    /**
+     * Release memory reserved by acquire().
+     * 
+     * @param bytes
+     *            The value given to acquire()
+     */
+    public synchronized void release(final long bytes)
+    {
+        mReserved -= bytes;
+        notifyAll();
+    }
+
+    /** Can a job start now */
+    private boolean fits(final long bytes)
+    {
+        return mReserved == 0 || mReserved + bytes <= mBudget;
+    }
+}
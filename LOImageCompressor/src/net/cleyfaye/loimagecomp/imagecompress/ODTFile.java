@@ -1,41 +1,46 @@
 package net.cleyfaye.loimagecomp.imagecompress;
 
+import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
-import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.zip.CRC32;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipInputStream;
-import java.util.zip.ZipOutputStream;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import java.util.zip.ZipException;
 
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamException;
+
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.ArchiveReader;
 import net.cleyfaye.loimagecomp.imagecompress.interfaces.ImageFilter;
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.ImageInfoListener;
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.ImageProgressListener;
 import net.cleyfaye.loimagecomp.utils.ProgressCheck;
 import net.cleyfaye.loimagecomp.utils.ProgressCheck.Instance;
 import net.cleyfaye.loimagecomp.utils.Utils;
-
-import org.w3c.dom.Document;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.SAXException;
+import net.cleyfaye.loimagecomp.utils.XMLRewriter;
 
 /**
  * Manage the content of an ODT file
@@ -47,80 +52,140 @@ import org.xml.sax.SAXException;
  * 
  * TODO Implement a cleaner filter system
  * 
- * TODO Force save of the mimetype as uncompressed
+ * The archive content is read on demand; the ODTFile must be closed once it's
+ * not needed anymore.
+ * 
+ * Pictures headers are read in the background once the file is opened; see
+ * ImageInfo.
  * 
  * @author Cley Faye
  */
-public class ODTFile {
-
-    /** DOM of content.xml */
-    private Document mContent;
-    /** DOM of styles.xml */
-    private Document mStyles;
-    /** DOM of initial manifest */
-    private Document mManifest;
+public class ODTFile implements Closeable {
+
+    /** Namespace of xlink attributes */
+    private static final String XLINK_NS = "http://www.w3.org/1999/xlink";
+    /** Namespace of manifest.xml */
+    private static final String MANIFEST_NS = "urn:oasis:names:tc:opendocument:xmlns:manifest:1.0";
+    /** Attribute referencing pictures in content.xml and styles.xml */
+    private static final QName XLINK_HREF = new QName(XLINK_NS, "href");
+    /** Attribute referencing files in the manifest */
+    private static final QName MANIFEST_FULL_PATH = new QName(MANIFEST_NS,
+            "full-path");
+    /** Manifest element describing a file */
+    private static final QName MANIFEST_FILE_ENTRY = new QName(MANIFEST_NS,
+            "file-entry");
+
+    /** Images prepared ahead of the one being written, per thread */
+    private static final int PIPELINE_DEPTH = 2;
 
     /** The origianl ODT file. */
     private final File mODTFile;
-    /** A temporary path where the ODT file is extracted. */
-    private final File mTempPath = Files.createTempDirectory("loimgcomp")
-            .toFile();
+    /** Access to the original ODT content */
+    private ArchiveReader mArchive;
 
     /** A list of files present in the original ODT. */
     private final List<String> mFiles = new ArrayList<>();
 
     /**
      * A mapping between image files (in "Pictures/" directory) and the stored
-     * image informations
+     * image informations.
+     * 
+     * Images are kept in archive order, so the output is always the same.
      */
-    private final Map<String, ImageInfo> mImagesMap = new HashMap<>();
+    private final Map<String, ImageInfo> mImagesMap = new LinkedHashMap<>();
 
-    private static DocumentBuilderFactory sDOMFactory = DocumentBuilderFactory
-            .newInstance();
+    /** Number of threads used to prepare images */
+    private int mPrepareThreads = Runtime.getRuntime().availableProcessors();
 
-    private static DocumentBuilder sDocumentBuilder = null;
+    /** Choose how entries are compressed in createCopy() */
+    private EntryCompressionPolicy mCompressionPolicy = new EntryCompressionPolicy();
 
-    private static XPathFactory sXPathFactory = XPathFactory.newInstance();
+    /** Images prepared by previous saves */
+    private final PreparedImageStore mPreparedImageStore = new PreparedImageStore();
 
-    private static XPath sXPath = sXPathFactory.newXPath();
+    /** Notified each time an image is prepared; can be null */
+    private ImageProgressListener mImageProgressListener = null;
 
     /**
      * Create an ODTFile object from an existing ODT file
-     * 
-     * @throws XPathExpressionException
      */
     public ODTFile(final File odtFile, final ProgressCheck progressCheck)
-            throws IOException, ParserConfigurationException, SAXException,
-            XPathExpressionException {
+            throws IOException, XMLStreamException {
+        this(odtFile, progressCheck, null);
+    }
+
+    /**
+     * Create an ODTFile object from an existing ODT file.
+     * 
+     * This returns before the pictures headers are read.
+     * 
+     * @param odtFile
+     *            The file to open
+     * @param progressCheck
+     *            Progress report; can be null
+     * @param listener
+     *            Notified as each picture header is read; can be null
+     */
+    public ODTFile(final File odtFile, final ProgressCheck progressCheck,
+            final ImageInfoListener listener) throws IOException,
+            XMLStreamException {
         final Instance progress = new Instance(progressCheck);
-        mTempPath.deleteOnExit();
         mODTFile = odtFile;
-        extractFiles(progress);
-        checkMimeType(progress);
-        readXMLs(progress);
-        readImagesInfo(progress);
+        try {
+            openArchive(progress);
+            listFiles(progress, listener);
+            checkMimeType(progress);
+            readImagesInfo(progress);
+            mergeDuplicateImages(progress);
+        } catch (final Exception e) {
+            close();
+            throw e;
+        }
     }
 
-    /** Check that the extracted file is an actual ODT file */
+    /** Check that the archive is an actual ODT file */
     private void checkMimeType(final ProgressCheck progress) throws IOException
     {
         progress.progressMessage("Checking manifest");
-        final File mimetypeFile = new File(mTempPath, "mimetype");
-        final List<String> lines = Files.readAllLines(mimetypeFile.toPath(),
-                Charset.forName("UTF-8"));
-        if (lines.size() < 1
-                || lines.get(0).compareTo(
-                        "application/vnd.oasis.opendocument.text") != 0) {
+        final String firstLine;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                openEntry("mimetype"), Charset.forName("UTF-8")))) {
+            firstLine = reader.readLine();
+        }
+        if (firstLine == null
+                || firstLine
+                        .compareTo("application/vnd.oasis.opendocument.text") != 0) {
             throw new IOException("Not an ODT file");
         }
     }
 
+    /** Release the original archive and the prepared images */
+    @Override
+    public void close() throws IOException
+    {
+        for (final ImageInfo info : mImagesMap.values()) {
+            info.cancelProbe();
+        }
+        mPreparedImageStore.clear();
+        if (mArchive != null) {
+            mArchive.close();
+            mArchive = null;
+        }
+    }
+
     /**
      * Save a copy of the ODT file.
      * 
      * This function create a copy of the original ODT file, and change it's
      * content according to given filters.
      * 
+     * Images are prepared by up to getPrepareThreads() threads while the
+     * calling thread writes the output: the remaining files are copied first,
+     * then each image is written in archive order as soon as it is prepared.
+     * At most PIPELINE_DEPTH images per thread are prepared ahead of the one
+     * being written. content.xml, styles.xml and the manifest come last,
+     * since they need the final names of all images.
+     * 
      * @param target
      *            The output file
      * @param imageFilter
@@ -135,58 +200,42 @@ public class ODTFile {
             final ProgressCheck progressCheck) throws Exception
     {
         final Instance progress = new Instance(progressCheck);
-        progress.progressNewMaxValue(mImagesMap.values().size() * 3
-                + mFiles.size() + 4); // 4: mimetype content.xml styles.xml
-                                      // manifest
-        int progressValue = 0;
-        final byte[] buffer = new byte[4096];
-        // We get new names for all pictures. Needed mainly to change
-        // from one file format to another
-        final Map<String, String> namesSubstitution = new HashMap<>();
-        progress.progressMessage("Preparing");
+        final List<ImageInfo> images = new ArrayList<>();
         for (final ImageInfo info : mImagesMap.values()) {
-            if (!progress.progress(++progressValue)) {
-                return false;
+            if (info.isEmbedded()) {
+                images.add(info);
             }
-            if (!info.isEmbedded()) {
-                continue;
-            }
-            imageFilter.prepareImage(info);
         }
-        for (final ImageInfo info : mImagesMap.values()) {
-            if (!progress.progress(++progressValue)) {
-                return false;
-            }
-            if (!info.isEmbedded()) {
-                continue;
-            }
-            final String newName = imageFilter.getImageFileName(info);
-            namesSubstitution.put(info.getRelativeName(), newName);
+        // Each image is counted when prepared, then when written; 4 is for
+        // mimetype, content.xml, styles.xml and the manifest
+        progress.progressNewMaxValue(images.size() * 2 + mFiles.size() + 4);
+        int progressValue = 0;
+        if (imageFilter == null) {
+            imageFilter = new DummyImageFilter();
         }
-        // We work on copies of content.xml and styles.xml
-        final Document contentCopy = Utils.cloneDOM(mContent);
-        final Document stylesCopy = Utils.cloneDOM(mStyles);
-        final Document manifestCopy = Utils.cloneDOM(mManifest);
-
+        // We get new names for all pictures. Needed mainly to change
+        // from one file format to another
+        final Map<String, String> namesSubstitution = new HashMap<>();
+        final ExecutorService executor = Executors.newFixedThreadPool(Math
+                .max(1, Math.min(mPrepareThreads, images.size())));
         // Create the output
-        try (ZipOutputStream zipOutput = new ZipOutputStream(
-                new FileOutputStream(target))) {
+        try (ZipWriter zipOutput = new ZipWriter(target)) {
+            // Start preparing images right away
+            final Deque<Future<ImageInfo>> pending = new ArrayDeque<>();
+            final int depth = Math.max(1, mPrepareThreads) * PIPELINE_DEPTH;
+            int submitted = 0;
+            while (submitted < images.size() && pending.size() < depth) {
+                pending.addLast(submitPrepare(executor, imageFilter,
+                        images.get(submitted++)));
+            }
 
             progress.progressMessage("Core content");
             // First save mimetype
-            zipOutput.setLevel(0);
-            zipOutput.setMethod(ZipOutputStream.STORED);
-
             {
                 final byte[] mimetypeBytes = "application/vnd.oasis.opendocument.text"
                         .getBytes(Charset.forName("ASCII"));
                 final ZipEntry mimetypeEntry = new ZipEntry("mimetype");
                 mimetypeEntry.setMethod(ZipEntry.STORED);
-                mimetypeEntry.setCompressedSize(mimetypeBytes.length);
-                mimetypeEntry.setSize(mimetypeBytes.length);
-                final CRC32 crc = new CRC32();
-                crc.update(mimetypeBytes);
-                mimetypeEntry.setCrc(crc.getValue());
                 zipOutput.putNextEntry(mimetypeEntry);
                 zipOutput.write(mimetypeBytes);
                 if (!progress.progress(++progressValue)) {
@@ -194,181 +243,197 @@ public class ODTFile {
                 }
             }
 
-            // Then save content.xml and styles.xml
-            zipOutput.setMethod(ZipOutputStream.DEFLATED);
-            zipOutput.setLevel(9);
-            zipOutput.putNextEntry(new ZipEntry("content.xml"));
-            filterContent(namesSubstitution, contentCopy);
-            Utils.saveDOM(contentCopy, zipOutput);
-            if (!progress.progress(++progressValue)) {
-                return false;
-            }
-            zipOutput.putNextEntry(new ZipEntry("styles.xml"));
-            filterStyles(namesSubstitution, stylesCopy);
-            Utils.saveDOM(stylesCopy, zipOutput);
-            if (!progress.progress(++progressValue)) {
-                return false;
-            }
-
-            // Save manifest.xml
-            zipOutput.putNextEntry(new ZipEntry("META-INF/manifest.xml"));
-            filterManifest(namesSubstitution, manifestCopy);
-            Utils.saveDOM(manifestCopy, zipOutput);
-            if (!progress.progress(++progressValue)) {
-                return false;
+            // Save all remaining files while the first images are prepared
+            progress.progressMessage("Remaining files");
+            for (final String filePath : mFiles) {
+                if (!progress.progress(++progressValue)) {
+                    return false;
+                }
+                copyEntry(zipOutput, filePath, filePath);
             }
 
-            // Save all pictures
+            // Save all pictures, in order
             progress.progressMessage("Images");
-            if (imageFilter == null) {
-                imageFilter = new DummyImageFilter();
-            }
-            for (final ImageInfo info : mImagesMap.values()) {
-                if (!progress.progress(++progressValue)) {
+            int preparedCount = 0;
+            while (!pending.isEmpty()) {
+                final ImageInfo info = waitForImage(pending.removeFirst(),
+                        progress, progressValue);
+                if (info == null) {
                     return false;
                 }
-                if (!info.isEmbedded()) {
-                    continue;
+                if (submitted < images.size()) {
+                    pending.addLast(submitPrepare(executor, imageFilter,
+                            images.get(submitted++)));
+                }
+                ++preparedCount;
+                if (mImageProgressListener != null) {
+                    mImageProgressListener.imagePrepared(info, preparedCount,
+                            images.size());
                 }
-                zipOutput.putNextEntry(new ZipEntry(namesSubstitution.get(info
-                        .getRelativeName())));
-                imageFilter.getImageData(info, zipOutput);
-                zipOutput.closeEntry();
-            }
-
-            // Save all remaining files
-            progress.progressMessage("Remaining files");
-            for (final String filePath : mFiles) {
                 if (!progress.progress(++progressValue)) {
                     return false;
                 }
-                zipOutput.putNextEntry(new ZipEntry(filePath));
-                try (FileInputStream input = new FileInputStream(new File(
-                        mTempPath, filePath))) {
-                    int length;
-                    while ((length = input.read(buffer)) > 0) {
-                        zipOutput.write(buffer, 0, length);
+                final String newName = imageFilter.getImageFileName(info);
+                namesSubstitution.put(info.getRelativeName(), newName);
+                // Duplicates are not saved; they point to the kept image
+                for (final String alias : info.getAliases()) {
+                    namesSubstitution.put(alias, newName);
+                }
+                if (imageFilter.isImageChanged(info)) {
+                    try (OutputStream output = new SampledEntryOutputStream(
+                            zipOutput, newName, mCompressionPolicy)) {
+                        imageFilter.getImageData(info, output);
                     }
+                } else {
+                    copyEntry(zipOutput, info.getRelativeName(), newName);
+                }
+                if (!progress.progress(++progressValue)) {
+                    return false;
                 }
-                zipOutput.closeEntry();
             }
 
+            // content.xml, styles.xml and the manifest are rewritten on the
+            // fly, now that all names are known
+            progress.progressMessage("Core content");
+            final XMLRewriter documentRewriter = new XMLRewriter(
+                    Collections.singleton(XLINK_HREF), namesSubstitution);
+            final XMLRewriter manifestRewriter = new XMLRewriter(
+                    Collections.singleton(MANIFEST_FULL_PATH),
+                    namesSubstitution);
+            manifestRewriter.setUniqueElement(MANIFEST_FILE_ENTRY,
+                    MANIFEST_FULL_PATH);
+            rewriteEntry(zipOutput, "content.xml", documentRewriter);
+            if (!progress.progress(++progressValue)) {
+                return false;
+            }
+            rewriteEntry(zipOutput, "styles.xml", documentRewriter);
+            if (!progress.progress(++progressValue)) {
+                return false;
+            }
+            rewriteEntry(zipOutput, "META-INF/manifest.xml", manifestRewriter);
+            if (!progress.progress(++progressValue)) {
+                return false;
+            }
+        } finally {
+            executor.shutdownNow();
         }
         return true;
     }
 
-    /** Extract files in the temporary directory */
-    private void extractFiles(final ProgressCheck progress) throws IOException
+    /**
+     * Copy a file from the original ODT source to the output.
+     * 
+     * The compressed data is copied as-is when available; otherwise the file
+     * is compressed again, as the compression policy says.
+     * 
+     * @param zipOutput
+     *            The output
+     * @param fileName
+     *            The file name in the original ODT
+     * @param targetName
+     *            The file name in the output
+     */
+    private void copyEntry(final ZipWriter zipOutput, final String fileName,
+            final String targetName) throws IOException
     {
-        progress.progressMessage("Uncompressing file");
-        try (ZipInputStream zipInput = new ZipInputStream(new FileInputStream(
-                mODTFile))) {
-            ZipEntry zipEntry;
-            while ((zipEntry = zipInput.getNextEntry()) != null) {
-                final String fileName = zipEntry.getName();
-                final File tempPath = new File(mTempPath, fileName);
-                Utils.createTempFilePath(tempPath);
-                tempPath.deleteOnExit();
-                try (FileOutputStream output = new FileOutputStream(tempPath)) {
-                    final byte[] buffer = new byte[4096];
-                    int readCount;
-                    while ((readCount = zipInput.read(buffer)) > 0) {
-                        output.write(buffer, 0, readCount);
-                    }
-                }
-                if (fileName.equals("mimetype")
-                        || fileName.equals("content.xml")
-                        || fileName.equals("styles.xml")
-                        || fileName.equals("META-INF/manifest.xml")) {
-                    // Don't store them in mFiles
-                } else if (fileName.startsWith("Pictures/")) {
-                    mImagesMap.put(fileName, new ImageInfo(this, fileName));
-                } else {
-                    mFiles.add(fileName);
-                }
-            }
+        final RawZipEntry rawEntry = mArchive.getRawEntry(fileName);
+        if (rawEntry != null) {
+            zipOutput.writeRawEntry(targetName, rawEntry);
+            return;
+        }
+        try (InputStream input = openEntry(fileName);
+                OutputStream output = new SampledEntryOutputStream(zipOutput,
+                        targetName, mCompressionPolicy)) {
+            Utils.copyStream(input, output);
         }
     }
 
     /**
-     * Replace pictures path in content.xml
+     * List the files of the archive, and find pictures.
      * 
-     * @param imageReplacements
-     *            List of filenames to replace
-     * @param input
-     *            Source content.xml
+     * Each picture header starts being read as soon as it is found.
      */
-    private void filterContent(final Map<String, String> imageReplacements,
-            final Document input) throws ParserConfigurationException,
-            SAXException, IOException, TransformerException,
-            XPathExpressionException
+    private void listFiles(final ProgressCheck progress,
+            final ImageInfoListener listener) throws IOException
     {
-        final XPathExpression expr = sXPath
-                .compile("//*[@*[name()='xlink:href' and starts-with(., 'Pictures/')]]");
-        final NodeList nodes = (NodeList) expr.evaluate(input,
-                XPathConstants.NODESET);
-        for (int i = 0; i < nodes.getLength(); ++i) {
-            final Node node = nodes.item(i);
-            final NamedNodeMap attributes = node.getAttributes();
-            final Node nodeAttr = attributes.getNamedItem("xlink:href");
-            if (imageReplacements.containsKey(nodeAttr.getTextContent())) {
-                nodeAttr.setTextContent(imageReplacements.get(nodeAttr
-                        .getTextContent()));
+        progress.progressMessage("Reading pictures");
+        final List<String> entryNames = mArchive.getEntryNames();
+        progress.progressNewMaxValue(entryNames.size());
+        int progressValue = 0;
+        for (final String fileName : entryNames) {
+            if (fileName.equals("mimetype")
+                    || fileName.equals("content.xml")
+                    || fileName.equals("styles.xml")
+                    || fileName.equals("META-INF/manifest.xml")) {
+                // Don't store them in mFiles
+            } else if (fileName.startsWith("Pictures/")) {
+                final ImageInfo info = new ImageInfo(this, fileName);
+                mImagesMap.put(fileName, info);
+                info.startProbe(listener);
+            } else {
+                mFiles.add(fileName);
             }
+            progress.progress(++progressValue);
         }
     }
 
     /**
-     * Replace all files references in the manifest
-     * 
-     * TODO create manifest while saving instead of changing the old one
+     * Open the ODT archive.
      * 
-     * @param imageReplacements
-     *            Image names to replace
-     * @param input
-     *            Source manifest file
+     * Entries are read directly from the zip file if possible. If the zip
+     * central directory is not usable, the archive is extracted in a temporary
+     * directory instead.
      */
-    private void filterManifest(final Map<String, String> imageReplacements,
-            final Document input) throws ParserConfigurationException,
-            SAXException, IOException, TransformerException
+    private void openArchive(final ProgressCheck progress) throws IOException
     {
-        final NodeList nodes = input
-                .getElementsByTagName("manifest:file-entry");
-        for (int i = 0; i < nodes.getLength(); ++i) {
-            final Node node = nodes.item(i);
-            final NamedNodeMap attributes = node.getAttributes();
-            final Node nodeAttr = attributes.getNamedItem("manifest:full-path");
-            if (imageReplacements.containsKey(nodeAttr.getTextContent())) {
-                nodeAttr.setTextContent(imageReplacements.get(nodeAttr
-                        .getTextContent()));
-            }
+        progress.progressMessage("Opening file");
+        try {
+            mArchive = new ZipArchiveReader(mODTFile);
+        } catch (final ZipException e) {
+            progress.progressMessage("Uncompressing file");
+            mArchive = new ExtractedArchiveReader(mODTFile);
         }
     }
 
     /**
-     * Filter images path in styles.xml
+     * Merge images with identical content.
      * 
-     * @param imageReplacements
-     *            Image names replacements
-     * @param input
-     *            Source styles.xml
+     * Only images with the same size are compared, by hashing their content.
+     * The first image in archive order is kept, and the others become it's
+     * aliases.
      */
-    private void filterStyles(final Map<String, String> imageReplacements,
-            final Document input) throws ParserConfigurationException,
-            SAXException, IOException, TransformerException,
-            XPathExpressionException
+    private void mergeDuplicateImages(final ProgressCheck progress)
+            throws IOException
     {
-        final XPathExpression expr = sXPath
-                .compile("//*[@*[name()='xlink:href' and starts-with(., 'Pictures/')]]");
-        final NodeList nodes = (NodeList) expr.evaluate(input,
-                XPathConstants.NODESET);
-        for (int i = 0; i < nodes.getLength(); ++i) {
-            final Node node = nodes.item(i);
-            final NamedNodeMap attributes = node.getAttributes();
-            final Node nodeAttr = attributes.getNamedItem("xlink:href");
-            if (imageReplacements.containsKey(nodeAttr.getTextContent())) {
-                nodeAttr.setTextContent(imageReplacements.get(nodeAttr
-                        .getTextContent()));
+        progress.progressMessage("Finding duplicate pictures");
+        final Map<Long, List<ImageInfo>> sameSize = new HashMap<>();
+        for (final ImageInfo info : mImagesMap.values()) {
+            if (!info.isEmbedded()) {
+                continue;
+            }
+            List<ImageInfo> group = sameSize.get(info.getImageSize());
+            if (group == null) {
+                group = new ArrayList<>();
+                sameSize.put(info.getImageSize(), group);
+            }
+            group.add(info);
+        }
+        for (final List<ImageInfo> group : sameSize.values()) {
+            if (group.size() < 2) {
+                continue;
+            }
+            final Map<ByteBuffer, ImageInfo> kept = new HashMap<>();
+            for (final ImageInfo info : group) {
+                final ByteBuffer hash = ByteBuffer.wrap(info
+                        .getContentHash());
+                final ImageInfo original = kept.get(hash);
+                if (original == null) {
+                    kept.put(hash, info);
+                } else {
+                    original.addAlias(info);
+                    mImagesMap.remove(info.getRelativeName());
+                    info.cancelProbe();
+                }
             }
         }
     }
@@ -380,20 +445,94 @@ public class ODTFile {
     }
 
     /**
-     * Return a file from the original ODT source.
+     * Return the size of a file from the original ODT source.
+     * 
+     * @param fileName
+     *            The relative file name
+     * @return The uncompressed file size, or -1 if unknown
+     */
+    public long getEntrySize(final String fileName) throws IOException
+    {
+        return mArchive.getEntrySize(fileName);
+    }
+
+    /**
+     * Estimate the output size of everything but the images.
+     * 
+     * Copied files keep their compressed size; content.xml, styles.xml and
+     * the manifest are counted with their original compressed size, which is
+     * close since only image names change in them. Zip headers are included.
+     * 
+     * @return The estimated size in bytes
+     */
+    public long getOtherEntriesSize() throws IOException
+    {
+        long result = ZipWriter.getEntryOverhead("mimetype")
+                + "application/vnd.oasis.opendocument.text".length()
+                + ZipWriter.getEndOverhead();
+        final List<String> names = new ArrayList<>(mFiles);
+        names.add("content.xml");
+        names.add("styles.xml");
+        names.add("META-INF/manifest.xml");
+        for (final String name : names) {
+            final RawZipEntry rawEntry = mArchive.getRawEntry(name);
+            final long size = rawEntry != null ? rawEntry.getCompressedSize()
+                    : getEntrySize(name);
+            result += ZipWriter.getEntryOverhead(name) + Math.max(0, size);
+        }
+        return result;
+    }
+
+    /** Check if a file exists in the original ODT source */
+    public boolean hasEntry(final String fileName)
+    {
+        return mArchive.hasEntry(fileName);
+    }
+
+    /**
+     * Return the SHA-256 hash of a file from the original ODT source.
      * 
      * @param fileName
      *            The relative file name
-     * @return The file object, or null if the file doesn't exist.
      */
-    public File getExtractedFile(final String fileName) throws IOException
+    public byte[] hashEntry(final String fileName) throws IOException
     {
-        final File relativePath = new File(fileName);
-        if (relativePath.isAbsolute()) {
-            return null;
+        final MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        final byte[] buffer = new byte[16384];
+        try (InputStream input = openEntry(fileName)) {
+            int length;
+            while ((length = input.read(buffer)) > 0) {
+                digest.update(buffer, 0, length);
+            }
         }
-        final File resultFile = new File(mTempPath, fileName);
-        return resultFile.exists() ? resultFile : null;
+        return digest.digest();
+    }
+
+    /** Return the policy choosing how entries are compressed */
+    public EntryCompressionPolicy getCompressionPolicy()
+    {
+        return mCompressionPolicy;
+    }
+
+    /**
+     * Return the images prepared by previous saves.
+     * 
+     * The store is emptied when the file is closed.
+     */
+    public PreparedImageStore getPreparedImageStore()
+    {
+        return mPreparedImageStore;
+    }
+
+    /** Return the number of threads used to prepare images */
+    public int getPrepareThreads()
+    {
+        return mPrepareThreads;
     }
 
     /** Return the number of images in the file */
@@ -409,96 +548,153 @@ public class ODTFile {
     }
 
     /**
-     * Get image informations from content.xml and styles.xml
+     * Read a file from the original ODT source.
      * 
-     * This mainly extract print size from content.xml
+     * @param fileName
+     *            The relative file name
+     * @return A stream on the file content. The caller must close it.
+     * @throws IOException
+     *             If the file doesn't exist or can't be read
+     */
+    public InputStream openEntry(final String fileName) throws IOException
+    {
+        return mArchive.openEntry(fileName);
+    }
+
+    /**
+     * Get image informations from content.xml and styles.xml
      * 
-     * @throws XPathExpressionException
+     * This mainly extract print size from content.xml. Both files are
+     * scanned once; no DOM is kept.
      */
     private void readImagesInfo(final ProgressCheck progress)
-            throws IOException, ParserConfigurationException, SAXException,
-            XPathExpressionException
+            throws IOException, XMLStreamException
     {
         progress.progressMessage("Reading image informations");
-        int progressValue = 0;
-        final XPathExpression contentImageExpression = sXPath
-                .compile("//*[name()='draw:frame']/*[name()='draw:image'][@*[name()='xlink:href' and starts-with(., 'Pictures/')]]");
-        final XPathExpression stylesImageExpression = sXPath
-                .compile("//*[@*[name()='xlink:href' and starts-with(., 'Pictures/')]]");
-        final NodeList contentImageNodes = (NodeList) contentImageExpression
-                .evaluate(mContent, XPathConstants.NODESET);
-        final NodeList styleImageNodes = (NodeList) stylesImageExpression
-                .evaluate(mStyles, XPathConstants.NODESET);
-        progress.progressNewMaxValue(contentImageNodes.getLength()
-                + styleImageNodes.getLength() + 1);
-        for (int i = 0; i < contentImageNodes.getLength(); ++i) {
-            final Node node = contentImageNodes.item(i);
-            final Node parentNode = node.getParentNode();
-            if (parentNode.getNodeName().equals("draw:frame")) {
-                final String imagePath = node.getAttributes()
-                        .getNamedItem("xlink:href").getTextContent();
-                final NamedNodeMap parentNodeAttributes = parentNode
-                        .getAttributes();
-                final ImageInfo imageInfo = mImagesMap.get(imagePath);
-                final Node widthItem = parentNodeAttributes
-                        .getNamedItem("svg:width");
-                final Node heightItem = parentNodeAttributes
-                        .getNamedItem("svg:height");
-                if (widthItem != null && heightItem != null) {
-                    final double drawWidth = Utils.sizeStringToDouble(widthItem
-                            .getTextContent());
-                    final double drawHeight = Utils
-                            .sizeStringToDouble(heightItem.getTextContent());
-                    imageInfo.increaseDrawSize(drawWidth, drawHeight);
-                }
-                final Node nameNode = parentNodeAttributes
-                        .getNamedItem("draw:name");
-                if (nameNode != null) {
-                    imageInfo.addName(nameNode.getTextContent());
-                }
-            }
-            progress.progress(++progressValue);
+        progress.progressNewMaxValue(3);
+        final ImageReferenceIndex index = new ImageReferenceIndex();
+        try (InputStream input = openEntry("content.xml")) {
+            index.scan(input);
         }
-        for (int i = 0; i < styleImageNodes.getLength(); ++i) {
-            final Node node = styleImageNodes.item(i);
-            final NamedNodeMap nodeAttributes = node.getAttributes();
-            final String imagePath = nodeAttributes.getNamedItem("xlink:href")
-                    .getTextContent();
+        progress.progress(1);
+        try (InputStream input = openEntry("styles.xml")) {
+            index.scan(input);
+        }
+        progress.progress(2);
+        for (final String imagePath : index.getPaths()) {
             final ImageInfo imageInfo = mImagesMap.get(imagePath);
-            final Node displayNameNode = nodeAttributes
-                    .getNamedItem("draw:display-name");
-            if (displayNameNode != null) {
-                imageInfo.addName(displayNameNode.getTextContent());
-            } else {
-                final Node nameNode = nodeAttributes.getNamedItem("draw:name");
-                if (nameNode != null) {
-                    imageInfo.addName(nameNode.getTextContent());
-                }
+            if (imageInfo == null) {
+                // Referenced, but not in the archive
+                continue;
             }
-            progress.progress(++progressValue);
+            final ImageReferenceIndex.Reference reference = index
+                    .get(imagePath);
+            final ImageSize drawSizeCm = reference.getDrawSizeCm();
+            imageInfo.increaseDrawSize(drawSizeCm.getX(), drawSizeCm.getY());
+            for (final String name : reference.getNames()) {
+                imageInfo.addName(name);
+            }
+            imageInfo.addReferences(reference.getCount());
         }
     }
 
     /**
-     * Read XMLs files (content.xml and styles.xml)
+     * Copy an XML file from the original ODT source to the output, replacing
+     * pictures references.
      * 
-     * @throws ParserConfigurationException
-     * @throws IOException
-     * @throws SAXException
+     * @param zipOutput
+     *            The output
+     * @param fileName
+     *            The file name, both in the original ODT and the output
+     * @param rewriter
+     *            The rewriter replacing pictures references
      */
-    private void readXMLs(final ProgressCheck progress)
-            throws ParserConfigurationException, SAXException, IOException
+    private void rewriteEntry(final ZipWriter zipOutput,
+            final String fileName, final XMLRewriter rewriter)
+            throws IOException, XMLStreamException
     {
-        progress.progressMessage("Reading content");
-        progress.progressNewMaxValue(3);
-        if (sDocumentBuilder == null) {
-            sDocumentBuilder = sDOMFactory.newDocumentBuilder();
+        zipOutput.putNextEntry(fileName,
+                mCompressionPolicy.getLevel(fileName));
+        try (InputStream input = openEntry(fileName)) {
+            rewriter.rewrite(input, zipOutput);
+        }
+        zipOutput.closeEntry();
+    }
+
+    /**
+     * Set the policy choosing how entries are compressed in createCopy()
+     * 
+     * Entries copied from the original file without being uncompressed keep
+     * their compression.
+     */
+    public void setCompressionPolicy(final EntryCompressionPolicy policy)
+    {
+        mCompressionPolicy = policy;
+    }
+
+    /**
+     * Set a listener notified each time an image is prepared in createCopy()
+     * 
+     * @param listener
+     *            The listener, or null to remove it
+     */
+    public void setImageProgressListener(final ImageProgressListener listener)
+    {
+        mImageProgressListener = listener;
+    }
+
+    /**
+     * Set the number of threads used to prepare images in createCopy()
+     * 
+     * @param threads
+     *            Number of threads; at least 1
+     */
+    public void setPrepareThreads(final int threads)
+    {
+        mPrepareThreads = Math.max(1, threads);
+    }
+
+    /** Start preparing an image */
+    private static Future<ImageInfo> submitPrepare(
+            final ExecutorService executor, final ImageFilter imageFilter,
+            final ImageInfo info)
+    {
+        return executor.submit(new Callable<ImageInfo>() {
+
+            @Override
+            public ImageInfo call() throws Exception
+            {
+                imageFilter.prepareImage(info);
+                return info;
+            }
+        });
+    }
+
+    /**
+     * Wait until an image is prepared.
+     * 
+     * Progress is reported while waiting, so cancellation is checked even on
+     * long images.
+     * 
+     * @return The prepared image, or null if the process was interrupted
+     */
+    private static ImageInfo waitForImage(final Future<ImageInfo> future,
+            final ProgressCheck progress, final int progressValue)
+            throws Exception
+    {
+        while (true) {
+            try {
+                return future.get(100, TimeUnit.MILLISECONDS);
+            } catch (final TimeoutException e) {
+                if (!progress.progress(progressValue)) {
+                    return null;
+                }
+            } catch (final ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
         }
-        mContent = sDocumentBuilder.parse(getExtractedFile("content.xml"));
-        progress.progress(1);
-        mStyles = sDocumentBuilder.parse(getExtractedFile("styles.xml"));
-        progress.progress(2);
-        mManifest = sDocumentBuilder
-                .parse(getExtractedFile("META-INF/manifest.xml"));
     }
 }
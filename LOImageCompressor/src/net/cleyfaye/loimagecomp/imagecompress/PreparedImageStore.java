@@ -0,0 +1,323 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import net.cleyfaye.loimagecomp.imagecompress.ImageEncoder.Format;
+
+/**
+ * Keep the images prepared for a document, to reuse them when it is saved
+ * again.
+ * 
+ * Unlike ProcessedImageCache, entries only live as long as the document is
+ * open. When the same document is saved again with other settings, only the
+ * images whose key changed are processed again.
+ * 
+ * Entries not used by the last KEPT_SAVES saves are dropped when a new save
+ * starts, so going back to previous settings is still fast, but the store
+ * doesn't grow forever. Data is kept in memory up to a budget, and in
+ * temporary files beyond.
+ * 
+ * Background runs, which prepare images before any save, call startRun()
+ * instead. Entries they stored that no save used are dropped the same way,
+ * after KEPT_RUNS runs, so changing the settings again and again doesn't
+ * fill the store either.
+ * 
+ * This class is thread-safe. Entries are only released by startSave(),
+ * startRun() and clear(), which wait until no entry is being read; images
+ * can be read while others are added.
+ * 
+ * @author Cley Faye
+ */
+public class PreparedImageStore {
+
+    /**
+     * A stored image.
+     * 
+     * @author Cley Faye
+     */
+    private static class Entry {
+        private final Format mFormat;
+        private final EncodeBuffer mData;
+        /** Last save that used this entry */
+        private volatile int mGeneration;
+        /** Last background run that used this entry; SAVED once a save did */
+        private volatile int mRun;
+
+        public Entry(final Format format, final EncodeBuffer data,
+                final int generation, final int run) {
+            mFormat = format;
+            mData = data;
+            mGeneration = generation;
+            mRun = run;
+        }
+    }
+
+    /** Default memory budget for stored images, in bytes */
+    public static final long DEFAULT_BUDGET = 64 * 1024 * 1024;
+    /** Number of saves after which an unused entry is dropped */
+    public static final int KEPT_SAVES = 2;
+    /** Number of background runs after which an unsaved entry is dropped */
+    public static final int KEPT_RUNS = 1;
+    /** Entry.mRun of the entries used by a save */
+    private static final int SAVED = -1;
+
+    /** Memory for stored images */
+    private final EncodeBufferPool mBufferPool;
+    private final Map<ProcessedImageKey, Entry> mEntries = new HashMap<>();
+    /**
+     * Protect mEntries.
+     * 
+     * The read lock is kept while an entry data is read, so it's not released
+     * meanwhile; the write lock is needed to change mEntries.
+     */
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+    /** Incremented by each startSave() */
+    private volatile int mGeneration = 0;
+    /** Incremented by each startRun() */
+    private volatile int mRun = 0;
+    /** Is the store used by a background run, rather than by a save */
+    private volatile boolean mInRun = false;
+    /** Number of successful lookups */
+    private final AtomicLong mHits = new AtomicLong();
+    /** Number of failed lookups */
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /** Create a store with the default budget */
+    public PreparedImageStore() {
+        this(DEFAULT_BUDGET);
+    }
+
+    /**
+     * Create a store.
+     * 
+     * @param budget
+     *            Memory kept for images, in bytes. Images beyond are kept in
+     *            temporary files.
+     */
+    public PreparedImageStore(final long budget) {
+        mBufferPool = new EncodeBufferPool(budget);
+    }
+
+    /**
+     * Drop all entries.
+     * 
+     * Wait until the entries being read are done.
+     */
+    public void clear()
+    {
+        mLock.writeLock().lock();
+        try {
+            for (final Entry entry : mEntries.values()) {
+                entry.mData.release();
+            }
+            mEntries.clear();
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read an entry.
+     * 
+     * @param key
+     *            The entry key
+     * @param output
+     *            Receive the entry data on success. The stream is not closed.
+     * @return The entry format, or null if the entry is not in the store.
+     */
+    public Format get(final ProcessedImageKey key, final OutputStream output)
+            throws IOException
+    {
+        final Format result = read(key, output, true);
+        if (result == null) {
+            mMisses.incrementAndGet();
+        } else {
+            mHits.incrementAndGet();
+        }
+        return result;
+    }
+
+    /** Return the number of successful lookups */
+    public long getHits()
+    {
+        return mHits.get();
+    }
+
+    /** Return the number of failed lookups */
+    public long getMisses()
+    {
+        return mMisses.get();
+    }
+
+    /** Return the number of stored images */
+    public int getSize()
+    {
+        mLock.readLock().lock();
+        try {
+            return mEntries.size();
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Read an entry, without counting it as used.
+     * 
+     * Unlike get(), this doesn't keep the entry for the next saves, and
+     * doesn't change the statistics.
+     * 
+     * @param key
+     *            The entry key
+     * @param output
+     *            Receive the entry data on success. The stream is not closed.
+     * @return The entry format, or null if the entry is not in the store.
+     */
+    public Format peek(final ProcessedImageKey key, final OutputStream output)
+            throws IOException
+    {
+        return read(key, output, false);
+    }
+
+    /**
+     * Add an entry.
+     * 
+     * The data is copied; nothing is done if the key is already stored.
+     * 
+     * @param key
+     *            The entry key
+     * @param format
+     *            The image format
+     * @param data
+     *            The encoded image
+     */
+    public void put(final ProcessedImageKey key, final Format format,
+            final EncodeBuffer data) throws IOException
+    {
+        mLock.readLock().lock();
+        try {
+            final Entry entry = mEntries.get(key);
+            if (entry != null) {
+                if (entry.mRun != SAVED) {
+                    entry.mRun = getRun();
+                }
+                return;
+            }
+        } finally {
+            mLock.readLock().unlock();
+        }
+        final EncodeBuffer copy = mBufferPool.newBuffer();
+        try {
+            data.writeTo(copy);
+            copy.close();
+        } catch (final IOException e) {
+            copy.release();
+            throw e;
+        }
+        mLock.writeLock().lock();
+        try {
+            if (!mEntries.containsKey(key)) {
+                mEntries.put(key, new Entry(format, copy, mGeneration,
+                        getRun()));
+                return;
+            }
+        } finally {
+            mLock.writeLock().unlock();
+        }
+        copy.release();
+    }
+
+    /** Return the Entry.mRun of the entries used now */
+    private int getRun()
+    {
+        return mInRun ? mRun : SAVED;
+    }
+
+    /**
+     * Read an entry.
+     * 
+     * @param use
+     *            If true, the entry is kept for the next saves
+     * @return The entry format, or null if the entry is not in the store.
+     */
+    private Format read(final ProcessedImageKey key,
+            final OutputStream output, final boolean use) throws IOException
+    {
+        // Entries are never changed once stored; the lock keeps them from
+        // being released while they are read
+        mLock.readLock().lock();
+        try {
+            final Entry entry = mEntries.get(key);
+            if (entry == null) {
+                return null;
+            }
+            if (use) {
+                entry.mGeneration = mGeneration;
+                if (entry.mRun != SAVED) {
+                    entry.mRun = getRun();
+                }
+            }
+            entry.mData.writeTo(output);
+            return entry.mFormat;
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Start a new background run.
+     * 
+     * Entries not used by the last KEPT_RUNS runs, nor by any save, are
+     * dropped. Must not be called while a save is using the store. Wait until
+     * the entries being read are done.
+     */
+    public void startRun()
+    {
+        mLock.writeLock().lock();
+        try {
+            final Iterator<Entry> it = mEntries.values().iterator();
+            while (it.hasNext()) {
+                final Entry entry = it.next();
+                if (entry.mRun != SAVED && mRun - entry.mRun >= KEPT_RUNS) {
+                    entry.mData.release();
+                    it.remove();
+                }
+            }
+            ++mRun;
+            mInRun = true;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Start a new save.
+     * 
+     * Entries not used by the last KEPT_SAVES saves are dropped. Wait until
+     * the entries being read are done.
+     */
+    public void startSave()
+    {
+        mLock.writeLock().lock();
+        try {
+            final Iterator<Entry> it = mEntries.values().iterator();
+            while (it.hasNext()) {
+                final Entry entry = it.next();
+                if (mGeneration - entry.mGeneration >= KEPT_SAVES) {
+                    entry.mData.release();
+                    it.remove();
+                }
+            }
+            ++mGeneration;
+            mInRun = false;
+        } finally {
+            mLock.writeLock().unlock();
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.cleyfaye.loimagecomp.imagecompress.ImageEncoder.Format;
+import net.cleyfaye.loimagecomp.utils.Utils;
+
+/**
+ * Keep processed images on disk, to reuse them from one run to another.
+ * 
+ * Each entry is a file named after it's key, with the output format suffix.
+ * Entries are written to a temporary file and moved in place, so other
+ * processes using the same directory never see a partial entry.
+ * 
+ * When the cache grows over it's maximum size, the least recently used
+ * entries are removed. Entries are marked as used by updating their
+ * modification time.
+ * 
+ * This class is thread-safe.
+ * 
+ * @author Cley Faye
+ */
+public class ProcessedImageCache {
+
+    /** Suffix of entries being written */
+    private static final String PARTIAL_SUFFIX = ".part";
+    /** Eviction removes entries until the cache is this much of it's maximum */
+    private static final double EVICTION_TARGET = 0.9;
+
+    /** Cache directory */
+    private final File mDirectory;
+    /** Maximum total size of entries, in bytes */
+    private final long mMaxSize;
+    /** Estimated total size of entries */
+    private final AtomicLong mSize = new AtomicLong();
+    /** Number of successful lookups */
+    private final AtomicLong mHits = new AtomicLong();
+    /** Number of failed lookups */
+    private final AtomicLong mMisses = new AtomicLong();
+
+    /**
+     * Open a cache.
+     * 
+     * @param directory
+     *            The cache directory. It is created if needed.
+     * @param maxSize
+     *            Maximum total size of entries, in bytes
+     */
+    public ProcessedImageCache(final File directory, final long maxSize)
+            throws IOException {
+        mDirectory = directory;
+        mMaxSize = maxSize;
+        Files.createDirectories(mDirectory.toPath());
+        long size = 0;
+        for (final File entry : listEntries()) {
+            size += entry.length();
+        }
+        mSize.set(size);
+    }
+
+    /**
+     * Read an entry.
+     * 
+     * @param key
+     *            The entry key
+     * @param output
+     *            Receive the entry data on success. The stream is not closed.
+     *            If the entry can't be read, some data may have been written.
+     * @return The entry format, or null if the entry is not in the cache.
+     */
+    public Format get(final ProcessedImageKey key, final OutputStream output)
+    {
+        for (final Format format : Format.values()) {
+            final File entry = getEntryFile(key, format);
+            try (FileInputStream input = new FileInputStream(entry)) {
+                Utils.copyStream(input, output);
+                entry.setLastModified(System.currentTimeMillis());
+                mHits.incrementAndGet();
+                return format;
+            } catch (final FileNotFoundException e) {
+                // Not in this format
+            } catch (final IOException e) {
+                // Unreadable; probably removed by another process
+                break;
+            }
+        }
+        mMisses.incrementAndGet();
+        return null;
+    }
+
+    /** Return the cache directory */
+    public File getDirectory()
+    {
+        return mDirectory;
+    }
+
+    /** Return the number of successful lookups */
+    public long getHits()
+    {
+        return mHits.get();
+    }
+
+    /** Return the maximum total size of entries */
+    public long getMaxSize()
+    {
+        return mMaxSize;
+    }
+
+    /** Return the number of failed lookups */
+    public long getMisses()
+    {
+        return mMisses.get();
+    }
+
+    /**
+     * Add an entry.
+     * 
+     * @param key
+     *            The entry key
+     * @param format
+     *            The image format
+     * @param data
+     *            The encoded image
+     */
+    public void put(final ProcessedImageKey key, final Format format,
+            final EncodeBuffer data) throws IOException
+    {
+        final File partial = File.createTempFile(key.toString(),
+                PARTIAL_SUFFIX, mDirectory);
+        try {
+            try (OutputStream output = new FileOutputStream(partial)) {
+                data.writeTo(output);
+            }
+            final File entry = getEntryFile(key, format);
+            try {
+                Files.move(partial.toPath(), entry.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } catch (final AtomicMoveNotSupportedException e) {
+                Files.move(partial.toPath(), entry.toPath(),
+                        StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            partial.delete();
+        }
+        if (mSize.addAndGet(data.size()) > mMaxSize) {
+            evict();
+        }
+    }
+
+    /** Remove the least recently used entries until the cache is small enough */
+    private synchronized void evict()
+    {
+        final List<File> entries = listEntries();
+        // Snapshot modification times; other processes can change them
+        final Map<File, Long> lastModified = new HashMap<>();
+        long size = 0;
+        for (final File entry : entries) {
+            size += entry.length();
+            lastModified.put(entry, entry.lastModified());
+        }
+        if (size > mMaxSize) {
+            Collections.sort(entries, new Comparator<File>() {
+
+                @Override
+                public int compare(final File o1, final File o2)
+                {
+                    return Long.compare(lastModified.get(o1),
+                            lastModified.get(o2));
+                }
+            });
+            final long target = (long) (mMaxSize * EVICTION_TARGET);
+            for (final File entry : entries) {
+                if (size <= target) {
+                    break;
+                }
+                final long length = entry.length();
+                if (entry.delete()) {
+                    size -= length;
+                }
+            }
+        }
+        mSize.set(size);
+    }
+
+    /** Return the file of an entry */
+    private File getEntryFile(final ProcessedImageKey key, final Format format)
+    {
+        return new File(mDirectory, key.toString() + "." + format.getSuffix());
+    }
+
+    /** Return all complete entries */
+    private List<File> listEntries()
+    {
+        final List<File> result = new ArrayList<>();
+        final File[] files = mDirectory.listFiles();
+        if (files == null) {
+            return result;
+        }
+        for (final File file : files) {
+            if (file.isFile() && !file.getName().endsWith(PARTIAL_SUFFIX)) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,79 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.util.Arrays;
+
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.Controller.SampleQuality;
+import net.cleyfaye.loimagecomp.utils.Utils;
+
+/**
+ * Identify the result of processing an image.
+ * 
+ * Two images with the same key give the same output: same source data, same
+ * target size and same settings.
+ * 
+ * @author Cley Faye
+ */
+public class ProcessedImageKey {
+
+    /** SHA-256 hash of the source image data */
+    private final byte[] mSourceHash;
+    /** Target width, in pixels */
+    private final int mWidth;
+    /** Target height, in pixels */
+    private final int mHeight;
+    /** JPEG quality */
+    private final int mJPGQuality;
+    /** Scaling method */
+    private final SampleQuality mSampleQuality;
+    /** Is transparency killed */
+    private final boolean mKillTransparency;
+
+    public ProcessedImageKey(final byte[] sourceHash, final ImageSize targetSizePx,
+            final int jpgQuality, final SampleQuality sampleQuality,
+            final boolean killTransparency) {
+        mSourceHash = sourceHash.clone();
+        mWidth = (int) targetSizePx.getX();
+        mHeight = (int) targetSizePx.getY();
+        mJPGQuality = jpgQuality;
+        mSampleQuality = sampleQuality;
+        mKillTransparency = killTransparency;
+    }
+
+    @Override
+    public boolean equals(final Object obj)
+    {
+        if (this == obj) {
+            return true;
+        }
+        if (!(obj instanceof ProcessedImageKey)) {
+            return false;
+        }
+        final ProcessedImageKey other = (ProcessedImageKey) obj;
+        return mWidth == other.mWidth && mHeight == other.mHeight
+                && mJPGQuality == other.mJPGQuality
+                && mSampleQuality == other.mSampleQuality
+                && mKillTransparency == other.mKillTransparency
+                && Arrays.equals(mSourceHash, other.mSourceHash);
+    }
+
+    @Override
+    public int hashCode()
+    {
+        int result = Arrays.hashCode(mSourceHash);
+        result = 31 * result + mWidth;
+        result = 31 * result + mHeight;
+        result = 31 * result + mJPGQuality;
+        result = 31 * result + mSampleQuality.hashCode();
+        result = 31 * result + (mKillTransparency ? 1 : 0);
+        return result;
+    }
+
+    /** Return a string usable as a file name, unique for this key */
+    @Override
+    public String toString()
+    {
+        return Utils.toHexString(mSourceHash) + "-" + mWidth + "x" + mHeight
+                + "-q" + mJPGQuality + "-" + mSampleQuality.name()
+                + (mKillTransparency ? "-opaque" : "");
+    }
+}
@@ -0,0 +1,133 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.ZipException;
+
+/**
+ * An entry of a zip file, as stored in the archive.
+ * 
+ * This give access to the compressed data of an entry, along with everything
+ * needed to copy it in another zip file without uncompressing it.
+ * 
+ * @author Cley Faye
+ */
+public class RawZipEntry {
+
+    /** Local file header signature */
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    /** Size of the fixed part of a local file header */
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    /** The zip file */
+    private final FileChannel mChannel;
+    /** Entry name */
+    private final String mName;
+    /** Compression method */
+    private final int mMethod;
+    /** Modification time, in MS-DOS format */
+    private final int mDosTime;
+    /** CRC-32 of the uncompressed data */
+    private final long mCrc;
+    /** Compressed size */
+    private final long mCompressedSize;
+    /** Uncompressed size */
+    private final long mSize;
+    /** Offset of the local file header in the zip file */
+    private final long mLocalHeaderOffset;
+    /** Offset of the compressed data, or -1 if not read yet */
+    private long mDataOffset = -1;
+
+    public RawZipEntry(final FileChannel channel, final String name,
+            final int method, final int dosTime, final long crc,
+            final long compressedSize, final long size,
+            final long localHeaderOffset) {
+        mChannel = channel;
+        mName = name;
+        mMethod = method;
+        mDosTime = dosTime;
+        mCrc = crc;
+        mCompressedSize = compressedSize;
+        mSize = size;
+        mLocalHeaderOffset = localHeaderOffset;
+    }
+
+    public long getCompressedSize()
+    {
+        return mCompressedSize;
+    }
+
+    public long getCrc()
+    {
+        return mCrc;
+    }
+
+    /** Return the modification time, in MS-DOS format */
+    public int getDosTime()
+    {
+        return mDosTime;
+    }
+
+    /** Return the compression method (ZipEntry.STORED or ZipEntry.DEFLATED) */
+    public int getMethod()
+    {
+        return mMethod;
+    }
+
+    public String getName()
+    {
+        return mName;
+    }
+
+    public long getSize()
+    {
+        return mSize;
+    }
+
+    /**
+     * Copy the compressed data to another channel.
+     * 
+     * @param target
+     *            The output channel. Data is written at it's current position.
+     */
+    public void transferTo(final WritableByteChannel target)
+            throws IOException
+    {
+        final long dataOffset = getDataOffset();
+        long transferred = 0;
+        while (transferred < mCompressedSize) {
+            final long count = mChannel.transferTo(dataOffset + transferred,
+                    mCompressedSize - transferred, target);
+            if (count <= 0) {
+                throw new ZipException("Truncated entry: " + mName);
+            }
+            transferred += count;
+        }
+    }
+
+    /** Return the offset of the compressed data, reading the local header */
+    private synchronized long getDataOffset() throws IOException
+    {
+        if (mDataOffset == -1) {
+            final ByteBuffer header = ByteBuffer.allocate(LOCAL_HEADER_SIZE)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (mChannel.read(header,
+                        mLocalHeaderOffset + header.position()) < 0) {
+                    throw new ZipException("Truncated entry: " + mName);
+                }
+            }
+            if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+                throw new ZipException("Invalid local header: " + mName);
+            }
+            final int nameLength = header.getShort(26) & 0xffff;
+            final int extraLength = header.getShort(28) & 0xffff;
+            mDataOffset = mLocalHeaderOffset + LOCAL_HEADER_SIZE + nameLength
+                    + extraLength;
+        }
+        return mDataOffset;
+    }
+}
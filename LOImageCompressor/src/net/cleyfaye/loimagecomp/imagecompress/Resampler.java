@@ -0,0 +1,638 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.WritableRaster;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Resize images using separable filters.
+ * 
+ * Images are processed as horizontal strips of the output, spread on a
+ * fork-join pool. Each strip filters the source rows it needs horizontally,
+ * then combines them vertically. Computations are done on premultiplied
+ * colors, so transparent pixels don't bleed into their neighbours.
+ * 
+ * Each thread keeps it's scratch buffers between calls.
+ * 
+ * @author Cley Faye
+ */
+public class Resampler {
+
+    /**
+     * Filter kernels.
+     * 
+     * When shrinking an image, kernels are widened by the scale factor, so
+     * each output pixel covers all the source pixels it represents.
+     * 
+     * @author Cley Faye
+     */
+    public static enum Kernel {
+        /** Nearest neighbour; fast, but aliases */
+        NEAREST(0),
+        /** Box filter; averages the covered area */
+        BOX(0.5),
+        /** Catmull-Rom bicubic */
+        CATMULL_ROM(2),
+        /** Mitchell-Netravali bicubic (B = C = 1/3) */
+        MITCHELL(2),
+        /** Lanczos, 3 lobes; sharpest, but can ring */
+        LANCZOS3(3);
+
+        /** Kernel radius, in source pixels at scale 1 */
+        private final double mSupport;
+
+        private Kernel(final double support) {
+            mSupport = support;
+        }
+
+        /** Return the kernel radius */
+        public double getSupport()
+        {
+            return mSupport;
+        }
+
+        /** Return the kernel value at a given distance */
+        public double weight(final double x)
+        {
+            final double ax = Math.abs(x);
+            switch (this) {
+            case BOX:
+                return ax < 0.5 ? 1 : ax == 0.5 ? 0.5 : 0;
+            case CATMULL_ROM:
+                return cubic(ax, 0, 0.5);
+            case MITCHELL:
+                return cubic(ax, 1.0 / 3, 1.0 / 3);
+            case LANCZOS3:
+                return ax < 3 ? sinc(ax) * sinc(ax / 3) : 0;
+            default:
+            case NEAREST:
+                return ax <= 0.5 ? 1 : 0;
+            }
+        }
+
+        /** Mitchell-Netravali family of cubic filters */
+        private static double cubic(final double x, final double b,
+                final double c)
+        {
+            if (x < 1) {
+                return ((12 - 9 * b - 6 * c) * x * x * x
+                        + (-18 + 12 * b + 6 * c) * x * x + (6 - 2 * b)) / 6;
+            } else if (x < 2) {
+                return ((-b - 6 * c) * x * x * x + (6 * b + 30 * c) * x * x
+                        + (-12 * b - 48 * c) * x + (8 * b + 24 * c)) / 6;
+            }
+            return 0;
+        }
+
+        private static double sinc(final double x)
+        {
+            if (x == 0) {
+                return 1;
+            }
+            final double px = Math.PI * x;
+            return Math.sin(px) / px;
+        }
+    }
+
+    /**
+     * Source pixels and weights for each output pixel, along one axis.
+     * 
+     * @author Cley Faye
+     */
+    static class Contributions {
+
+        /**
+         * Compute the contributions to resize along one axis.
+         * 
+         * @param kernel
+         *            The filter
+         * @param sourceSize
+         *            Source size, in pixels
+         * @param targetSize
+         *            Output size, in pixels
+         */
+        public static Contributions compute(final Kernel kernel,
+                final int sourceSize, final int targetSize)
+        {
+            final double scale = (double) sourceSize / targetSize;
+            if (kernel == Kernel.NEAREST) {
+                final Contributions result = new Contributions(targetSize, 1);
+                for (int i = 0; i < targetSize; ++i) {
+                    result.mStart[i] = Math.min(sourceSize - 1,
+                            (int) ((i + 0.5) * scale));
+                    result.mCount[i] = 1;
+                    result.mWeights[i] = 1;
+                }
+                return result;
+            }
+            final double filterScale = Math.max(1, scale);
+            final double support = kernel.getSupport() * filterScale;
+            final int stride = (int) Math.ceil(support * 2) + 2;
+            final Contributions result = new Contributions(targetSize, stride);
+            final double[] weights = new double[stride];
+            for (int i = 0; i < targetSize; ++i) {
+                final double center = (i + 0.5) * scale;
+                final int left = Math.max(0,
+                        (int) Math.floor(center - support));
+                final int right = Math.min(sourceSize,
+                        (int) Math.ceil(center + support));
+                double total = 0;
+                int count = 0;
+                for (int j = left; j < right && count < stride; ++j) {
+                    weights[count] = kernel.weight((j + 0.5 - center)
+                            / filterScale);
+                    total += weights[count];
+                    ++count;
+                }
+                if (total == 0) {
+                    // Should not happen, but fall back to nearest neighbour
+                    result.mStart[i] = Math.min(sourceSize - 1, (int) center);
+                    result.mCount[i] = 1;
+                    result.mWeights[i * stride] = 1;
+                    continue;
+                }
+                result.mStart[i] = left;
+                result.mCount[i] = count;
+                for (int k = 0; k < count; ++k) {
+                    result.mWeights[i * stride + k] = (float) (weights[k] / total);
+                }
+            }
+            return result;
+        }
+
+        /** First source pixel for each output pixel */
+        final int[] mStart;
+        /** Number of source pixels for each output pixel */
+        final int[] mCount;
+        /** Weights, stride values per output pixel */
+        final float[] mWeights;
+        /** Maximum number of source pixels per output pixel */
+        final int mStride;
+
+        private Contributions(final int targetSize, final int stride) {
+            mStart = new int[targetSize];
+            mCount = new int[targetSize];
+            mWeights = new float[targetSize * stride];
+            mStride = stride;
+        }
+
+        /** Return the first source pixel after the one used by an output */
+        public int getEnd(final int index)
+        {
+            return mStart[index] + mCount[index];
+        }
+    }
+
+    /**
+     * Buffers reused by a thread between strips.
+     * 
+     * @author Cley Faye
+     */
+    static class Scratch {
+        private int[] mSourceRow = new int[0];
+        private byte[] mSourceBytes = new byte[0];
+        private float[] mPremultiplied = new float[0];
+        private float[] mRows = new float[0];
+        private float[] mAccumulator = new float[0];
+        private int[] mTargetRow = new int[0];
+
+        int[] sourceRow(final int size)
+        {
+            if (mSourceRow.length < size) {
+                mSourceRow = new int[size];
+            }
+            return mSourceRow;
+        }
+
+        byte[] sourceBytes(final int size)
+        {
+            if (mSourceBytes.length < size) {
+                mSourceBytes = new byte[size];
+            }
+            return mSourceBytes;
+        }
+
+        float[] premultiplied(final int size)
+        {
+            if (mPremultiplied.length < size) {
+                mPremultiplied = new float[size];
+            }
+            return mPremultiplied;
+        }
+
+        float[] rows(final int size)
+        {
+            if (mRows.length < size) {
+                mRows = new float[size];
+            }
+            return mRows;
+        }
+
+        float[] accumulator(final int size)
+        {
+            if (mAccumulator.length < size) {
+                mAccumulator = new float[size];
+            }
+            return mAccumulator;
+        }
+
+        int[] targetRow(final int size)
+        {
+            if (mTargetRow.length < size) {
+                mTargetRow = new int[size];
+            }
+            return mTargetRow;
+        }
+    }
+
+    /**
+     * Resize a range of strips, splitting it between threads.
+     * 
+     * @author Cley Faye
+     */
+    private class StripTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final BufferedImage mSource;
+        private final BufferedImage mTarget;
+        private final Contributions mHorizontal;
+        private final Contributions mVertical;
+        private final int mFirstStrip;
+        private final int mEndStrip;
+
+        public StripTask(final BufferedImage source,
+                final BufferedImage target, final Contributions horizontal,
+                final Contributions vertical, final int firstStrip,
+                final int endStrip) {
+            mSource = source;
+            mTarget = target;
+            mHorizontal = horizontal;
+            mVertical = vertical;
+            mFirstStrip = firstStrip;
+            mEndStrip = endStrip;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (mEndStrip - mFirstStrip <= 1) {
+                final int firstRow = mFirstStrip * STRIP_HEIGHT;
+                resampleStrip(mSource, mTarget, mHorizontal, mVertical,
+                        firstRow,
+                        Math.min(mTarget.getHeight(), firstRow + STRIP_HEIGHT));
+                return;
+            }
+            final int middle = (mFirstStrip + mEndStrip) >>> 1;
+            invokeAll(new StripTask(mSource, mTarget, mHorizontal, mVertical,
+                    mFirstStrip, middle), new StripTask(mSource, mTarget,
+                    mHorizontal, mVertical, middle, mEndStrip));
+        }
+    }
+
+    /** Number of output rows processed at once by a thread */
+    private static final int STRIP_HEIGHT = 32;
+
+    /** Pool shared by all resamplers that don't specify one */
+    private static final ForkJoinPool sSharedPool = new ForkJoinPool(Runtime
+            .getRuntime().availableProcessors());
+
+    /** Scratch buffers of each thread */
+    private static final ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>() {
+        @Override
+        protected Scratch initialValue()
+        {
+            return new Scratch();
+        }
+    };
+
+    /** Return the scratch buffers of the current thread */
+    static Scratch getScratch()
+    {
+        return sScratch.get();
+    }
+
+    /**
+     * Return the type of an image resized from another.
+     * 
+     * Transparency is kept if asked, and grayscale pictures stay grayscale.
+     * Everything else is resized as RGB.
+     */
+    static int getTargetType(final BufferedImage source,
+            final boolean keepAlpha)
+    {
+        if (keepAlpha && source.getColorModel().hasAlpha()) {
+            return BufferedImage.TYPE_INT_ARGB;
+        }
+        if (source.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+            return BufferedImage.TYPE_BYTE_GRAY;
+        }
+        return BufferedImage.TYPE_INT_RGB;
+    }
+
+    /**
+     * Combine horizontally filtered rows into output pixels.
+     * 
+     * @param rows
+     *            Filtered rows, 4 premultiplied values per pixel
+     * @param firstRowOffset
+     *            Offset of the first row used by this output row
+     * @param rowStride
+     *            Size of a row in the rows array
+     * @param vertical
+     *            Vertical contributions
+     * @param y
+     *            Output row index
+     * @param keepAlpha
+     *            If false, colors are composited on black and the output is
+     *            opaque
+     * @param accumulator
+     *            Scratch buffer, at least rowStride values
+     * @param output
+     *            Output ARGB pixels
+     */
+    static void combineRows(final float[] rows, final int firstRowOffset,
+            final int rowStride, final Contributions vertical, final int y,
+            final boolean keepAlpha, final float[] accumulator,
+            final int[] output)
+    {
+        final int count = vertical.mCount[y];
+        final int weightOffset = y * vertical.mStride;
+        {
+            final float weight = vertical.mWeights[weightOffset];
+            for (int i = 0; i < rowStride; ++i) {
+                accumulator[i] = weight * rows[firstRowOffset + i];
+            }
+        }
+        for (int k = 1; k < count; ++k) {
+            final float weight = vertical.mWeights[weightOffset + k];
+            final int rowOffset = firstRowOffset + k * rowStride;
+            for (int i = 0; i < rowStride; ++i) {
+                accumulator[i] += weight * rows[rowOffset + i];
+            }
+        }
+        final int width = rowStride / 4;
+        for (int x = 0, i = 0; x < width; ++x, i += 4) {
+            final float alpha = accumulator[i];
+            final float red = accumulator[i + 1];
+            final float green = accumulator[i + 2];
+            final float blue = accumulator[i + 3];
+            if (!keepAlpha) {
+                output[x] = 0xff000000 | clamp(red) << 16 | clamp(green) << 8
+                        | clamp(blue);
+            } else if (alpha <= 0.5f) {
+                output[x] = 0;
+            } else {
+                final float factor = 255f / alpha;
+                output[x] = clamp(alpha) << 24 | clamp(red * factor) << 16
+                        | clamp(green * factor) << 8 | clamp(blue * factor);
+            }
+        }
+    }
+
+    /**
+     * Filter a row horizontally.
+     * 
+     * @param premultiplied
+     *            Source row, 4 premultiplied values per pixel
+     * @param horizontal
+     *            Horizontal contributions
+     * @param output
+     *            Output buffer, 4 premultiplied values per pixel
+     * @param outputOffset
+     *            Offset in the output buffer
+     */
+    static void filterRow(final float[] premultiplied,
+            final Contributions horizontal, final float[] output,
+            final int outputOffset)
+    {
+        final int width = horizontal.mStart.length;
+        final int stride = horizontal.mStride;
+        for (int x = 0, o = outputOffset; x < width; ++x, o += 4) {
+            final int count = horizontal.mCount[x];
+            final int weightOffset = x * stride;
+            float alpha = 0;
+            float red = 0;
+            float green = 0;
+            float blue = 0;
+            for (int k = 0, p = horizontal.mStart[x] * 4; k < count; ++k, p += 4) {
+                final float weight = horizontal.mWeights[weightOffset + k];
+                alpha += weight * premultiplied[p];
+                red += weight * premultiplied[p + 1];
+                green += weight * premultiplied[p + 2];
+                blue += weight * premultiplied[p + 3];
+            }
+            output[o] = alpha;
+            output[o + 1] = red;
+            output[o + 2] = green;
+            output[o + 3] = blue;
+        }
+    }
+
+    /**
+     * Convert ARGB pixels to premultiplied floats.
+     * 
+     * @param row
+     *            Source pixels
+     * @param width
+     *            Number of pixels
+     * @param output
+     *            Output, 4 values per pixel
+     */
+    static void premultiply(final int[] row, final int width,
+            final float[] output)
+    {
+        for (int x = 0, o = 0; x < width; ++x, o += 4) {
+            final int pixel = row[x];
+            final int alpha = pixel >>> 24;
+            if (alpha == 255) {
+                output[o] = 255;
+                output[o + 1] = (pixel >> 16) & 0xff;
+                output[o + 2] = (pixel >> 8) & 0xff;
+                output[o + 3] = pixel & 0xff;
+            } else {
+                final float factor = alpha / 255f;
+                output[o] = alpha;
+                output[o + 1] = ((pixel >> 16) & 0xff) * factor;
+                output[o + 2] = ((pixel >> 8) & 0xff) * factor;
+                output[o + 3] = (pixel & 0xff) * factor;
+            }
+        }
+    }
+
+    /**
+     * Read a row of an image as ARGB pixels.
+     * 
+     * Common image types are read directly from the raster.
+     */
+    static void readRow(final BufferedImage image, final int y,
+            final int[] row, final Scratch scratch)
+    {
+        final int width = image.getWidth();
+        final WritableRaster raster = image.getRaster();
+        switch (image.getType()) {
+        case BufferedImage.TYPE_INT_ARGB:
+            raster.getDataElements(0, y, width, 1, row);
+            break;
+        case BufferedImage.TYPE_INT_RGB:
+            raster.getDataElements(0, y, width, 1, row);
+            for (int x = 0; x < width; ++x) {
+                row[x] |= 0xff000000;
+            }
+            break;
+        case BufferedImage.TYPE_3BYTE_BGR: {
+            final byte[] bytes = scratch.sourceBytes(width * 3);
+            // Elements are returned in band order; R, G, B
+            raster.getDataElements(0, y, width, 1, bytes);
+            for (int x = 0, i = 0; x < width; ++x, i += 3) {
+                row[x] = 0xff000000 | (bytes[i] & 0xff) << 16
+                        | (bytes[i + 1] & 0xff) << 8 | (bytes[i + 2] & 0xff);
+            }
+            break;
+        }
+        case BufferedImage.TYPE_4BYTE_ABGR: {
+            final byte[] bytes = scratch.sourceBytes(width * 4);
+            // Elements are returned in band order; R, G, B, A
+            raster.getDataElements(0, y, width, 1, bytes);
+            for (int x = 0, i = 0; x < width; ++x, i += 4) {
+                row[x] = (bytes[i + 3] & 0xff) << 24
+                        | (bytes[i] & 0xff) << 16 | (bytes[i + 1] & 0xff) << 8
+                        | (bytes[i + 2] & 0xff);
+            }
+            break;
+        }
+        case BufferedImage.TYPE_BYTE_GRAY: {
+            final byte[] bytes = scratch.sourceBytes(width);
+            raster.getDataElements(0, y, width, 1, bytes);
+            for (int x = 0; x < width; ++x) {
+                final int gray = bytes[x] & 0xff;
+                row[x] = 0xff000000 | gray << 16 | gray << 8 | gray;
+            }
+            break;
+        }
+        default:
+            image.getRGB(0, y, width, 1, row, 0, width);
+            break;
+        }
+    }
+
+    /**
+     * Write a row of ARGB pixels in an image.
+     * 
+     * Common image types are written directly to the raster.
+     */
+    static void writeRow(final BufferedImage image, final int y,
+            final int[] row, final Scratch scratch)
+    {
+        final int width = image.getWidth();
+        switch (image.getType()) {
+        case BufferedImage.TYPE_INT_ARGB:
+        case BufferedImage.TYPE_INT_RGB:
+            image.getRaster().setDataElements(0, y, width, 1, row);
+            break;
+        case BufferedImage.TYPE_BYTE_GRAY: {
+            final byte[] bytes = scratch.sourceBytes(width);
+            for (int x = 0; x < width; ++x) {
+                bytes[x] = (byte) ((row[x] >> 8) & 0xff);
+            }
+            image.getRaster().setDataElements(0, y, width, 1, bytes);
+            break;
+        }
+        default:
+            image.setRGB(0, y, width, 1, row, 0, width);
+            break;
+        }
+    }
+
+    /** Round and clamp a color component */
+    private static int clamp(final float value)
+    {
+        final int result = (int) (value + 0.5f);
+        return result < 0 ? 0 : result > 255 ? 255 : result;
+    }
+
+    /** Filter kernel */
+    private final Kernel mKernel;
+    /** Pool running the strips */
+    private final ForkJoinPool mPool;
+
+    /** Create a resampler running on the shared pool */
+    public Resampler(final Kernel kernel) {
+        this(kernel, sSharedPool);
+    }
+
+    /**
+     * Create a resampler
+     * 
+     * @param kernel
+     *            The filter kernel
+     * @param pool
+     *            The pool used to process strips in parallel
+     */
+    public Resampler(final Kernel kernel, final ForkJoinPool pool) {
+        mKernel = kernel;
+        mPool = pool;
+    }
+
+    /** Return the filter kernel */
+    public Kernel getKernel()
+    {
+        return mKernel;
+    }
+
+    /**
+     * Resize an image.
+     * 
+     * @param source
+     *            The source image
+     * @param target
+     *            The output image. The source is resized to fill it. If it has
+     *            no alpha channel, transparent pixels are composited on black.
+     */
+    public void resample(final BufferedImage source, final BufferedImage target)
+    {
+        final Contributions horizontal = Contributions.compute(mKernel,
+                source.getWidth(), target.getWidth());
+        final Contributions vertical = Contributions.compute(mKernel,
+                source.getHeight(), target.getHeight());
+        final int strips = (target.getHeight() + STRIP_HEIGHT - 1)
+                / STRIP_HEIGHT;
+        mPool.invoke(new StripTask(source, target, horizontal, vertical, 0,
+                strips));
+    }
+
+    /** Resize the output rows [firstRow, endRow) */
+    private void resampleStrip(final BufferedImage source,
+            final BufferedImage target, final Contributions horizontal,
+            final Contributions vertical, final int firstRow, final int endRow)
+    {
+        final Scratch scratch = getScratch();
+        final int sourceWidth = source.getWidth();
+        final int targetWidth = target.getWidth();
+        final boolean keepAlpha = target.getColorModel().hasAlpha();
+        // Source rows needed by this strip
+        final int firstSourceRow = vertical.mStart[firstRow];
+        int endSourceRow = firstSourceRow;
+        for (int y = firstRow; y < endRow; ++y) {
+            endSourceRow = Math.max(endSourceRow, vertical.getEnd(y));
+        }
+        final int rowStride = targetWidth * 4;
+        final float[] rows = scratch.rows((endSourceRow - firstSourceRow)
+                * rowStride);
+        final int[] sourceRow = scratch.sourceRow(sourceWidth);
+        final float[] premultiplied = scratch.premultiplied(sourceWidth * 4);
+        for (int y = firstSourceRow; y < endSourceRow; ++y) {
+            readRow(source, y, sourceRow, scratch);
+            premultiply(sourceRow, sourceWidth, premultiplied);
+            filterRow(premultiplied, horizontal, rows, (y - firstSourceRow)
+                    * rowStride);
+        }
+        final float[] accumulator = scratch.accumulator(rowStride);
+        final int[] targetRow = scratch.targetRow(targetWidth);
+        for (int y = firstRow; y < endRow; ++y) {
+            combineRows(rows, (vertical.mStart[y] - firstSourceRow)
+                    * rowStride, rowStride, vertical, y, keepAlpha,
+                    accumulator, targetRow);
+            writeRow(target, y, targetRow, scratch);
+        }
+    }
+}
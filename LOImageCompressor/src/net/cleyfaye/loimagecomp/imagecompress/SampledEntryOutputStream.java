@@ -0,0 +1,83 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Write a zip entry compressed as an EntryCompressionPolicy says.
+ * 
+ * When the policy needs a sample, the start of the data is kept until
+ * EntryCompressionPolicy.SAMPLE_SIZE bytes are written or the stream is
+ * closed; the entry is started once the level is known.
+ * 
+ * Closing the stream closes the entry, not the zip file.
+ * 
+ * @author Cley Faye
+ */
+class SampledEntryOutputStream extends OutputStream {
+
+    private final ZipWriter mOutput;
+    private final String mName;
+    private final EntryCompressionPolicy mPolicy;
+    /** Start of the data; null once the entry is started */
+    private byte[] mSample = null;
+    private int mSampleLength = 0;
+    private boolean mClosed = false;
+
+    public SampledEntryOutputStream(final ZipWriter output, final String name,
+            final EntryCompressionPolicy policy) throws IOException {
+        mOutput = output;
+        mName = name;
+        mPolicy = policy;
+        if (policy.needsSample(name)) {
+            mSample = new byte[EntryCompressionPolicy.SAMPLE_SIZE];
+        } else {
+            mOutput.putNextEntry(name, policy.getLevel(name));
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        if (mClosed) {
+            return;
+        }
+        mClosed = true;
+        if (mSample != null) {
+            startEntry();
+        }
+        mOutput.closeEntry();
+    }
+
+    @Override
+    public void write(final byte[] b, int off, int len) throws IOException
+    {
+        if (mSample != null) {
+            final int count = Math.min(len, mSample.length - mSampleLength);
+            System.arraycopy(b, off, mSample, mSampleLength, count);
+            mSampleLength += count;
+            off += count;
+            len -= count;
+            if (mSampleLength < mSample.length) {
+                return;
+            }
+            startEntry();
+        }
+        mOutput.write(b, off, len);
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /** Start the entry with the level chosen from the sample */
+    private void startEntry() throws IOException
+    {
+        mOutput.putNextEntry(mName,
+                mPolicy.getLevel(mName, mSample, mSampleLength));
+        mOutput.write(mSample, 0, mSampleLength);
+        mSample = null;
+    }
+}
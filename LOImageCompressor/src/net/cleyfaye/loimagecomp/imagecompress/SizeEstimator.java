@@ -0,0 +1,608 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import net.cleyfaye.loimagecomp.imagecompress.ImageEncoder.Format;
+import net.cleyfaye.loimagecomp.imagecompress.Resampler.Kernel;
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.Controller.SampleQuality;
+import net.cleyfaye.loimagecomp.utils.Utils;
+
+/**
+ * Predict the size of a file before saving it.
+ * 
+ * Each image is sampled once, and the samples are kept: a preview of the
+ * whole image (SAMPLE_PIXELS at most), and a few full resolution tiles from
+ * it's middle. To estimate an image, the preview is resized to the target
+ * size and encoded the way saving would, to choose the format; if the target
+ * is larger than the preview, the tiles are resized like the image, encoded,
+ * and their size extrapolated by pixels count. Images already prepared with
+ * the same settings (see PreparedImageStore) are counted with their exact
+ * size.
+ * 
+ * The scaling method only matters for prepared images; previews are always
+ * resized with the default kernel, which gives close enough sizes.
+ * 
+ * Images are estimated in parallel, on the estimator own threads. Estimations
+ * can run while the file is saved; closing the estimator waits for them, so
+ * the file can be closed afterward. Decoding the samples reserves memory from
+ * the shared MemoryBudget, like saving does.
+ * 
+ * @author Cley Faye
+ */
+public class SizeEstimator implements Closeable {
+
+    /**
+     * Estimated sizes of a file.
+     * 
+     * @author Cley Faye
+     */
+    public static class Estimate {
+        private final Map<ImageInfo, Long> mImageSizes;
+        private final long mTotalSize;
+
+        public Estimate(final Map<ImageInfo, Long> imageSizes,
+                final long otherSize) {
+            mImageSizes = Collections.unmodifiableMap(imageSizes);
+            long total = otherSize;
+            for (final Long size : imageSizes.values()) {
+                total += size;
+            }
+            mTotalSize = total;
+        }
+
+        /**
+         * Return the estimated size of an image in the output.
+         * 
+         * @return The size in bytes, zip headers included, or -1 if unknown
+         */
+        public long getImageSize(final ImageInfo imageInfo)
+        {
+            final Long result = mImageSizes.get(imageInfo);
+            return result == null ? -1 : result;
+        }
+
+        /** Return the estimated size of the whole output file */
+        public long getTotalSize()
+        {
+            return mTotalSize;
+        }
+    }
+
+    /**
+     * Images kept to estimate an image.
+     * 
+     * @author Cley Faye
+     */
+    private static class Samples {
+        /** The whole image, SAMPLE_PIXELS at most */
+        private final BufferedImage mPreview;
+        /**
+         * Full resolution tiles, or null if the preview has full resolution
+         */
+        private final BufferedImage mDetail;
+
+        public Samples(final BufferedImage preview,
+                final BufferedImage detail) {
+            mPreview = preview;
+            mDetail = detail;
+        }
+    }
+
+    private static final Logger sLogger = Logger.getLogger(SizeEstimator.class
+            .getName());
+
+    /** Maximum number of pixels of the kept previews */
+    public static final int SAMPLE_PIXELS = 32768;
+    /** Number of full resolution tiles read from each image */
+    private static final int DETAIL_TILES = 4;
+    /** Width and height of full resolution tiles */
+    private static final int DETAIL_TILE_SIZE = 128;
+    /** Pixels count ratio between the two samples of a preview */
+    private static final double SAMPLES_RATIO = 4;
+    /** Lowest growth exponent of the size with the pixels count */
+    private static final double MIN_EXPONENT = 0.3;
+    /** Oversampling when decoding previews; see ImageDecoder.decode() */
+    private static final int PREVIEW_OVERSAMPLING = 2;
+    /** Memory used by a decoded pixel */
+    private static final int BYTES_PER_PIXEL = 4;
+
+    /** Return the size of an image scaled down to at most maxPixels */
+    private static ImageSize fitPixels(final ImageSize sizePx,
+            final long maxPixels)
+    {
+        final double pixels = sizePx.getX() * sizePx.getY();
+        if (pixels <= maxPixels) {
+            return new ImageSize(Math.max(1, sizePx.getX()), Math.max(1,
+                    sizePx.getY()));
+        }
+        final double ratio = Math.sqrt(maxPixels / pixels);
+        return new ImageSize(Math.max(1, Math.floor(sizePx.getX() * ratio)),
+                Math.max(1, Math.floor(sizePx.getY() * ratio)));
+    }
+
+    private final ODTFile mODTFile;
+    /** Resize previews */
+    private final Resampler mResampler = new Resampler(Kernel.CATMULL_ROM);
+    /** Output size of encoded samples; see getSampleSize() */
+    private final Map<String, Long> mSampleSizes = new ConcurrentHashMap<>();
+    /** Size of encoded images without pixels, for each format and quality */
+    private final Map<String, Long> mHeaderSizes = new ConcurrentHashMap<>();
+    /** Output size of prepared images, once computed */
+    private final Map<ProcessedImageKey, Long> mPreparedSizes = new ConcurrentHashMap<>();
+    /** Kept samples, created on first use */
+    private final Map<ImageInfo, Samples> mSamples = new ConcurrentHashMap<>();
+    /** Limit the images decoded at the same time */
+    private final MemoryBudget mMemoryBudget = MemoryBudget.getShared();
+    /** Held by running estimations; close() takes the write lock */
+    private final ReadWriteLock mLock = new ReentrantReadWriteLock();
+    /** Set by close(); images not started yet are not estimated */
+    private volatile boolean mClosed = false;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+
+                @Override
+                public Thread newThread(final Runnable r)
+                {
+                    final Thread result = new Thread(r, "Size estimation");
+                    result.setDaemon(true);
+                    return result;
+                }
+            });
+
+    /**
+     * Create an estimator for a file.
+     * 
+     * @param odtFile
+     *            The file; it must stay open until this estimator is closed
+     */
+    public SizeEstimator(final ODTFile odtFile) {
+        mODTFile = odtFile;
+    }
+
+    /**
+     * Stop the estimator threads, and drop the previews.
+     * 
+     * Running estimations stop after their current images; this waits until
+     * they are done, so the file is not used anymore once this returns.
+     */
+    @Override
+    public void close()
+    {
+        mClosed = true;
+        mLock.writeLock().lock();
+        mLock.writeLock().unlock();
+        mExecutor.shutdown();
+        // Images whose estimation was abandoned may still be running
+        boolean interrupted = false;
+        while (true) {
+            try {
+                if (mExecutor.awaitTermination(1, TimeUnit.MINUTES)) {
+                    break;
+                }
+            } catch (final InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        mSamples.clear();
+        mSampleSizes.clear();
+    }
+
+    /**
+     * Estimate the output size with some settings.
+     * 
+     * Images use their current target size.
+     * 
+     * @param jpgQuality
+     *            JPEG quality
+     * @param sampleQuality
+     *            Scaling method
+     * @param killTransparency
+     *            Are images saved as opaque
+     * @return The estimated sizes. Images that can't be read are not
+     *         counted.
+     * @throws IOException
+     *             If the estimator is closed
+     */
+    public Estimate estimate(final int jpgQuality,
+            final SampleQuality sampleQuality, final boolean killTransparency)
+            throws IOException, InterruptedException
+    {
+        mLock.readLock().lock();
+        try {
+            if (mClosed) {
+                throw new IOException("Size estimator closed");
+            }
+            return estimateImages(jpgQuality, sampleQuality,
+                    killTransparency);
+        } finally {
+            mLock.readLock().unlock();
+        }
+    }
+
+    /** Estimate the output size; see estimate() */
+    private Estimate estimateImages(final int jpgQuality,
+            final SampleQuality sampleQuality, final boolean killTransparency)
+            throws IOException, InterruptedException
+    {
+        final List<ImageInfo> images = new ArrayList<>();
+        final List<Future<Long>> futures = new ArrayList<>();
+        for (final ImageInfo info : mODTFile.getAllImageInfo()) {
+            if (!info.isEmbedded()) {
+                continue;
+            }
+            images.add(info);
+            futures.add(mExecutor.submit(new Callable<Long>() {
+
+                @Override
+                public Long call() throws Exception
+                {
+                    if (mClosed) {
+                        throw new IOException("Size estimator closed");
+                    }
+                    return estimateEntry(info, jpgQuality, sampleQuality,
+                            killTransparency);
+                }
+            }));
+        }
+        final Map<ImageInfo, Long> sizes = new HashMap<>();
+        try {
+            for (int i = 0; i < images.size(); ++i) {
+                final ImageInfo info = images.get(i);
+                try {
+                    sizes.put(info, futures.get(i).get());
+                } catch (final ExecutionException e) {
+                    // Saving will report it
+                    sLogger.log(Level.FINE, "Can't estimate " + info,
+                            e.getCause());
+                }
+            }
+        } finally {
+            for (final Future<Long> future : futures) {
+                // Interrupting a thread reading the archive would close it
+                future.cancel(false);
+            }
+        }
+        if (mClosed) {
+            // Some images were skipped
+            throw new IOException("Size estimator closed");
+        }
+        return new Estimate(sizes, mODTFile.getOtherEntriesSize());
+    }
+
+    /** Estimate the output size of an image, headers included */
+    private long estimateEntry(final ImageInfo imageInfo, final int jpgQuality,
+            final SampleQuality sampleQuality, final boolean killTransparency)
+            throws IOException, InterruptedException
+    {
+        final ImageSize targetSizePx = imageInfo.getTargetImageSizePx();
+        final long overhead = ZipWriter.getEntryOverhead(imageInfo
+                .getRelativeName());
+        final PreparedImageStore store = mODTFile.getPreparedImageStore();
+        // Hashing the image is only worth it if something is prepared
+        if (store.getSize() > 0) {
+            final long prepared = getPreparedSize(imageInfo,
+                    new ProcessedImageKey(imageInfo.getContentHash(),
+                            targetSizePx, jpgQuality, sampleQuality,
+                            killTransparency));
+            if (prepared >= 0) {
+                return prepared + overhead;
+            }
+        }
+        return estimateImage(imageInfo, targetSizePx, jpgQuality,
+                killTransparency) + overhead;
+    }
+
+    /** Estimate the output size of an image from it's samples */
+    private long estimateImage(final ImageInfo imageInfo,
+            final ImageSize targetSizePx, final int jpgQuality,
+            final boolean killTransparency) throws IOException,
+            InterruptedException
+    {
+        final Samples samples = getSamples(imageInfo);
+        final double targetPixels = targetSizePx.getX() * targetSizePx.getY();
+        // The whole image, at the target size if possible, tells which
+        // format is used
+        final ImageSize sampleSizePx = fitPixels(targetSizePx,
+                (long) samples.mPreview.getWidth()
+                        * samples.mPreview.getHeight());
+        Format format = Format.PNG;
+        long sampleSize = getSampleSize(imageInfo, samples, false,
+                sampleSizePx, format, jpgQuality, killTransparency);
+        if (killTransparency || !samples.mPreview.getColorModel().hasAlpha()) {
+            // Saving picks the smallest format for opaque images
+            final long jpgSize = getSampleSize(imageInfo, samples, false,
+                    sampleSizePx, Format.JPEG, jpgQuality, killTransparency);
+            if (jpgSize < sampleSize) {
+                format = Format.JPEG;
+                sampleSize = jpgSize;
+            }
+        }
+        final double samplePixels = sampleSizePx.getX() * sampleSizePx.getY();
+        if (targetPixels <= samplePixels) {
+            return sampleSize;
+        }
+        if (samples.mDetail == null) {
+            // Enlarged image; nothing more to learn
+            return (long) (sampleSize * targetPixels / samplePixels);
+        }
+        // The preview lacks the small details of the full image; the
+        // full resolution tiles, resized like the image, have them
+        long result = estimateFromDetail(imageInfo, samples, targetPixels,
+                format, jpgQuality, killTransparency);
+        if (format == Format.PNG) {
+            // Lossless images also shrink with repetitions the tiles don't
+            // show, and have denser edges in the preview; both overestimate
+            result = Math.min(result, estimateFromPreview(imageInfo, samples,
+                    sampleSizePx, sampleSize, targetPixels, format,
+                    jpgQuality, killTransparency));
+        }
+        return result;
+    }
+
+    /**
+     * Extrapolate the size of an image from it's full resolution tiles.
+     * 
+     * The tiles are resized like the image, and their size is multiplied by
+     * the pixels count ratio.
+     */
+    private long estimateFromDetail(final ImageInfo imageInfo,
+            final Samples samples, final double targetPixels,
+            final Format format, final int jpgQuality,
+            final boolean killTransparency) throws IOException
+    {
+        final ImageSize originalSizePx = imageInfo.getImageSizePx();
+        final double scale = Math.min(1, Math.sqrt(targetPixels
+                / (originalSizePx.getX() * originalSizePx.getY())));
+        final ImageSize detailSizePx = new ImageSize(Math.max(1,
+                Math.round(samples.mDetail.getWidth() * scale)), Math.max(1,
+                Math.round(samples.mDetail.getHeight() * scale)));
+        final long detailSize = getSampleSize(imageInfo, samples, true,
+                detailSizePx, format, jpgQuality, killTransparency);
+        final long headerSize = getHeaderSize(format, jpgQuality);
+        final double ratio = targetPixels
+                / (detailSizePx.getX() * detailSizePx.getY());
+        return headerSize
+                + (long) (Math.max(0, detailSize - headerSize) * ratio);
+    }
+
+    /**
+     * Extrapolate the size of an image from it's preview.
+     * 
+     * Size doesn't grow linearly with the pixels count; how it grows is
+     * measured with a second, smaller sample.
+     * 
+     * @param sampleSizePx
+     *            Size of the preview sample already encoded
+     * @param sampleSize
+     *            It's encoded size
+     */
+    private long estimateFromPreview(final ImageInfo imageInfo,
+            final Samples samples, final ImageSize sampleSizePx,
+            final long sampleSize, final double targetPixels,
+            final Format format, final int jpgQuality,
+            final boolean killTransparency) throws IOException
+    {
+        final double samplePixels = sampleSizePx.getX() * sampleSizePx.getY();
+        final ImageSize smallSizePx = fitPixels(sampleSizePx,
+                (long) (samplePixels / SAMPLES_RATIO));
+        final long smallSize = getSampleSize(imageInfo, samples, false,
+                smallSizePx, format, jpgQuality, killTransparency);
+        double exponent = Math.log((double) sampleSize / smallSize)
+                / Math.log(samplePixels
+                        / (smallSizePx.getX() * smallSizePx.getY()));
+        if (Double.isNaN(exponent)) {
+            exponent = 1;
+        }
+        exponent = Math.max(MIN_EXPONENT, Math.min(1, exponent));
+        return (long) (sampleSize * Math.pow(targetPixels / samplePixels,
+                exponent));
+    }
+
+    /**
+     * Return the output size of a sample, resized and encoded.
+     * 
+     * Sizes are kept: changing the JPEG quality only encodes JPEG samples
+     * again, and going back to previous settings is free.
+     * 
+     * @param detail
+     *            Use the full resolution tiles instead of the preview
+     * @param sizePx
+     *            Size of the sample
+     */
+    private long getSampleSize(final ImageInfo imageInfo,
+            final Samples samples, final boolean detail,
+            final ImageSize sizePx, final Format format, final int jpgQuality,
+            final boolean killTransparency) throws IOException
+    {
+        final String key = String.format("%s:%b:%dx%d:%s:%d:%b",
+                imageInfo.getRelativeName(), detail, (int) sizePx.getX(),
+                (int) sizePx.getY(), format.getSuffix(),
+                format == Format.JPEG ? jpgQuality : 0, killTransparency);
+        Long result = mSampleSizes.get(key);
+        if (result == null) {
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            ImageEncoder.encode(resizeSample(detail ? samples.mDetail
+                    : samples.mPreview, sizePx, killTransparency), format,
+                    jpgQuality, data);
+            result = getOutputSize(imageInfo, format, data);
+            mSampleSizes.put(key, result);
+        }
+        return result;
+    }
+
+    /** Return the size of an encoded image, without it's pixels */
+    private long getHeaderSize(final Format format, final int jpgQuality)
+            throws IOException
+    {
+        final String key = format.getSuffix() + jpgQuality;
+        Long result = mHeaderSizes.get(key);
+        if (result == null) {
+            final BufferedImage empty = new BufferedImage(1, 1,
+                    BufferedImage.TYPE_INT_RGB);
+            final ByteArrayOutputStream data = new ByteArrayOutputStream();
+            ImageEncoder.encode(empty, format, jpgQuality, data);
+            result = (long) data.size();
+            mHeaderSizes.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Return the output size of encoded data.
+     * 
+     * PNG data is often deflated again when saved.
+     */
+    private long getOutputSize(final ImageInfo imageInfo, final Format format,
+            final ByteArrayOutputStream data)
+    {
+        final String name = Utils.replaceFileSuffix(
+                imageInfo.getRelativeName(), format.getSuffix());
+        return mODTFile.getCompressionPolicy().getCompressedSize(name,
+                data.toByteArray(), data.size());
+    }
+
+    /**
+     * Return the output size of a prepared image, without headers.
+     * 
+     * @return The size, or -1 if the image is not prepared
+     */
+    private long getPreparedSize(final ImageInfo imageInfo,
+            final ProcessedImageKey key) throws IOException
+    {
+        final Long known = mPreparedSizes.get(key);
+        if (known != null) {
+            return known;
+        }
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final Format format = mODTFile.getPreparedImageStore().peek(key, data);
+        if (format == null) {
+            return -1;
+        }
+        final long result = getOutputSize(imageInfo, format, data);
+        mPreparedSizes.put(key, result);
+        return result;
+    }
+
+    /** Resize a sample */
+    private BufferedImage resizeSample(final BufferedImage sample,
+            final ImageSize sizePx, final boolean killTransparency)
+    {
+        final BufferedImage result = new BufferedImage((int) sizePx.getX(),
+                (int) sizePx.getY(), Resampler.getTargetType(sample,
+                        !killTransparency));
+        mResampler.resample(sample, result);
+        return result;
+    }
+
+    /** Return the samples of an image, decoding them if needed */
+    private Samples getSamples(final ImageInfo imageInfo) throws IOException,
+            InterruptedException
+    {
+        Samples result = mSamples.get(imageInfo);
+        if (result != null) {
+            return result;
+        }
+        final ImageSize sizePx = imageInfo.getImageSizePx();
+        final ImageSize previewSizePx = fitPixels(sizePx, SAMPLE_PIXELS);
+        final boolean hasDetail = sizePx.getX() * sizePx.getY() > SAMPLE_PIXELS;
+        final long memory = getSamplesMemory(sizePx, previewSizePx, hasDetail);
+        mMemoryBudget.acquire(memory);
+        try {
+            final BufferedImage decoded;
+            try (InputStream input = imageInfo.openStream()) {
+                decoded = ImageDecoder.decode(input, previewSizePx,
+                        PREVIEW_OVERSAMPLING);
+            }
+            final BufferedImage preview = resizeSample(decoded,
+                    previewSizePx, false);
+            BufferedImage detail = null;
+            if (hasDetail) {
+                detail = getDetail(imageInfo, preview);
+            }
+            result = new Samples(preview, detail);
+        } finally {
+            mMemoryBudget.release(memory);
+        }
+        mSamples.put(imageInfo, result);
+        return result;
+    }
+
+    /**
+     * Return the memory needed to decode the samples of an image.
+     * 
+     * The decoded preview and the full resolution band are both counted.
+     */
+    private static long getSamplesMemory(final ImageSize sizePx,
+            final ImageSize previewSizePx, final boolean hasDetail)
+    {
+        final ImageSize decodedSizePx = ImageDecoder.getSubsampledSize(sizePx,
+                ImageDecoder.getSubsamplingFactor(sizePx, previewSizePx,
+                        PREVIEW_OVERSAMPLING));
+        double pixels = decodedSizePx.getX() * decodedSizePx.getY();
+        if (hasDetail) {
+            pixels += sizePx.getX()
+                    * Math.min(DETAIL_TILE_SIZE, sizePx.getY());
+        }
+        return (long) (pixels * BYTES_PER_PIXEL);
+    }
+
+    /**
+     * Read DETAIL_TILES full resolution tiles of an image.
+     * 
+     * The tiles are spread along the middle of the image, and put side by
+     * side in a single image.
+     * 
+     * @param preview
+     *            The image preview, to choose the tiles type
+     */
+    private BufferedImage getDetail(final ImageInfo imageInfo,
+            final BufferedImage preview) throws IOException
+    {
+        final int width = (int) imageInfo.getImageSizePx().getX();
+        final int height = (int) imageInfo.getImageSizePx().getY();
+        final int tileWidth = Math.max(1,
+                Math.min(DETAIL_TILE_SIZE, width / DETAIL_TILES));
+        final int tileHeight = Math.min(DETAIL_TILE_SIZE, height);
+        final BufferedImage band;
+        try (InputStream input = imageInfo.openStream()) {
+            band = ImageDecoder.decodeRegion(input, new Rectangle(0,
+                    (height - tileHeight) / 2, width, tileHeight));
+        }
+        final BufferedImage result = new BufferedImage(tileWidth
+                * DETAIL_TILES, tileHeight, preview.getType());
+        final int[] pixels = new int[tileWidth * tileHeight];
+        for (int tile = 0; tile < DETAIL_TILES; ++tile) {
+            final int x = (2 * tile + 1) * width / (2 * DETAIL_TILES)
+                    - tileWidth / 2;
+            band.getRGB(x, 0, tileWidth, tileHeight, pixels, 0, tileWidth);
+            result.setRGB(tile * tileWidth, 0, tileWidth, tileHeight, pixels,
+                    0, tileWidth);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,253 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+import net.cleyfaye.loimagecomp.imagecompress.Resampler.Contributions;
+import net.cleyfaye.loimagecomp.imagecompress.Resampler.Kernel;
+import net.cleyfaye.loimagecomp.imagecompress.Resampler.Scratch;
+
+/**
+ * Resize images too large to be decoded at once.
+ * 
+ * The source is decoded in horizontal bands, using the reader source region
+ * (with source subsampling, like ImageDecoder.decode()). Each decoded row is
+ * filtered horizontally right away, and the filtered rows are kept only until
+ * no output row needs them anymore. Consecutive bands thus overlap by the
+ * vertical filter support without reading any source row twice, and the
+ * result is the same as Resampler.resample() on the whole image.
+ * 
+ * Memory use depends on the band height and the output size, not on the
+ * source size. Most readers decode an image from it's start for each region,
+ * so a few tall bands are faster than many small ones.
+ * 
+ * @author Cley Faye
+ */
+public class StreamingResizer {
+
+    /** Default memory for a decoded band, in bytes */
+    public static final long DEFAULT_BAND_MEMORY = 64 * 1024 * 1024;
+    /** Bytes per pixel of decoded bands, at most */
+    private static final int BYTES_PER_PIXEL = 4;
+    /** Bytes per pixel of horizontally filtered rows */
+    private static final int FILTERED_BYTES_PER_PIXEL = 16;
+    /** Extra filtered rows kept, so they are not moved for each row */
+    private static final int FILTERED_ROWS_SLACK = 32;
+
+    /** Find a reader for an image stream */
+    private static ImageReader getReader(final ImageInputStream iis)
+            throws IOException
+    {
+        if (iis == null) {
+            throw new IOException("Can't read image data");
+        }
+        final Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+        if (!readers.hasNext()) {
+            throw new IOException("Unsupported image format");
+        }
+        return readers.next();
+    }
+
+    /** Filter kernel */
+    private final Kernel mKernel;
+    /** Memory for a decoded band */
+    private final long mBandMemory;
+
+    /**
+     * Create a resizer.
+     * 
+     * @param kernel
+     *            The filter kernel
+     * @param bandMemory
+     *            Memory for a decoded band, in bytes. Bands are at least one
+     *            row high.
+     */
+    public StreamingResizer(final Kernel kernel, final long bandMemory) {
+        mKernel = kernel;
+        mBandMemory = bandMemory;
+    }
+
+    /**
+     * Estimate the peak memory needed to resize an image.
+     * 
+     * @param sourceSizePx
+     *            The original image size
+     * @param targetSizePx
+     *            The final image size
+     * @param oversampling
+     *            As given to resize()
+     */
+    public long estimateMemory(final ImageSize sourceSizePx,
+            final ImageSize targetSizePx, final int oversampling)
+    {
+        final ImageSize decodedSizePx = ImageDecoder.getSubsampledSize(
+                sourceSizePx, ImageDecoder.getSubsamplingFactor(sourceSizePx,
+                        targetSizePx, oversampling));
+        final int decodedWidth = (int) decodedSizePx.getX();
+        final int targetWidth = (int) targetSizePx.getX();
+        final int targetHeight = (int) targetSizePx.getY();
+        final Contributions vertical = Contributions.compute(mKernel,
+                (int) decodedSizePx.getY(), targetHeight);
+        final long band = (long) getBandHeight(decodedWidth) * decodedWidth
+                * BYTES_PER_PIXEL;
+        final long filtered = (long) (vertical.mStride + FILTERED_ROWS_SLACK)
+                * targetWidth * FILTERED_BYTES_PER_PIXEL;
+        final long row = (long) decodedWidth * FILTERED_BYTES_PER_PIXEL;
+        final long target = (long) targetWidth * targetHeight
+                * BYTES_PER_PIXEL;
+        return band + filtered + row + target;
+    }
+
+    /** Return the number of decoded rows read at once */
+    public int getBandHeight(final int decodedWidth)
+    {
+        final long rowSize = (long) Math.max(1, decodedWidth) * BYTES_PER_PIXEL;
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, mBandMemory
+                / rowSize));
+    }
+
+    /** Return the filter kernel */
+    public Kernel getKernel()
+    {
+        return mKernel;
+    }
+
+    /**
+     * Resize an image.
+     * 
+     * @param input
+     *            The image data. The stream is not closed.
+     * @param targetSizePx
+     *            The output size
+     * @param oversampling
+     *            How much larger than the target the decoded rows must stay,
+     *            as for ImageDecoder.decode()
+     * @param keepAlpha
+     *            If false, transparent pixels are composited on black and the
+     *            output is opaque
+     * @return The resized image; it's type follows the same rules as
+     *         Resampler.getTargetType()
+     */
+    public BufferedImage resize(final InputStream input,
+            final ImageSize targetSizePx, final int oversampling,
+            final boolean keepAlpha) throws IOException
+    {
+        try (ImageInputStream iis = ImageIO.createImageInputStream(input)) {
+            final ImageReader reader = getReader(iis);
+            try {
+                // Each band seeks back to the image start
+                reader.setInput(iis, false, true);
+                return resize(reader, targetSizePx, oversampling, keepAlpha);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    /** Resize the first image of a reader */
+    private BufferedImage resize(final ImageReader reader,
+            final ImageSize targetSizePx, final int oversampling,
+            final boolean keepAlpha) throws IOException
+    {
+        final int sourceWidth = reader.getWidth(0);
+        final int sourceHeight = reader.getHeight(0);
+        final int factor = ImageDecoder.getSubsamplingFactor(new ImageSize(
+                sourceWidth, sourceHeight), targetSizePx, oversampling);
+        final int decodedWidth = (sourceWidth + factor - 1) / factor;
+        final int decodedHeight = (sourceHeight + factor - 1) / factor;
+        final int targetWidth = (int) targetSizePx.getX();
+        final int targetHeight = (int) targetSizePx.getY();
+        final Contributions horizontal = Contributions.compute(mKernel,
+                decodedWidth, targetWidth);
+        final Contributions vertical = Contributions.compute(mKernel,
+                decodedHeight, targetHeight);
+
+        final int bandHeight = Math.min(decodedHeight,
+                getBandHeight(decodedWidth));
+        final Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+        if (!types.hasNext()) {
+            throw new IOException("Unsupported image type");
+        }
+        final BufferedImage band = types.next().createBufferedImage(
+                decodedWidth, bandHeight);
+        final BufferedImage target = new BufferedImage(targetWidth,
+                targetHeight, Resampler.getTargetType(band, keepAlpha));
+        final boolean targetAlpha = target.getColorModel().hasAlpha();
+        final ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(band);
+        if (factor > 1) {
+            param.setSourceSubsampling(factor, factor, 0, 0);
+        }
+
+        final Scratch scratch = Resampler.getScratch();
+        final int rowStride = targetWidth * 4;
+        final int filteredCapacity = vertical.mStride + FILTERED_ROWS_SLACK;
+        final float[] filtered = new float[filteredCapacity * rowStride];
+        final int[] sourceRow = scratch.sourceRow(decodedWidth);
+        final float[] premultiplied = scratch.premultiplied(decodedWidth * 4);
+        final float[] accumulator = scratch.accumulator(rowStride);
+        final int[] targetRow = scratch.targetRow(targetWidth);
+        // Decoded row stored first in filtered, and number of rows stored
+        int filteredStart = 0;
+        int filteredCount = 0;
+        // Next output row to compute
+        int y = 0;
+        for (int bandStart = 0; bandStart < decodedHeight
+                && y < targetHeight; bandStart += bandHeight) {
+            final int rows = Math.min(bandHeight, decodedHeight - bandStart);
+            final int sourceY = bandStart * factor;
+            param.setSourceRegion(new Rectangle(0, sourceY, sourceWidth,
+                    Math.min(sourceHeight - sourceY, rows * factor)));
+            reader.read(0, param);
+            for (int bandRow = 0; bandRow < rows; ++bandRow) {
+                final int row = bandStart + bandRow;
+                if (row < vertical.mStart[y]) {
+                    // Not used by any output row
+                    continue;
+                }
+                if (filteredStart + filteredCount != row) {
+                    // Rows were skipped; the stored ones are not used anymore
+                    filteredStart = row;
+                    filteredCount = 0;
+                } else if (filteredCount == filteredCapacity) {
+                    // Drop the rows before the current output row
+                    final int dropped = vertical.mStart[y] - filteredStart;
+                    filteredCount -= dropped;
+                    System.arraycopy(filtered, dropped * rowStride, filtered,
+                            0, filteredCount * rowStride);
+                    filteredStart += dropped;
+                }
+                Resampler.readRow(band, bandRow, sourceRow, scratch);
+                Resampler.premultiply(sourceRow, decodedWidth, premultiplied);
+                Resampler.filterRow(premultiplied, horizontal, filtered,
+                        filteredCount * rowStride);
+                ++filteredCount;
+                final int filteredEnd = filteredStart + filteredCount;
+                while (y < targetHeight && vertical.getEnd(y) <= filteredEnd) {
+                    Resampler.combineRows(filtered, (vertical.mStart[y]
+                            - filteredStart)
+                            * rowStride, rowStride, vertical, y, targetAlpha,
+                            accumulator, targetRow);
+                    Resampler.writeRow(target, y, targetRow, scratch);
+                    ++y;
+                }
+                if (y == targetHeight) {
+                    break;
+                }
+            }
+        }
+        if (y < targetHeight) {
+            throw new IOException("Image data ended early");
+        }
+        return target;
+    }
+}
@@ -0,0 +1,221 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.ArchiveReader;
+
+/**
+ * Read entries directly from a zip file.
+ * 
+ * Entries are located using the zip central directory, and only inflated when
+ * they are actually read. Nothing is written to disk.
+ * 
+ * The central directory is also read directly, to give access to the
+ * compressed data of each entry. Zip64 archives are supported for reading,
+ * but their compressed data is not available.
+ * 
+ * @author Cley Faye
+ */
+public class ZipArchiveReader implements ArchiveReader {
+
+    /** End of central directory signature */
+    private static final int END_SIGNATURE = 0x06054b50;
+    /** Size of the end of central directory record, without comment */
+    private static final int END_SIZE = 22;
+    /** Central directory file header signature */
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    /** Size of the fixed part of a central directory file header */
+    private static final int CENTRAL_SIZE = 46;
+    /** Value indicating a Zip64 field */
+    private static final long ZIP64_MAGIC = 0xffffffffL;
+
+    /** The zip file */
+    private final ZipFile mZipFile;
+    /** Raw access to the zip file */
+    private final FileChannel mChannel;
+    /** Entries names, in archive order */
+    private final List<String> mEntryNames = new ArrayList<>();
+    /** Compressed entries */
+    private final Map<String, RawZipEntry> mRawEntries = new HashMap<>();
+
+    /**
+     * Open a zip file.
+     * 
+     * @throws IOException
+     *             If the file has no usable central directory
+     */
+    public ZipArchiveReader(final File file) throws IOException {
+        mZipFile = new ZipFile(file);
+        try {
+            final Enumeration<? extends ZipEntry> entries = mZipFile
+                    .entries();
+            while (entries.hasMoreElements()) {
+                final ZipEntry entry = entries.nextElement();
+                if (!entry.isDirectory()) {
+                    mEntryNames.add(entry.getName());
+                }
+            }
+            mChannel = FileChannel.open(file.toPath(),
+                    StandardOpenOption.READ);
+        } catch (final IOException | RuntimeException e) {
+            // The caller can't close a reader it never got
+            mZipFile.close();
+            throw e;
+        }
+        try {
+            readCentralDirectory();
+        } catch (final IOException e) {
+            // Not fatal; entries will be uncompressed when copied
+            mRawEntries.clear();
+        }
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        try {
+            mZipFile.close();
+        } finally {
+            mChannel.close();
+        }
+    }
+
+    @Override
+    public List<String> getEntryNames()
+    {
+        return Collections.unmodifiableList(mEntryNames);
+    }
+
+    @Override
+    public long getEntrySize(final String name) throws IOException
+    {
+        return getEntry(name).getSize();
+    }
+
+    @Override
+    public RawZipEntry getRawEntry(final String name)
+    {
+        return mRawEntries.get(name);
+    }
+
+    @Override
+    public boolean hasEntry(final String name)
+    {
+        return mZipFile.getEntry(name) != null;
+    }
+
+    @Override
+    public InputStream openEntry(final String name) throws IOException
+    {
+        return mZipFile.getInputStream(getEntry(name));
+    }
+
+    /** Return an entry, or throw if it doesn't exist */
+    private ZipEntry getEntry(final String name) throws IOException
+    {
+        final ZipEntry entry = mZipFile.getEntry(name);
+        if (entry == null) {
+            throw new FileNotFoundException(name);
+        }
+        return entry;
+    }
+
+    /** Find the end of central directory record */
+    private ByteBuffer readEndRecord() throws IOException
+    {
+        // The record is at the end, followed by a comment of up to 64kB
+        final long fileSize = mChannel.size();
+        final int tailSize = (int) Math.min(fileSize, END_SIZE + 0xffff);
+        final ByteBuffer tail = readFully(fileSize - tailSize, tailSize);
+        for (int offset = tailSize - END_SIZE; offset >= 0; --offset) {
+            if (tail.getInt(offset) == END_SIGNATURE) {
+                tail.position(offset);
+                return tail.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        throw new ZipException("No central directory");
+    }
+
+    /** Read the central directory to locate all entries compressed data */
+    private void readCentralDirectory() throws IOException
+    {
+        final ByteBuffer end = readEndRecord();
+        final int entriesCount = end.getShort(10) & 0xffff;
+        final long directorySize = end.getInt(12) & ZIP64_MAGIC;
+        final long directoryOffset = end.getInt(16) & ZIP64_MAGIC;
+        if (entriesCount == 0xffff || directorySize == ZIP64_MAGIC
+                || directoryOffset == ZIP64_MAGIC) {
+            throw new ZipException("Zip64 is not supported");
+        }
+        final ByteBuffer directory = readFully(directoryOffset,
+                (int) directorySize);
+        final Charset utf8 = Charset.forName("UTF-8");
+        for (int i = 0; i < entriesCount; ++i) {
+            final int offset = directory.position();
+            if (directory.getInt(offset) != CENTRAL_SIGNATURE) {
+                throw new ZipException("Invalid central directory");
+            }
+            final int flags = directory.getShort(offset + 8) & 0xffff;
+            final int method = directory.getShort(offset + 10) & 0xffff;
+            final int dosTime = directory.getInt(offset + 12);
+            final long crc = directory.getInt(offset + 16) & ZIP64_MAGIC;
+            final long compressedSize = directory.getInt(offset + 20)
+                    & ZIP64_MAGIC;
+            final long size = directory.getInt(offset + 24) & ZIP64_MAGIC;
+            final int nameLength = directory.getShort(offset + 28) & 0xffff;
+            final int extraLength = directory.getShort(offset + 30) & 0xffff;
+            final int commentLength = directory.getShort(offset + 32) & 0xffff;
+            final long localHeaderOffset = directory.getInt(offset + 42)
+                    & ZIP64_MAGIC;
+            final byte[] nameBytes = new byte[nameLength];
+            directory.position(offset + CENTRAL_SIZE);
+            directory.get(nameBytes);
+            directory.position(offset + CENTRAL_SIZE + nameLength
+                    + extraLength + commentLength);
+            final String name = new String(nameBytes, utf8);
+            final boolean encrypted = (flags & 1) != 0;
+            final boolean zip64 = compressedSize == ZIP64_MAGIC
+                    || size == ZIP64_MAGIC
+                    || localHeaderOffset == ZIP64_MAGIC;
+            final boolean knownMethod = method == ZipEntry.STORED
+                    || method == ZipEntry.DEFLATED;
+            if (!encrypted && !zip64 && knownMethod) {
+                mRawEntries.put(name, new RawZipEntry(mChannel, name, method,
+                        dosTime, crc, compressedSize, size,
+                        localHeaderOffset));
+            }
+        }
+    }
+
+    /** Read a part of the zip file */
+    private ByteBuffer readFully(final long position, final int length)
+            throws IOException
+    {
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(
+                ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, position + buffer.position()) < 0) {
+                throw new ZipException("Unexpected end of file");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
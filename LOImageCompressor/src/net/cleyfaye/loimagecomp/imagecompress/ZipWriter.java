@@ -0,0 +1,426 @@
+package net.cleyfaye.loimagecomp.imagecompress;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+/**
+ * Write a zip file.
+ * 
+ * This works like ZipOutputStream, but can also copy entries that are
+ * already compressed (see RawZipEntry) without uncompressing them.
+ * 
+ * Since the output is a file, the local headers are updated once an entry is
+ * written; no data descriptor is ever used, and STORED entries don't need
+ * their size and CRC to be known in advance.
+ * 
+ * Zip64 is not supported.
+ * 
+ * @author Cley Faye
+ */
+public class ZipWriter extends OutputStream {
+
+    /** Informations needed to write the central directory */
+    private static class Record {
+        private final byte[] mName;
+        private final int mMethod;
+        private final int mDosTime;
+        private final long mLocalHeaderOffset;
+        private long mCrc;
+        private long mCompressedSize;
+        private long mSize;
+
+        public Record(final byte[] name, final int method, final int dosTime,
+                final long localHeaderOffset) {
+            mName = name;
+            mMethod = method;
+            mDosTime = dosTime;
+            mLocalHeaderOffset = localHeaderOffset;
+        }
+    }
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int CENTRAL_SIZE = 46;
+    private static final int END_SIGNATURE = 0x06054b50;
+    private static final int END_SIZE = 22;
+    /** Offset of the CRC in the local header */
+    private static final int LOCAL_HEADER_CRC_OFFSET = 14;
+    /** General purpose flag: names are UTF-8 */
+    private static final int FLAG_UTF8 = 0x0800;
+    /** Largest value that fits in non-Zip64 fields */
+    private static final long MAX_SIZE = 0xffffffffL;
+
+    /**
+     * Return the size of the headers written for an entry.
+     * 
+     * This is the local header and the central directory record, without
+     * the entry data.
+     * 
+     * @param name
+     *            The entry name
+     */
+    public static long getEntryOverhead(final String name)
+    {
+        return LOCAL_HEADER_SIZE + CENTRAL_SIZE + 2L
+                * name.getBytes(Charset.forName("UTF-8")).length;
+    }
+
+    /** Return the size of the end of central directory record */
+    public static long getEndOverhead()
+    {
+        return END_SIZE;
+    }
+
+    /**
+     * Convert a Java time to MS-DOS format.
+     * 
+     * @return The MS-DOS time in the lower 16 bits, and date in the upper 16
+     *         bits.
+     */
+    public static int javaToDosTime(final long time)
+    {
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTimeInMillis(time);
+        final int year = calendar.get(Calendar.YEAR);
+        if (year < 1980) {
+            return (1 << 21) | (1 << 16);
+        }
+        return (year - 1980) << 25 | (calendar.get(Calendar.MONTH) + 1) << 21
+                | calendar.get(Calendar.DAY_OF_MONTH) << 16
+                | calendar.get(Calendar.HOUR_OF_DAY) << 11
+                | calendar.get(Calendar.MINUTE) << 5
+                | calendar.get(Calendar.SECOND) >> 1;
+    }
+
+    /** The output file */
+    private final FileChannel mChannel;
+    /** Buffered stream on mChannel */
+    private final OutputStream mOutput;
+    /** Number of bytes written so far */
+    private long mPosition = 0;
+    /** All entries written so far */
+    private final List<Record> mRecords = new ArrayList<>();
+    /** All names written so far */
+    private final Set<String> mNames = new HashSet<>();
+    /** Default compression method */
+    private int mMethod = ZipEntry.DEFLATED;
+    /** Compression level for DEFLATED entries */
+    private int mLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /** Current entry, null if none */
+    private Record mCurrent = null;
+    /** CRC of the current entry */
+    private final CRC32 mCrc = new CRC32();
+    /** Offset of the current entry data */
+    private long mDataOffset;
+    private final Deflater mDeflater = new Deflater(
+            Deflater.DEFAULT_COMPRESSION, true);
+    private final byte[] mDeflateBuffer = new byte[16384];
+    private final Charset mUTF8 = Charset.forName("UTF-8");
+    private boolean mClosed = false;
+
+    /** Create a new zip file. An existing file is overwritten. */
+    public ZipWriter(final File target) throws IOException {
+        mChannel = FileChannel.open(target.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+        mOutput = new BufferedOutputStream(Channels.newOutputStream(mChannel),
+                65536);
+    }
+
+    /** Finish the zip file and close the output */
+    @Override
+    public void close() throws IOException
+    {
+        if (mClosed) {
+            return;
+        }
+        try {
+            closeEntry();
+            writeCentralDirectory();
+            mOutput.flush();
+        } finally {
+            mClosed = true;
+            mDeflater.end();
+            mChannel.close();
+        }
+    }
+
+    /** Close the current entry, if any */
+    public void closeEntry() throws IOException
+    {
+        if (mCurrent == null) {
+            return;
+        }
+        if (mCurrent.mMethod == ZipEntry.DEFLATED) {
+            mDeflater.finish();
+            while (!mDeflater.finished()) {
+                deflate();
+            }
+            mDeflater.reset();
+        }
+        mCurrent.mCrc = mCrc.getValue();
+        mCurrent.mCompressedSize = mPosition - mDataOffset;
+        if (mCurrent.mSize > MAX_SIZE || mCurrent.mCompressedSize > MAX_SIZE) {
+            throw new ZipException("Zip64 is not supported");
+        }
+        // Update the local header
+        mOutput.flush();
+        final ByteBuffer sizes = ByteBuffer.allocate(12).order(
+                ByteOrder.LITTLE_ENDIAN);
+        sizes.putInt((int) mCurrent.mCrc);
+        sizes.putInt((int) mCurrent.mCompressedSize);
+        sizes.putInt((int) mCurrent.mSize);
+        sizes.flip();
+        final long sizesOffset = mCurrent.mLocalHeaderOffset
+                + LOCAL_HEADER_CRC_OFFSET;
+        while (sizes.hasRemaining()) {
+            mChannel.write(sizes, sizesOffset + sizes.position());
+        }
+        mCurrent = null;
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+        mOutput.flush();
+    }
+
+    /**
+     * Start a new entry.
+     * 
+     * The current entry is closed. Only the name, method and time of the
+     * entry are used.
+     */
+    public void putNextEntry(final ZipEntry entry) throws IOException
+    {
+        closeEntry();
+        final int method = entry.getMethod() == -1 ? mMethod : entry
+                .getMethod();
+        if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+            throw new ZipException("Unsupported compression method");
+        }
+        final long time = entry.getTime() == -1 ? System.currentTimeMillis()
+                : entry.getTime();
+        mCurrent = startEntry(entry.getName(), method, javaToDosTime(time), 0,
+                0, 0);
+        mCrc.reset();
+        if (method == ZipEntry.DEFLATED) {
+            mDeflater.setLevel(mLevel);
+        }
+        mDataOffset = mPosition;
+    }
+
+    /**
+     * Start a new entry with a given compression level.
+     * 
+     * The level only applies to this entry; the default level set with
+     * setLevel() is not changed.
+     * 
+     * @param name
+     *            The entry name
+     * @param level
+     *            Deflate level; Deflater.NO_COMPRESSION to store the entry
+     */
+    public void putNextEntry(final String name, final int level)
+            throws IOException
+    {
+        final ZipEntry entry = new ZipEntry(name);
+        if (level == Deflater.NO_COMPRESSION) {
+            entry.setMethod(ZipEntry.STORED);
+            putNextEntry(entry);
+            return;
+        }
+        entry.setMethod(ZipEntry.DEFLATED);
+        putNextEntry(entry);
+        // Nothing is deflated yet, so the level applies to the whole entry
+        mDeflater.setLevel(level);
+    }
+
+    /** Set the default compression method for new entries */
+    public void setMethod(final int method)
+    {
+        mMethod = method;
+    }
+
+    /** Set the compression level of DEFLATED entries */
+    public void setLevel(final int level)
+    {
+        mLevel = level;
+    }
+
+    @Override
+    public void write(final byte[] b, final int off, final int len)
+            throws IOException
+    {
+        if (mCurrent == null) {
+            throw new ZipException("No current entry");
+        }
+        if (len == 0) {
+            return;
+        }
+        mCrc.update(b, off, len);
+        mCurrent.mSize += len;
+        if (mCurrent.mMethod == ZipEntry.STORED) {
+            writeBytes(b, off, len);
+        } else {
+            mDeflater.setInput(b, off, len);
+            while (!mDeflater.needsInput()) {
+                deflate();
+            }
+        }
+    }
+
+    @Override
+    public void write(final int b) throws IOException
+    {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    /**
+     * Copy an already compressed entry.
+     * 
+     * The current entry is closed. The data is copied as-is from the source
+     * zip file.
+     * 
+     * @param name
+     *            The name of the entry in the output
+     * @param source
+     *            The source entry
+     */
+    public void writeRawEntry(final String name, final RawZipEntry source)
+            throws IOException
+    {
+        closeEntry();
+        final Record record = startEntry(name, source.getMethod(),
+                source.getDosTime(), source.getCrc(),
+                source.getCompressedSize(), source.getSize());
+        record.mCrc = source.getCrc();
+        record.mCompressedSize = source.getCompressedSize();
+        record.mSize = source.getSize();
+        mOutput.flush();
+        source.transferTo(mChannel);
+        mPosition += source.getCompressedSize();
+    }
+
+    /** Compress pending data */
+    private void deflate() throws IOException
+    {
+        final int length = mDeflater.deflate(mDeflateBuffer, 0,
+                mDeflateBuffer.length);
+        if (length > 0) {
+            writeBytes(mDeflateBuffer, 0, length);
+        }
+    }
+
+    /** Write a local header and register a new entry */
+    private Record startEntry(final String name, final int method,
+            final int dosTime, final long crc, final long compressedSize,
+            final long size) throws IOException
+    {
+        if (mClosed) {
+            throw new ZipException("Zip file is closed");
+        }
+        if (!mNames.add(name)) {
+            throw new ZipException("Duplicate entry: " + name);
+        }
+        if (mPosition > MAX_SIZE || mRecords.size() >= 0xffff) {
+            throw new ZipException("Zip64 is not supported");
+        }
+        final byte[] nameBytes = name.getBytes(mUTF8);
+        final Record record = new Record(nameBytes, method, dosTime, mPosition);
+        final ByteBuffer header = ByteBuffer.allocate(
+                LOCAL_HEADER_SIZE + nameBytes.length).order(
+                ByteOrder.LITTLE_ENDIAN);
+        header.putInt(LOCAL_HEADER_SIGNATURE);
+        header.putShort((short) getVersionNeeded(method));
+        header.putShort((short) FLAG_UTF8);
+        header.putShort((short) method);
+        header.putInt(dosTime);
+        header.putInt((int) crc);
+        header.putInt((int) compressedSize);
+        header.putInt((int) size);
+        header.putShort((short) nameBytes.length);
+        header.putShort((short) 0);
+        header.put(nameBytes);
+        writeBytes(header.array(), 0, header.position());
+        mRecords.add(record);
+        return record;
+    }
+
+    /** Return the version needed to extract an entry */
+    private int getVersionNeeded(final int method)
+    {
+        return method == ZipEntry.DEFLATED ? 20 : 10;
+    }
+
+    /** Write data to the output file */
+    private void writeBytes(final byte[] b, final int off, final int len)
+            throws IOException
+    {
+        mOutput.write(b, off, len);
+        mPosition += len;
+    }
+
+    /** Write the central directory and end of central directory record */
+    private void writeCentralDirectory() throws IOException
+    {
+        final long directoryOffset = mPosition;
+        for (final Record record : mRecords) {
+            final ByteBuffer header = ByteBuffer.allocate(
+                    CENTRAL_SIZE + record.mName.length).order(
+                    ByteOrder.LITTLE_ENDIAN);
+            header.putInt(CENTRAL_SIGNATURE);
+            header.putShort((short) 20);
+            header.putShort((short) getVersionNeeded(record.mMethod));
+            header.putShort((short) FLAG_UTF8);
+            header.putShort((short) record.mMethod);
+            header.putInt(record.mDosTime);
+            header.putInt((int) record.mCrc);
+            header.putInt((int) record.mCompressedSize);
+            header.putInt((int) record.mSize);
+            header.putShort((short) record.mName.length);
+            header.putShort((short) 0); // Extra field length
+            header.putShort((short) 0); // Comment length
+            header.putShort((short) 0); // Disk number
+            header.putShort((short) 0); // Internal attributes
+            header.putInt(0); // External attributes
+            header.putInt((int) record.mLocalHeaderOffset);
+            header.put(record.mName);
+            writeBytes(header.array(), 0, header.position());
+        }
+        final long directorySize = mPosition - directoryOffset;
+        if (mPosition > MAX_SIZE) {
+            throw new ZipException("Zip64 is not supported");
+        }
+        final ByteBuffer end = ByteBuffer.allocate(END_SIZE).order(
+                ByteOrder.LITTLE_ENDIAN);
+        end.putInt(END_SIGNATURE);
+        end.putShort((short) 0); // Disk number
+        end.putShort((short) 0); // Central directory disk
+        end.putShort((short) mRecords.size());
+        end.putShort((short) mRecords.size());
+        end.putInt((int) directorySize);
+        end.putInt((int) directoryOffset);
+        end.putShort((short) 0); // Comment length
+        writeBytes(end.array(), 0, end.position());
+    }
+}
@@ -0,0 +1,60 @@
+package net.cleyfaye.loimagecomp.imagecompress.interfaces;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import net.cleyfaye.loimagecomp.imagecompress.RawZipEntry;
+
+/**
+ * Read-only access to the entries of an archive.
+ * 
+ * Entries are read on demand; implementations decide how (directly from the
+ * archive, or from an extracted copy).
+ * 
+ * @author Cley Faye
+ */
+public interface ArchiveReader extends Closeable {
+
+    /**
+     * Return the name of all entries, in archive order.
+     * 
+     * Directory entries are not listed.
+     */
+    public List<String> getEntryNames();
+
+    /**
+     * Return the uncompressed size of an entry.
+     * 
+     * @param name
+     *            The entry name
+     * @return The entry size, or -1 if unknown
+     */
+    public long getEntrySize(String name) throws IOException;
+
+    /**
+     * Return an entry compressed data.
+     * 
+     * @param name
+     *            The entry name
+     * @return The raw entry, or null if the entry doesn't exist or it's
+     *         compressed data is not available.
+     */
+    public RawZipEntry getRawEntry(String name);
+
+    /** Check if an entry exists */
+    public boolean hasEntry(String name);
+
+    /**
+     * Open an entry for reading.
+     * 
+     * @param name
+     *            The entry name
+     * @return A stream on the uncompressed entry content. The caller must
+     *         close it.
+     * @throws IOException
+     *             If the entry does not exist or can't be read
+     */
+    public InputStream openEntry(String name) throws IOException;
+}
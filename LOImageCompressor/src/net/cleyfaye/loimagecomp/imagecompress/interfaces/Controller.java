@@ -1,7 +1,9 @@
 package net.cleyfaye.loimagecomp.imagecompress.interfaces;
 
 import java.io.File;
+import java.util.Locale;
 
+import net.cleyfaye.loimagecomp.imagecompress.SizeEstimator;
 import net.cleyfaye.loimagecomp.utils.ProgressCheck;
 
 /**
@@ -16,9 +18,50 @@ public interface Controller {
         /** Fast resampling; less pretty. */
         SQ_FAST,
         /** Smooth (bicubic) resampling; better, slower. */
-        SQ_SMOOTH
+        SQ_SMOOTH,
+        /** Area averaging; soft, no ringing. */
+        SQ_AREA,
+        /** Mitchell bicubic; balanced sharpness and ringing. */
+        SQ_MITCHELL,
+        /** Lanczos (3 lobes); sharpest, slowest. */
+        SQ_LANCZOS;
+
+        /**
+         * Return the sample quality with a given short name.
+         * 
+         * @param name
+         *            One of fast, smooth, area, mitchell or lanczos
+         * @throws IllegalArgumentException
+         *             If the name is unknown
+         */
+        public static SampleQuality fromShortName(final String name)
+        {
+            for (final SampleQuality value : values()) {
+                if (value.getShortName().equalsIgnoreCase(name)) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Unknown scaling method: "
+                    + name);
+        }
+
+        /** Return a short name, usable in command lines */
+        public String getShortName()
+        {
+            return name().substring(3).toLowerCase(Locale.ROOT);
+        }
     }
 
+    /**
+     * Estimate the output size with the current settings.
+     * 
+     * This is much faster than saving, and can be called after each settings
+     * change. It can be called from any thread.
+     * 
+     * @return The estimated sizes, or null if no file is open
+     */
+    public SizeEstimator.Estimate estimateSize() throws Exception;
+
     /** Is a file open ? */
     public boolean isFileOpen();
 
@@ -26,6 +69,15 @@ public interface Controller {
     public void openFile(File odtFile, ProgressCheck progressCheck)
             throws Exception;
 
+    /**
+     * Tell that the output settings changed.
+     * 
+     * Call after changing the target DPI of images, or when the values
+     * returned by the Interface change. Work done in advance for the
+     * previous settings is cancelled.
+     */
+    public void settingsChanged();
+
     /**
      * Save the file
      * 
@@ -7,9 +7,13 @@ import net.cleyfaye.loimagecomp.imagecompress.ImageInfo;
 /**
  * A filter that process each image from source to destination.
  * 
- * There will be a batch of calls to prepareImage(), followed by a batch of
- * calls to getImageSuffix(), and a batch of calls to getImageData(), in that
- * order. The ImageInfo objects between each batch will be the same.
+ * prepareImage() is called first for each image. Once an image is prepared,
+ * getImageFileName(), isImageChanged() and getImageData() are called for it,
+ * in that order, while other images may still be prepared. The ImageInfo
+ * objects between each call will be the same.
+ * 
+ * prepareImage() can be called from multiple threads at once, for different
+ * images. The other functions are always called from the same thread.
  * 
  * @author Cley Faye
  */
@@ -37,6 +41,18 @@ public interface ImageFilter {
      */
     public String getImageFileName(ImageInfo imageInfo) throws Exception;
 
+    /**
+     * Tell if the image data is changed by this filter.
+     * 
+     * Unchanged images are copied as-is from the source file, and
+     * getImageData() is not called for them.
+     * 
+     * @param imageInfo
+     *            The image info
+     * @return true if the image data is changed
+     */
+    public boolean isImageChanged(ImageInfo imageInfo) throws Exception;
+
     /**
      * Called on each image once to prepare it.
      * 
@@ -0,0 +1,23 @@
+package net.cleyfaye.loimagecomp.imagecompress.interfaces;
+
+import net.cleyfaye.loimagecomp.imagecompress.ImageInfo;
+
+/**
+ * Get notified when the informations of an image are loaded.
+ * 
+ * @author Cley Faye
+ */
+public interface ImageInfoListener {
+
+    /**
+     * Called when the header of an image is read.
+     * 
+     * This is called from a background thread, in any order, possibly before
+     * the file is fully opened. If the header can't be read, this is called
+     * too, and the methods needing it throw.
+     * 
+     * @param imageInfo
+     *            The loaded image
+     */
+    public void imageInfoLoaded(ImageInfo imageInfo);
+}
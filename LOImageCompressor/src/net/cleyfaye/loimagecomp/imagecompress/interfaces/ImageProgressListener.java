@@ -0,0 +1,27 @@
+package net.cleyfaye.loimagecomp.imagecompress.interfaces;
+
+import net.cleyfaye.loimagecomp.imagecompress.ImageInfo;
+
+/**
+ * Get notified each time an image is processed.
+ * 
+ * @author Cley Faye
+ */
+public interface ImageProgressListener {
+
+    /**
+     * Called when an image is prepared.
+     * 
+     * Images can be prepared in any order, but this is called in archive
+     * order, from the thread that started the processing.
+     * 
+     * @param imageInfo
+     *            The prepared image
+     * @param preparedCount
+     *            The number of images prepared so far, including this one
+     * @param totalCount
+     *            The number of images to prepare
+     */
+    public void imagePrepared(ImageInfo imageInfo, int preparedCount,
+            int totalCount);
+}
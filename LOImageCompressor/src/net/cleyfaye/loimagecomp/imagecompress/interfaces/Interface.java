@@ -8,9 +8,12 @@ import net.cleyfaye.loimagecomp.imagecompress.interfaces.Controller.SampleQualit
 /**
  * Interface to get/display info.
  * 
+ * Images informations are loaded after the list is displayed; see
+ * ImageInfoListener.
+ * 
  * @author Cley Faye
  */
-public interface Interface {
+public interface Interface extends ImageInfoListener {
 
     /** Return the selected jpeg quality */
     public int getJPEGQuality();
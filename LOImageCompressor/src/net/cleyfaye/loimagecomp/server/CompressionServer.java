@@ -0,0 +1,675 @@
+package net.cleyfaye.loimagecomp.server;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.ZipException;
+
+import javax.imageio.IIOException;
+import javax.xml.stream.XMLStreamException;
+
+import net.cleyfaye.loimagecomp.imagecompress.DownsampleImageFilter;
+import net.cleyfaye.loimagecomp.imagecompress.ImageInfo;
+import net.cleyfaye.loimagecomp.imagecompress.MemoryBudget;
+import net.cleyfaye.loimagecomp.imagecompress.ODTFile;
+import net.cleyfaye.loimagecomp.imagecompress.ProcessedImageCache;
+import net.cleyfaye.loimagecomp.imagecompress.interfaces.Controller.SampleQuality;
+import net.cleyfaye.loimagecomp.utils.AtomicProgress;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * HTTP service compressing ODT files.
+ * 
+ * POST /compress with the ODT file as request body returns the compressed
+ * file. Settings are given as query parameters: dpi, quality, scaling (fast,
+ * smooth, area, mitchell or lanczos) and killTransparency (true or false).
+ * 
+ * GET /status returns counters and the picture memory use, as plain text.
+ * 
+ * At most "workers" files are processed at once, and at most "queue" more
+ * wait for a worker; other requests get a 503 reply. A request processed for
+ * longer than the timeout is cancelled and gets a 504 reply; the time spent
+ * waiting for a worker doesn't count.
+ * 
+ * Documents that can't be read get a 400 reply; other failures, such as a
+ * full temporary directory, get a 500 reply.
+ * 
+ * @author Cley Faye
+ */
+public class CompressionServer {
+
+    /**
+     * Compress one file.
+     * 
+     * The input and output files are shared by the job and the request
+     * handler; they are deleted once both are done with them. A job that is
+     * abandoned before it starts never runs.
+     * 
+     * @author Cley Faye
+     */
+    private class CompressionJob implements Callable<Boolean> {
+        private final File mInput;
+        private final File mOutput;
+        private final Settings mSettings;
+        private final AtomicProgress mProgress = new AtomicProgress();
+        /** Set when the job starts, or when it is abandoned before */
+        private final AtomicBoolean mClaimed = new AtomicBoolean();
+        /** Released when the job starts */
+        private final CountDownLatch mStarted = new CountDownLatch(1);
+        /** The job and the handler each hold a reference to the files */
+        private final AtomicInteger mReferences = new AtomicInteger(2);
+
+        public CompressionJob(final File input, final File output,
+                final Settings settings) {
+            mInput = input;
+            mOutput = output;
+            mSettings = settings;
+        }
+
+        /** Give up on this job; it is cancelled if running */
+        public void abandon()
+        {
+            mProgress.cancel();
+            if (mClaimed.compareAndSet(false, true)) {
+                // Never started; release it's reference now
+                release();
+            }
+        }
+
+        /** Wait until a worker starts the job */
+        public void awaitStart() throws InterruptedException
+        {
+            mStarted.await();
+        }
+
+        @Override
+        public Boolean call() throws Exception
+        {
+            if (!mClaimed.compareAndSet(false, true)) {
+                return false;
+            }
+            mStarted.countDown();
+            mActive.incrementAndGet();
+            try (ODTFile odtFile = openDocument()) {
+                if (mImageThreads > 0) {
+                    odtFile.setPrepareThreads(mImageThreads);
+                }
+                final DownsampleImageFilter filter = new DownsampleImageFilter(
+                        mSettings.mJPEGQuality, mSettings.mSampleQuality,
+                        mSettings.mKillTransparency);
+                filter.setCache(mCache);
+                return odtFile.createCopy(mOutput, filter, mProgress);
+            } finally {
+                mActive.decrementAndGet();
+                release();
+            }
+        }
+
+        /**
+         * Open the input, and read it's pictures headers.
+         * 
+         * @throws InvalidDocumentException
+         *             If the input can't be read
+         */
+        private ODTFile openDocument() throws InvalidDocumentException
+        {
+            ODTFile result = null;
+            try {
+                result = new ODTFile(mInput, mProgress);
+                for (final ImageInfo info : result.getAllImageInfo()) {
+                    info.setTargetDPI(mSettings.mDPI);
+                    if (info.isEmbedded()) {
+                        // Unreadable pictures are found now
+                        info.getImageSizePx();
+                    }
+                }
+                return result;
+            } catch (final IOException | XMLStreamException e) {
+                if (result != null) {
+                    try {
+                        result.close();
+                    } catch (final IOException e2) {
+                        // Only reading; nothing lost
+                    }
+                }
+                throw new InvalidDocumentException(e);
+            }
+        }
+
+        /** Release a reference to the files */
+        public void release()
+        {
+            if (mReferences.decrementAndGet() == 0) {
+                mInput.delete();
+                mOutput.delete();
+            }
+        }
+    }
+
+    /**
+     * Settings of a request.
+     * 
+     * @author Cley Faye
+     */
+    private static class Settings {
+        private double mDPI = 90;
+        private int mJPEGQuality = 80;
+        private SampleQuality mSampleQuality = SampleQuality.SQ_SMOOTH;
+        private boolean mKillTransparency = false;
+    }
+
+    /** Thrown when an uploaded document can't be read */
+    private static class InvalidDocumentException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        public InvalidDocumentException(final Throwable cause) {
+            super(cause.getMessage(), cause);
+        }
+    }
+
+    /** Thrown when an upload is larger than allowed */
+    private static class UploadTooLargeException extends IOException {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static final String ODT_MIME_TYPE = "application/vnd.oasis.opendocument.text";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final String USAGE = "Usage: CompressionServer [options]\n"
+            + "\n"
+            + "Options:\n"
+            + "  --bind <address>       Address to listen on (default: 127.0.0.1)\n"
+            + "  --port <port>          Port; 0 picks a free one (default: 8080)\n"
+            + "  --workers <count>      Files processed at once\n"
+            + "                         (default: half the processors)\n"
+            + "  --queue <count>        Files waiting for a worker (default: 16)\n"
+            + "  --timeout <seconds>    Maximum processing time per file, not\n"
+            + "                         counting the wait for a worker\n"
+            + "                         (default: 300)\n"
+            + "  --max-upload <MB>      Maximum file size (default: 512)\n"
+            + "  --image-threads <count>\n"
+            + "                         Threads preparing pictures of each file\n"
+            + "  --cache <directory>    Keep processed pictures between requests\n"
+            + "  --cache-size <MB>      Maximum cache size (default: 1024)\n";
+
+    public static void main(final String[] args)
+    {
+        String bind = "127.0.0.1";
+        int port = 8080;
+        final CompressionServer server;
+        try {
+            int workers = 0;
+            int queue = -1;
+            long timeout = -1;
+            long maxUpload = -1;
+            int imageThreads = 0;
+            File cacheDirectory = null;
+            long cacheSize = 1024L * 1024 * 1024;
+            for (int i = 0; i < args.length; ++i) {
+                if (i + 1 >= args.length) {
+                    throw new IllegalArgumentException("Missing value for "
+                            + args[i]);
+                }
+                final String value = args[i + 1];
+                switch (args[i++]) {
+                case "--bind":
+                    bind = value;
+                    break;
+                case "--port":
+                    port = parseNumber("--port", value, 0);
+                    break;
+                case "--workers":
+                    workers = parseNumber("--workers", value, 1);
+                    break;
+                case "--queue":
+                    queue = parseNumber("--queue", value, 0);
+                    break;
+                case "--timeout":
+                    timeout = parseNumber("--timeout", value, 1);
+                    break;
+                case "--max-upload":
+                    maxUpload = parseNumber("--max-upload", value, 1);
+                    break;
+                case "--image-threads":
+                    imageThreads = parseNumber("--image-threads", value, 1);
+                    break;
+                case "--cache":
+                    cacheDirectory = new File(value);
+                    break;
+                case "--cache-size":
+                    cacheSize = parseNumber("--cache-size", value, 1) * 1024L * 1024;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown option: "
+                            + args[i - 1]);
+                }
+            }
+            server = new CompressionServer(new InetSocketAddress(
+                    InetAddress.getByName(bind), port));
+            if (workers > 0) {
+                server.setWorkers(workers);
+            }
+            if (queue >= 0) {
+                server.setQueueSize(queue);
+            }
+            if (timeout > 0) {
+                server.setTimeout(timeout, TimeUnit.SECONDS);
+            }
+            if (maxUpload > 0) {
+                server.setMaxUploadSize(maxUpload * 1024 * 1024);
+            }
+            server.setImageThreads(imageThreads);
+            if (cacheDirectory != null) {
+                server.setCache(new ProcessedImageCache(cacheDirectory,
+                        cacheSize));
+            }
+        } catch (final IllegalArgumentException | IOException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            System.err.print(USAGE);
+            System.exit(2);
+            return;
+        }
+        try {
+            server.start();
+        } catch (final IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+
+            @Override
+            public void run()
+            {
+                server.stop(1);
+            }
+        });
+        final InetSocketAddress address = server.getAddress();
+        System.out.println("Listening on http://"
+                + address.getAddress().getHostAddress() + ":"
+                + address.getPort() + "/");
+    }
+
+    /**
+     * Tell if a job failure comes from the document, rather than the server.
+     * 
+     * Pictures and XML content are only read while saving, so their errors
+     * can happen after the document is opened.
+     */
+    private static boolean isDocumentError(final Throwable error)
+    {
+        return error instanceof InvalidDocumentException
+                || error instanceof XMLStreamException
+                || error instanceof ZipException
+                || error instanceof IIOException;
+    }
+
+    /** Decode a query string component */
+    private static String decode(final String value)
+    {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (final UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /** Parse a number, at least min */
+    private static int parseNumber(final String name, final String value,
+            final int min)
+    {
+        try {
+            final int result = Integer.parseInt(value);
+            if (result >= min) {
+                return result;
+            }
+        } catch (final NumberFormatException e) {
+            // Reported below
+        }
+        throw new IllegalArgumentException("Invalid value for " + name + ": "
+                + value);
+    }
+
+    /** Read request settings from the query string */
+    private static Settings parseSettings(final String query)
+    {
+        final Settings result = new Settings();
+        if (query == null || query.isEmpty()) {
+            return result;
+        }
+        for (final String parameter : query.split("&")) {
+            final int equal = parameter.indexOf('=');
+            final String name = decode(equal == -1 ? parameter : parameter
+                    .substring(0, equal));
+            final String value = equal == -1 ? "" : decode(parameter
+                    .substring(equal + 1));
+            switch (name) {
+            case "dpi":
+                try {
+                    result.mDPI = Double.parseDouble(value);
+                } catch (final NumberFormatException e) {
+                    result.mDPI = 0;
+                }
+                if (!(result.mDPI > 0)) {
+                    throw new IllegalArgumentException("Invalid dpi: " + value);
+                }
+                break;
+            case "quality":
+                result.mJPEGQuality = parseNumber(name, value, 0);
+                if (result.mJPEGQuality > 100) {
+                    throw new IllegalArgumentException("Invalid quality: "
+                            + value);
+                }
+                break;
+            case "scaling":
+                result.mSampleQuality = SampleQuality.fromShortName(value);
+                break;
+            case "killTransparency":
+                result.mKillTransparency = value.isEmpty()
+                        || Boolean.parseBoolean(value);
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown parameter: " + name);
+            }
+        }
+        return result;
+    }
+
+    /** Send a plain text reply */
+    private static void sendText(final HttpExchange exchange, final int code,
+            final String text) throws IOException
+    {
+        final byte[] body = (text + "\n").getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type",
+                "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, body.length);
+        try (OutputStream output = exchange.getResponseBody()) {
+            output.write(body);
+        }
+    }
+
+    /** Address to listen on */
+    private final InetSocketAddress mAddress;
+    /** Number of files processed at once */
+    private int mWorkers = Math.max(1, Runtime.getRuntime()
+            .availableProcessors() / 2);
+    /** Number of files waiting for a worker */
+    private int mQueueSize = 16;
+    /**
+     * Maximum processing time of a file, in ms; the time waiting for a worker
+     * doesn't count
+     */
+    private long mTimeout = TimeUnit.MINUTES.toMillis(5);
+    /** Maximum size of an uploaded file */
+    private long mMaxUploadSize = 512L * 1024 * 1024;
+    /** Threads preparing pictures of a file; 0 for the default */
+    private int mImageThreads = 0;
+    /** Processed images cache; can be null */
+    private ProcessedImageCache mCache = null;
+
+    private HttpServer mServer = null;
+    /** Threads handling connections */
+    private ExecutorService mHandlers = null;
+    /** Threads processing files */
+    private ExecutorService mWorkersPool = null;
+    /** Requests admitted, processing or waiting */
+    private Semaphore mSlots = null;
+
+    /** Number of files being processed */
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicLong mCompleted = new AtomicLong();
+    private final AtomicLong mRejected = new AtomicLong();
+    private final AtomicLong mTimedOut = new AtomicLong();
+    private final AtomicLong mFailed = new AtomicLong();
+
+    /**
+     * Create a server.
+     * 
+     * @param address
+     *            Address to listen on. Port 0 picks a free port.
+     */
+    public CompressionServer(final InetSocketAddress address) {
+        mAddress = address;
+    }
+
+    /** Return the address the server listens on, once started */
+    public InetSocketAddress getAddress()
+    {
+        return mServer == null ? mAddress : mServer.getAddress();
+    }
+
+    public void setCache(final ProcessedImageCache cache)
+    {
+        mCache = cache;
+    }
+
+    public void setImageThreads(final int imageThreads)
+    {
+        mImageThreads = imageThreads;
+    }
+
+    public void setMaxUploadSize(final long maxUploadSize)
+    {
+        mMaxUploadSize = maxUploadSize;
+    }
+
+    public void setQueueSize(final int queueSize)
+    {
+        mQueueSize = queueSize;
+    }
+
+    public void setTimeout(final long timeout, final TimeUnit unit)
+    {
+        mTimeout = unit.toMillis(timeout);
+    }
+
+    public void setWorkers(final int workers)
+    {
+        mWorkers = workers;
+    }
+
+    /** Start listening. Settings must be changed before this. */
+    public void start() throws IOException
+    {
+        mSlots = new Semaphore(mWorkers + mQueueSize);
+        mWorkersPool = Executors.newFixedThreadPool(mWorkers);
+        mHandlers = Executors.newCachedThreadPool();
+        mServer = HttpServer.create(mAddress, 0);
+        mServer.setExecutor(mHandlers);
+        mServer.createContext("/compress", new HttpHandler() {
+
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException
+            {
+                try {
+                    handleCompress(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.createContext("/status", new HttpHandler() {
+
+            @Override
+            public void handle(final HttpExchange exchange) throws IOException
+            {
+                try {
+                    handleStatus(exchange);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        mServer.start();
+    }
+
+    /**
+     * Stop the server.
+     * 
+     * @param delay
+     *            Time given to running exchanges to finish, in seconds
+     */
+    public void stop(final int delay)
+    {
+        if (mServer == null) {
+            return;
+        }
+        mServer.stop(delay);
+        mWorkersPool.shutdownNow();
+        mHandlers.shutdownNow();
+        mServer = null;
+    }
+
+    /** Process a POST /compress request */
+    private void handleCompress(final HttpExchange exchange)
+            throws IOException
+    {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            sendText(exchange, 405, "Use POST");
+            return;
+        }
+        final Settings settings;
+        try {
+            settings = parseSettings(exchange.getRequestURI().getRawQuery());
+        } catch (final IllegalArgumentException e) {
+            sendText(exchange, 400, e.getMessage());
+            return;
+        }
+        if (!mSlots.tryAcquire()) {
+            mRejected.incrementAndGet();
+            exchange.getResponseHeaders().set("Retry-After", "5");
+            sendText(exchange, 503, "Too many requests");
+            return;
+        }
+        try {
+            final File input = File.createTempFile("loimgcomp", ".odt");
+            final File output = File.createTempFile("loimgcomp", ".odt");
+            try {
+                receive(exchange.getRequestBody(), input);
+            } catch (final UploadTooLargeException e) {
+                input.delete();
+                output.delete();
+                sendText(exchange, 413, "File too large");
+                return;
+            } catch (final IOException e) {
+                input.delete();
+                output.delete();
+                throw e;
+            }
+            final CompressionJob job = new CompressionJob(input, output,
+                    settings);
+            try {
+                process(exchange, job, output);
+            } finally {
+                job.release();
+            }
+        } finally {
+            mSlots.release();
+        }
+    }
+
+    /** Process a GET /status request */
+    private void handleStatus(final HttpExchange exchange) throws IOException
+    {
+        final int active = mActive.get();
+        final int admitted = mWorkers + mQueueSize - mSlots.availablePermits();
+        final MemoryBudget budget = MemoryBudget.getShared();
+        sendText(exchange, 200, "active: " + active + "\nqueued: "
+                + Math.max(0, admitted - active) + "\ncompleted: "
+                + mCompleted.get() + "\nrejected: " + mRejected.get()
+                + "\ntimedOut: " + mTimedOut.get() + "\nfailed: "
+                + mFailed.get() + "\nmemoryReserved: "
+                + budget.getReserved() + "\nmemoryPeak: "
+                + budget.getPeakReserved() + "\nmemoryBudget: "
+                + budget.getBudget());
+    }
+
+    /** Run a job and send it's result */
+    private void process(final HttpExchange exchange,
+            final CompressionJob job, final File output) throws IOException
+    {
+        final Future<Boolean> future = mWorkersPool.submit(job);
+        final boolean completed;
+        try {
+            // The queue is bounded; waiting for a worker doesn't count in the
+            // timeout
+            job.awaitStart();
+            completed = future.get(mTimeout, TimeUnit.MILLISECONDS);
+        } catch (final TimeoutException e) {
+            job.abandon();
+            future.cancel(true);
+            mTimedOut.incrementAndGet();
+            sendText(exchange, 504, "Processing took too long");
+            return;
+        } catch (final InterruptedException e) {
+            job.abandon();
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            sendText(exchange, 503, "Server stopping");
+            return;
+        } catch (final ExecutionException e) {
+            mFailed.incrementAndGet();
+            final Throwable cause = e.getCause();
+            if (isDocumentError(cause)) {
+                sendText(exchange, 400, "Invalid document: "
+                        + cause.getMessage());
+            } else {
+                sendText(exchange, 500, "Processing failed: " + cause);
+            }
+            return;
+        }
+        if (!completed) {
+            mTimedOut.incrementAndGet();
+            sendText(exchange, 504, "Processing cancelled");
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", ODT_MIME_TYPE);
+        exchange.sendResponseHeaders(200, output.length());
+        try (OutputStream body = exchange.getResponseBody()) {
+            Files.copy(output.toPath(), body);
+        }
+        mCompleted.incrementAndGet();
+    }
+
+    /** Save an upload to a file, enforcing the size limit */
+    private void receive(final InputStream input, final File target)
+            throws IOException
+    {
+        final byte[] buffer = new byte[16384];
+        long total = 0;
+        try (OutputStream output = new FileOutputStream(target)) {
+            int length;
+            while ((length = input.read(buffer)) > 0) {
+                total += length;
+                if (total > mMaxUploadSize) {
+                    throw new UploadTooLargeException();
+                }
+                output.write(buffer, 0, length);
+            }
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package net.cleyfaye.loimagecomp.utils;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ProgressCheck that only records the progress state.
+ * 
+ * The worker thread never waits: each call stores a value in a volatile or
+ * atomic field, and cancellation is a volatile flag. Another thread (usually
+ * a UI timer) reads the state at it's own pace.
+ * 
+ * @author Cley Faye
+ */
+public class AtomicProgress implements ProgressCheck {
+
+    /** Incremented by each startProgress() */
+    private final AtomicInteger mGeneration = new AtomicInteger();
+    private volatile String mTitle = "";
+    private volatile String mMessage = "";
+    private volatile int mValue = 0;
+    private volatile int mMaxValue = 1;
+    private volatile boolean mRunning = false;
+    private volatile boolean mCancelled = false;
+
+    /** Ask the worker to stop; it will see it on it's next progress call */
+    public void cancel()
+    {
+        mCancelled = true;
+    }
+
+    @Override
+    public void endProgress()
+    {
+        mRunning = false;
+    }
+
+    /**
+     * Return the number of progress started.
+     * 
+     * A reader can compare it to a previous value to know if a new progress
+     * was started meanwhile.
+     */
+    public int getGeneration()
+    {
+        return mGeneration.get();
+    }
+
+    public int getMaxValue()
+    {
+        return mMaxValue;
+    }
+
+    public String getMessage()
+    {
+        return mMessage;
+    }
+
+    public String getTitle()
+    {
+        return mTitle;
+    }
+
+    public int getValue()
+    {
+        return mValue;
+    }
+
+    public boolean isCancelled()
+    {
+        return mCancelled;
+    }
+
+    /** Is a progress started and not ended yet */
+    public boolean isRunning()
+    {
+        return mRunning;
+    }
+
+    @Override
+    public boolean progress(final int value)
+    {
+        mValue = value;
+        return !mCancelled;
+    }
+
+    @Override
+    public boolean progressMessage(final String message)
+    {
+        mMessage = message;
+        return !mCancelled;
+    }
+
+    @Override
+    public void progressNewMaxValue(final int maxValue)
+    {
+        mValue = 0;
+        mMaxValue = maxValue;
+    }
+
+    /**
+     * Start a new progress.
+     * 
+     * The progress state and the cancellation flag are reset.
+     */
+    @Override
+    public void startProgress(final String title)
+    {
+        mTitle = title;
+        mMessage = "";
+        mValue = 0;
+        mMaxValue = 1;
+        mCancelled = false;
+        mGeneration.incrementAndGet();
+        mRunning = true;
+    }
+}
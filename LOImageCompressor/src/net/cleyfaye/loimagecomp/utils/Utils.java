@@ -2,6 +2,7 @@ package net.cleyfaye.loimagecomp.utils;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 
 import javax.xml.transform.Transformer;
@@ -36,6 +37,26 @@ public class Utils {
         return (Document) resultDom.getNode();
     }
 
+    /**
+     * Copy all the data from a stream to another.
+     * 
+     * Neither stream is closed.
+     * 
+     * @return The number of bytes copied
+     */
+    public static long copyStream(final InputStream input,
+            final OutputStream output) throws IOException
+    {
+        final byte[] buffer = new byte[16384];
+        long total = 0;
+        int length;
+        while ((length = input.read(buffer)) > 0) {
+            output.write(buffer, 0, length);
+            total += length;
+        }
+        return total;
+    }
+
     /**
      * Create all the parent directory for the given file, and mark them for
      * deletion on vm shutdown.
@@ -138,4 +159,15 @@ public class Utils {
         }
         throw new IOException("Unexpected image size information");
     }
+
+    /** Return the hexadecimal representation of some bytes */
+    public static String toHexString(final byte[] bytes)
+    {
+        final StringBuilder sb = new StringBuilder(bytes.length * 2);
+        for (final byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+        }
+        return sb.toString();
+    }
 }
@@ -0,0 +1,365 @@
+package net.cleyfaye.loimagecomp.utils;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Copy an XML document while replacing some attributes values.
+ * 
+ * Elements made redundant by the replacement can also be removed.
+ * 
+ * The document is streamed from the input to the output; memory use does not
+ * depend on the document size.
+ * 
+ * The output is written by hand rather than with an XMLStreamWriter: line
+ * breaks and tabs in attribute values, and carriage returns in text, must be
+ * written as character references, or they are normalized when the document
+ * is read again.
+ * 
+ * @author Cley Faye
+ */
+public class XMLRewriter {
+
+    /** A start tag, kept until we know if the element is empty */
+    private static class StartTag {
+        private String mPrefix;
+        private String mLocalName;
+        private String mNamespace;
+        /** Namespace declarations, as prefix/URI pairs */
+        private final List<String> mNamespaces = new ArrayList<>();
+        /** Attributes, as prefix/namespace/local name/value quadruplets */
+        private final List<String> mAttributes = new ArrayList<>();
+    }
+
+    private static XMLInputFactory sInputFactory = XMLInputFactory
+            .newInstance();
+
+    static {
+        sInputFactory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        sInputFactory.setProperty(
+                XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    /** Attributes to check */
+    private final Set<QName> mAttributes;
+    /** Values to replace */
+    private final Map<String, String> mReplacements;
+    /** Element to keep only once per value of mUniqueAttribute */
+    private QName mUniqueElement = null;
+    /** Attribute identifying mUniqueElement elements */
+    private QName mUniqueAttribute = null;
+
+    /**
+     * Create a rewriter.
+     * 
+     * @param attributes
+     *            Attributes whose values can be replaced
+     * @param replacements
+     *            Values to replace, mapped to their replacement
+     */
+    public XMLRewriter(final Set<QName> attributes,
+            final Map<String, String> replacements) {
+        mAttributes = attributes;
+        mReplacements = replacements;
+    }
+
+    /**
+     * Copy a document, replacing attributes values.
+     * 
+     * @param input
+     *            The source document. The stream is not closed.
+     * @param output
+     *            The output. The document is always written in UTF-8. The
+     *            stream is not closed.
+     */
+    public void rewrite(final InputStream input, final OutputStream output)
+            throws IOException, XMLStreamException
+    {
+        final XMLStreamReader reader = sInputFactory
+                .createXMLStreamReader(input);
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(
+                output, Charset.forName("UTF-8")));
+        try {
+            final String version = reader.getVersion();
+            writer.write("<?xml version=\"");
+            writer.write(version == null ? "1.0" : version);
+            writer.write("\" encoding=\"UTF-8\"?>");
+            final StartTag startTag = new StartTag();
+            final Set<String> uniqueValues = new HashSet<>();
+            // Qualified names of the open elements
+            final Deque<String> openElements = new ArrayDeque<>();
+            int event = reader.next();
+            while (event != XMLStreamConstants.END_DOCUMENT) {
+                switch (event) {
+                case XMLStreamConstants.START_ELEMENT: {
+                    readStartTag(reader, startTag);
+                    if (isDuplicate(startTag, uniqueValues)) {
+                        skipElement(reader);
+                        event = reader.next();
+                        continue;
+                    }
+                    final int nextEvent = reader.next();
+                    if (nextEvent == XMLStreamConstants.END_ELEMENT) {
+                        writeStartTag(writer, startTag, true);
+                        event = reader.next();
+                    } else {
+                        openElements.push(writeStartTag(writer, startTag,
+                                false));
+                        event = nextEvent;
+                    }
+                    continue;
+                }
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.write("</");
+                    writer.write(openElements.pop());
+                    writer.write('>');
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    writeEscaped(writer, reader.getTextCharacters(),
+                            reader.getTextStart(), reader.getTextLength(),
+                            false);
+                    break;
+                case XMLStreamConstants.CDATA:
+                    writer.write("<![CDATA[");
+                    writer.write(reader.getText());
+                    writer.write("]]>");
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    writer.write("<!--");
+                    writer.write(reader.getText());
+                    writer.write("-->");
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION: {
+                    final String data = reader.getPIData();
+                    writer.write("<?");
+                    writer.write(reader.getPITarget());
+                    if (data != null && !data.isEmpty()) {
+                        writer.write(' ');
+                        writer.write(data);
+                    }
+                    writer.write("?>");
+                    break;
+                }
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    writer.write('&');
+                    writer.write(reader.getLocalName());
+                    writer.write(';');
+                    break;
+                default:
+                    break;
+                }
+                event = reader.next();
+            }
+            // The output stream is not closed
+            writer.flush();
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Check if an element was already written.
+     * 
+     * Only elements set with setUniqueElement() are checked.
+     */
+    private boolean isDuplicate(final StartTag startTag,
+            final Set<String> uniqueValues)
+    {
+        if (mUniqueElement == null
+                || !mUniqueElement.getLocalPart().equals(startTag.mLocalName)
+                || !mUniqueElement.getNamespaceURI().equals(
+                        startTag.mNamespace == null ? "" : startTag.mNamespace)) {
+            return false;
+        }
+        for (int i = 0; i < startTag.mAttributes.size(); i += 4) {
+            final String attrNamespace = startTag.mAttributes.get(i + 1);
+            if (mUniqueAttribute.getLocalPart().equals(
+                    startTag.mAttributes.get(i + 2))
+                    && mUniqueAttribute.getNamespaceURI().equals(
+                            attrNamespace == null ? "" : attrNamespace)) {
+                return !uniqueValues.add(startTag.mAttributes.get(i + 3));
+            }
+        }
+        return false;
+    }
+
+    /** Read the current start tag, replacing attributes values */
+    private void readStartTag(final XMLStreamReader reader,
+            final StartTag startTag)
+    {
+        startTag.mPrefix = reader.getPrefix();
+        startTag.mLocalName = reader.getLocalName();
+        startTag.mNamespace = reader.getNamespaceURI();
+        startTag.mNamespaces.clear();
+        for (int i = 0; i < reader.getNamespaceCount(); ++i) {
+            startTag.mNamespaces.add(reader.getNamespacePrefix(i));
+            startTag.mNamespaces.add(reader.getNamespaceURI(i));
+        }
+        startTag.mAttributes.clear();
+        for (int i = 0; i < reader.getAttributeCount(); ++i) {
+            String value = reader.getAttributeValue(i);
+            if (mAttributes.contains(reader.getAttributeName(i))
+                    && mReplacements.containsKey(value)) {
+                value = mReplacements.get(value);
+            }
+            startTag.mAttributes.add(reader.getAttributePrefix(i));
+            startTag.mAttributes.add(reader.getAttributeNamespace(i));
+            startTag.mAttributes.add(reader.getAttributeLocalName(i));
+            startTag.mAttributes.add(value);
+        }
+    }
+
+    /**
+     * Keep only one element with a given attribute value.
+     * 
+     * The value is checked after replacement; following elements with the
+     * same value are removed, with their content. This is used when several
+     * values are replaced by the same one.
+     * 
+     * @param element
+     *            The element name
+     * @param attribute
+     *            The attribute identifying elements
+     */
+    public void setUniqueElement(final QName element, final QName attribute)
+    {
+        mUniqueElement = element;
+        mUniqueAttribute = attribute;
+    }
+
+    /** Skip the current element, up to it's end tag */
+    private static void skipElement(final XMLStreamReader reader)
+            throws XMLStreamException
+    {
+        int depth = 1;
+        while (depth > 0) {
+            final int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                ++depth;
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                --depth;
+            }
+        }
+    }
+
+    /**
+     * Write escaped text or attribute value.
+     * 
+     * Characters that would be changed when the document is read again are
+     * written as character references: carriage returns in text, and all
+     * whitespace but spaces in attribute values.
+     */
+    private static void writeEscaped(final Writer writer, final char[] text,
+            final int start, final int length, final boolean attribute)
+            throws IOException
+    {
+        final int end = start + length;
+        // Start of the characters not written yet
+        int pending = start;
+        for (int i = start; i < end; ++i) {
+            final String reference;
+            switch (text[i]) {
+            case '&':
+                reference = "&amp;";
+                break;
+            case '<':
+                reference = "&lt;";
+                break;
+            case '>':
+                reference = attribute ? null : "&gt;";
+                break;
+            case '"':
+                reference = attribute ? "&quot;" : null;
+                break;
+            case '\r':
+                reference = "&#13;";
+                break;
+            case '\n':
+                reference = attribute ? "&#10;" : null;
+                break;
+            case '\t':
+                reference = attribute ? "&#9;" : null;
+                break;
+            default:
+                reference = null;
+                break;
+            }
+            if (reference != null) {
+                writer.write(text, pending, i - pending);
+                writer.write(reference);
+                pending = i + 1;
+            }
+        }
+        writer.write(text, pending, end - pending);
+    }
+
+    /** Return a qualified name */
+    private static String getQualifiedName(final String prefix,
+            final String localName)
+    {
+        if (prefix == null || prefix.isEmpty()) {
+            return localName;
+        }
+        return prefix + ":" + localName;
+    }
+
+    /**
+     * Write a start tag.
+     * 
+     * @return The element qualified name, to write the end tag
+     */
+    private static String writeStartTag(final Writer writer,
+            final StartTag startTag, final boolean empty) throws IOException
+    {
+        final String name = getQualifiedName(startTag.mPrefix,
+                startTag.mLocalName);
+        writer.write('<');
+        writer.write(name);
+        for (int i = 0; i < startTag.mNamespaces.size(); i += 2) {
+            final String nsPrefix = startTag.mNamespaces.get(i);
+            final String nsURI = startTag.mNamespaces.get(i + 1);
+            writeAttribute(writer, nsPrefix == null || nsPrefix.isEmpty()
+                    ? "xmlns" : "xmlns:" + nsPrefix, nsURI == null ? ""
+                    : nsURI);
+        }
+        for (int i = 0; i < startTag.mAttributes.size(); i += 4) {
+            final String attrPrefix = startTag.mAttributes.get(i);
+            final String attrName = startTag.mAttributes.get(i + 2);
+            final String attrValue = startTag.mAttributes.get(i + 3);
+            writeAttribute(writer, getQualifiedName(attrPrefix, attrName),
+                    attrValue);
+        }
+        writer.write(empty ? "/>" : ">");
+        return name;
+    }
+
+    /** Write an attribute, with it's leading space */
+    private static void writeAttribute(final Writer writer,
+            final String name, final String value) throws IOException
+    {
+        writer.write(' ');
+        writer.write(name);
+        writer.write("=\"");
+        writeEscaped(writer, value.toCharArray(), 0, value.length(), true);
+        writer.write('"');
+    }
+}